@@ -2,8 +2,10 @@ package pt.ua.tqs.hw1;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class Hw1Application {
 
 	public static void main(String[] args) {
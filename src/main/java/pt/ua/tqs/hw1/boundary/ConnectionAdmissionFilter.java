@@ -0,0 +1,252 @@
+package pt.ua.tqs.hw1.boundary;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+// Optional deployment mode for many concurrent clients (zeromonos.api.admission.enabled).
+// At most max-in-flight /api requests run at a time, as many as the connection pool has, and the
+// others wait in a queue without holding a server thread: the request is put in async mode and
+// dispatched again when a slot frees up. Without it, each waiting client blocks a Tomcat thread on
+// the pool. The event streams hold no connection while open, so they are left alone
+@Component
+@ConditionalOnProperty("zeromonos.api.admission.enabled")
+public class ConnectionAdmissionFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionAdmissionFilter.class);
+
+    // The Slot of a request that was let in
+    private static final String SLOT = ConnectionAdmissionFilter.class.getName() + ".SLOT";
+
+    private static final String BUSY_BODY = "{\"error\":\"the server is busy, please retry shortly\"}";
+
+    private final class Slot implements AsyncListener {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                admitWaiting();
+            }
+        }
+
+        // Held until a request the controller made async (an export) is done
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    private static final class Waiter {
+        private final AsyncContext context;
+        // Taken by whoever gets to it first: admitWaiting, the timeout or the client going away
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Waiter(AsyncContext context) {
+            this.context = context;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    private final Queue<Waiter> waiting = new ConcurrentLinkedQueue<>();
+
+    // The queue's own size() walks it
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    private final AtomicInteger peakWaiting = new AtomicInteger();
+
+    private final int maxInFlight;
+
+    private final int maxWaiting;
+
+    private final long maxWaitMillis;
+
+    public ConnectionAdmissionFilter(@Value("${zeromonos.api.admission.max-in-flight:${spring.datasource.hikari.maximum-pool-size:10}}") int maxInFlight,
+            @Value("${zeromonos.api.admission.max-waiting:10000}") int maxWaiting,
+            @Value("${zeromonos.api.admission.max-wait:PT30S}") Duration maxWait) {
+        this.maxInFlight = maxInFlight;
+        this.maxWaiting = maxWaiting;
+        this.maxWaitMillis = maxWait.toMillis();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.startsWith("/api/") || path.startsWith("/api/events/");
+    }
+
+    // Waiting requests come back as an async dispatch, and so do the exports when they finish
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Slot slot = (Slot) request.getAttribute(SLOT);
+        if (slot == null) {
+            // Behind the ones already waiting, not ahead of them
+            if (!waiting.isEmpty() || !tryAcquire()) {
+                enqueue(request, response);
+                return;
+            }
+            slot = new Slot();
+            request.setAttribute(SLOT, slot);
+        }
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(slot);
+            } else {
+                slot.release();
+            }
+        }
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        peakInFlight.accumulateAndGet(current + 1, Math::max);
+        return true;
+    }
+
+    private void enqueue(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int queued = waitingCount.incrementAndGet();
+        if (queued > maxWaiting) {
+            waitingCount.decrementAndGet();
+            log.warn("Rejected request: {} requests already waiting for a connection", maxWaiting);
+            reject(response);
+            return;
+        }
+        peakWaiting.accumulateAndGet(queued, Math::max);
+
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(maxWaitMillis);
+        Waiter waiter = new Waiter(context);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (waiter.claim()) {
+                    waitingCount.decrementAndGet();
+                    log.warn("Rejected request: waited {} ms for a connection", maxWaitMillis);
+                    reject((HttpServletResponse) event.getSuppliedResponse());
+                    context.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                if (waiter.claim()) {
+                    waitingCount.decrementAndGet();
+                    context.complete();
+                }
+            }
+
+            // Once dispatched, the slot has its own listener
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        waiting.add(waiter);
+        // A slot may have been freed after tryAcquire, with nobody in the queue to give it to
+        admitWaiting();
+    }
+
+    // Hands free slots to the waiting requests, in the order they came in. Claimed waiters (timed
+    // out or gone) are dropped on the way. A slot taken with nothing left to give it to is put back,
+    // and the queue looked at again in case a request was added meanwhile
+    private void admitWaiting() {
+        while (!waiting.isEmpty() && tryAcquire()) {
+            Waiter waiter;
+            do {
+                waiter = waiting.poll();
+            } while (waiter != null && !waiter.claim());
+
+            if (waiter == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            waitingCount.decrementAndGet();
+            waiter.context.getRequest().setAttribute(SLOT, new Slot());
+            waiter.context.dispatch();
+        }
+    }
+
+    private static void reject(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write(BUSY_BODY);
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int waiting() {
+        return waitingCount.get();
+    }
+
+    public int peakInFlight() {
+        return peakInFlight.get();
+    }
+
+    public int peakWaiting() {
+        return peakWaiting.get();
+    }
+}
@@ -0,0 +1,4 @@
+package pt.ua.tqs.hw1.boundary;
+
+public class IdempotencyKeyReusedException extends RuntimeException {
+}
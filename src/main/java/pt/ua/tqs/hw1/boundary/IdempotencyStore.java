@@ -0,0 +1,172 @@
+package pt.ua.tqs.hw1.boundary;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Remembers the response given to each Idempotency-Key for a while, so a client retrying
+// the same submission gets the original answer instead of a second booking.
+// Answers that ask the client to try again (5xx, 429) aren't remembered, or the retry would get them too.
+// There are no client accounts to scope keys by, so each key also remembers a hash of the body it came
+// with, and a different body under the same key is refused instead of getting someone else's answer
+@Component
+public class IdempotencyStore {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    private record Entry(byte[] bodyHash, CompletableFuture<ResponseEntity<Object>> response, long expiresAt) {
+    }
+
+    // In insertion order, which with a single TTL is also expiry order. Guarded by lock
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final long ttlNanos;
+
+    private final int maxEntries;
+
+    private final long waitMillis;
+
+    public IdempotencyStore(@Value("${zeromonos.idempotency.ttl:PT10M}") Duration ttl,
+            @Value("${zeromonos.idempotency.max-entries:10000}") int maxEntries,
+            @Value("${zeromonos.idempotency.wait-timeout:PT10S}") Duration waitTimeout) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxEntries = maxEntries;
+        this.waitMillis = waitTimeout.toMillis();
+    }
+
+    // Runs the action once per key; concurrent calls with the same key wait for that one run, up to the
+    // wait timeout (IdempotencyKeyInProgressException). A different body gets IdempotencyKeyReusedException
+    public ResponseEntity<Object> execute(String key, byte[] body, Supplier<ResponseEntity<Object>> action) {
+        long now = System.nanoTime();
+        Entry created = new Entry(hash(body), new CompletableFuture<>(), now + ttlNanos);
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry == null || entry.expiresAt() - now < 0) {
+                // Removed first so the new entry goes to the end of the order
+                entries.remove(key);
+                entries.put(key, created);
+                entry = created;
+                evictIfFull();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry != created) {
+            if (!MessageDigest.isEqual(entry.bodyHash(), created.bodyHash())) {
+                log.warn("Idempotency key {} reused with a different body", key);
+                throw new IdempotencyKeyReusedException();
+            }
+            log.info("Replaying response for idempotency key {}", key);
+            try {
+                // A copy, timing out must not fail the run itself for everyone else
+                return entry.response().copy().orTimeout(waitMillis, TimeUnit.MILLISECONDS).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof TimeoutException) {
+                    log.warn("Gave up waiting on the first request with idempotency key {}", key);
+                    throw new IdempotencyKeyInProgressException();
+                }
+                throw (RuntimeException) e.getCause();
+            }
+        }
+
+        try {
+            ResponseEntity<Object> response = action.get();
+            if (isRetryable(response)) {
+                // Callers already waiting get it too, but the next retry runs the action again
+                remove(key, created);
+            }
+            created.response().complete(response);
+            return response;
+        } catch (RuntimeException e) {
+            // Nothing was answered, so let a retry run it again
+            remove(key, created);
+            created.response().completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "PT1M")
+    public void evictExpired() {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.expiresAt() - now >= 0) {
+                    // Everything after it expires later
+                    return;
+                }
+                if (entry.response().isDone()) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] hash(byte[] body) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isRetryable(ResponseEntity<Object> response) {
+        return response.getStatusCode().is5xxServerError() || response.getStatusCode().isSameCodeAs(HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    private void remove(String key, Entry entry) {
+        lock.lock();
+        try {
+            entries.remove(key, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the oldest finished entries until back within the limit. The ones still running are
+    // skipped, they are at most one per request in flight. Called holding lock
+    private void evictIfFull() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            if (iterator.next().response().isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package pt.ua.tqs.hw1.boundary;
 
 import org.springframework.web.bind.annotation.RestController;
+import pt.ua.tqs.hw1.data.ListingVersion;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.RequestSummary;
 import pt.ua.tqs.hw1.data.ServiceRequest;
 import pt.ua.tqs.hw1.service.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
 import java.util.function.LongFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 @RequestMapping("/api")
@@ -19,10 +33,32 @@ public class RequestController {
 
     private static final Logger log = LoggerFactory.getLogger(RequestController.class);
     private static final String ERROR_KEY = "error"; 
+    private static final String INVALID_DATE_MSG = "the request date is invalid";
+    private static final int SUGGESTED_DAYS = 3;
+    private static final int DEFAULT_AVAILABILITY_DAYS = 14;
+    private static final int DEFAULT_HISTORY_LIMIT = 100;
+    private static final int MAX_HISTORY_LIMIT = 1000;
+    private static final int DEFAULT_PAGE_LIMIT = 100;
+    private static final int MAX_PAGE_LIMIT = 1000;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String NEXT_CURSOR_HEADER = "Next-Cursor";
+    private static final String OVERFLOW_MSG = "too many requests for this day and place have already been booked";
+    private static final String WRITE_FAILED_MSG = "the request could not be saved, please submit it again";
+    private static final String NOT_FOUND_MSG = "request not found";
+    private static final String INVALID_STATE_MSG = "request isn't in a valid state ";
     private final RequestService requestService;
+    private final IdempotencyStore idempotencyStore;
+    private final WriteBehindQueue writeBehindQueue;
+    private final ObjectMapper objectMapper;
+    private final LifecycleReplay lifecycleReplay;
 
-    public RequestController(RequestService requestService) {
+    public RequestController(RequestService requestService, IdempotencyStore idempotencyStore, WriteBehindQueue writeBehindQueue,
+            ObjectMapper objectMapper, LifecycleReplay lifecycleReplay) {
         this.requestService = requestService;
+        this.idempotencyStore = idempotencyStore;
+        this.writeBehindQueue = writeBehindQueue;
+        this.objectMapper = objectMapper;
+        this.lifecycleReplay = lifecycleReplay;
     }
 
     private ResponseEntity<Object> requestNotFoundResponse() {
@@ -50,45 +86,198 @@ public class RequestController {
         }
     }
 
+    private ResponseEntity<Object> handleBulkOperation(List<Long> tokens, RequestTransition transition) {
+        List<TransitionOutcome> outcomes = requestService.transitionRequests(tokens, transition);
+        List<Map<String, Object>> results = outcomes.stream()
+                .map(outcome -> outcome.isUpdated()
+                        ? Map.<String, Object>of("token", outcome.token(), "state", outcome.updated().getState())
+                        : Map.<String, Object>of("token", outcome.token(),
+                                ERROR_KEY, outcome.rejection() instanceof RequestNotFoundException ? NOT_FOUND_MSG : INVALID_STATE_MSG + transition.description()))
+                .toList();
+        log.info("Bulk {} processed, {} of {} requests updated", transition.path(), outcomes.stream().filter(TransitionOutcome::isUpdated).count(), tokens.size());
+        return ResponseEntity.ok(results);
+    }
+
     @PostMapping("/submit")
-    public ResponseEntity<Object> submitRequest(@RequestBody ServiceRequest request) {
+    public ResponseEntity<Object> submitRequest(@RequestBody ServiceRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
         log.info("/submit POST request received");
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return doSubmitRequest(request);
+        }
         try {
+            return idempotencyStore.execute(idempotencyKey, objectMapper.writeValueAsBytes(request), () -> doSubmitRequest(request));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (IdempotencyKeyReusedException e) {
+            return ResponseEntity.unprocessableEntity().body(Map.of(ERROR_KEY, "this Idempotency-Key was already used for a different request"));
+        } catch (IdempotencyKeyInProgressException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).header(HttpHeaders.RETRY_AFTER, "1")
+                    .body(Map.of(ERROR_KEY, "a request with this Idempotency-Key is still being processed, please retry shortly"));
+        }
+    }
+
+    private ResponseEntity<Object> doSubmitRequest(ServiceRequest request) {
+        try {
+            if (writeBehindQueue.isEnabled()) {
+                ServiceRequest queued = writeBehindQueue.submit(request);
+                log.info("Request queued with token={}", queued.getToken());
+                return ResponseEntity.accepted().body(queued);
+            }
+
             ServiceRequest saved = requestService.submitRequest(request);
             log.info("Request successfully created with token={} and state={}", saved.getToken(), saved.getState());
             return new ResponseEntity<>(saved, HttpStatus.CREATED);
         } catch (InvalidRequestDateException e) {
             log.warn("Invalid request date: {}", e.getMessage());
-            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "the request date is invalid"));
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, INVALID_DATE_MSG));
         } catch (RequestOverflowException e) {
             log.warn("Request overflow: {}", e.getMessage());
-            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "too many requests for this day and place have already been booked"));
+            // Tell the client where there is still room, instead of having it guess
+            List<LocalDate> available = requestService.getNextAvailableDays(request.getMunicipality(), request.getDate().toLocalDate(), SUGGESTED_DAYS);
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, OVERFLOW_MSG, "available", available));
+        } catch (SubmissionQueueFullException e) {
+            log.warn("Write-behind queue full, asking client to retry");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1")
+                    .body(Map.of(ERROR_KEY, "the server is busy, please retry shortly"));
+        }
+    }
+
+    @PostMapping("/submit/batch")
+    public ResponseEntity<Object> submitRequests(@RequestBody List<ServiceRequest> requests) {
+        log.info("/submit/batch POST request received with {} requests", requests.size());
+        try {
+            List<SubmissionOutcome> outcomes = requestService.submitRequests(requests);
+            List<Map<String, Object>> results = outcomes.stream()
+                    .map(outcome -> outcome.isAccepted()
+                            ? Map.<String, Object>of("token", outcome.saved().getToken())
+                            : Map.<String, Object>of(ERROR_KEY, outcome.rejection() instanceof RequestOverflowException ? OVERFLOW_MSG : INVALID_DATE_MSG))
+                    .toList();
+            log.info("Batch processed, {} of {} requests created", outcomes.stream().filter(SubmissionOutcome::isAccepted).count(), requests.size());
+            return ResponseEntity.ok(results);
+        } catch (BookingConflictException e) {
+            log.warn("Batch conflicted with concurrent bookings");
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of(ERROR_KEY, "some of these days were booked at the same time, please retry"));
         }
     }
 
+    @GetMapping("/availability")
+    public ResponseEntity<Object> getAvailability(@RequestParam String municipality,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        log.info("/availability GET request");
+        LocalDate start = from == null ? LocalDate.now() : from;
+        LocalDate end = to == null ? start.plusDays(DEFAULT_AVAILABILITY_DAYS) : to;
+        try {
+            return ResponseEntity.ok(requestService.getAvailability(municipality, start, end));
+        } catch (InvalidRequestDateException e) {
+            log.warn("Invalid availability range {} to {}", start, end);
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "invalid date range"));
+        }
+    }
+
+    // Requests per state for each municipality and day, today's unless a range is given
+    @GetMapping("/stats")
+    public ResponseEntity<Object> getStateCounts(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        log.info("/stats GET request");
+        LocalDate start = from == null ? LocalDate.now() : from;
+        LocalDate end = to == null ? start : to;
+        try {
+            return ResponseEntity.ok(requestService.getStateCounts(start, end));
+        } catch (InvalidRequestDateException e) {
+            log.warn("Invalid stats range {} to {}", start, end);
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "invalid date range"));
+        }
+    }
+
+    // Keyset pagination, Next-Cursor is the afterToken for the next page.
+    // ?history=true adds each request's state changes
     @GetMapping("/requests")
-    public ResponseEntity<List<ServiceRequest>> getRequests() {
+    public ResponseEntity<Object> getRequests(@RequestParam(defaultValue = "0") long afterToken,
+            @RequestParam(defaultValue = "" + DEFAULT_PAGE_LIMIT) int limit,
+            @RequestParam(defaultValue = "false") boolean history) {
         log.info("/requests GET request");
-        List<ServiceRequest> requests = requestService.getRequests();
-        log.info("Returning {} total requests", requests.size());
-        return new ResponseEntity<>(requests, HttpStatus.OK);
+        if (afterToken < 0 || limit < 1) {
+            log.warn("Invalid requests cursor afterToken={} limit={}", afterToken, limit);
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "invalid cursor"));
+        }
+        List<RequestSummary> requests = requestService.getRequests(afterToken, Math.min(limit, MAX_PAGE_LIMIT), history);
+        long next = requests.isEmpty() ? afterToken : requests.get(requests.size() - 1).token();
+        log.info("Returning {} requests", requests.size());
+        return ResponseEntity.ok().header(NEXT_CURSOR_HEADER, String.valueOf(next)).body(requests);
+    }
+
+    // Tokens of the requests whose description has every word of q, best match first.
+    // Accents and case don't matter, so "sofa" finds "Sofá"
+    @GetMapping("/requests/search")
+    public ResponseEntity<Object> searchRequests(@RequestParam String q,
+            @RequestParam(required = false) String municipality,
+            @RequestParam(required = false) RequestState state,
+            @RequestParam(defaultValue = "" + DEFAULT_PAGE_LIMIT) int limit) {
+        log.info("/requests/search GET request");
+        if (q.isBlank() || limit < 1) {
+            log.warn("Invalid search limit={}", limit);
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "invalid search"));
+        }
+        return ResponseEntity.ok(requestService.searchRequests(q, municipality, state, Math.min(limit, MAX_PAGE_LIMIT)));
+    }
+
+    // Every request as newline-delimited JSON, written as it is read so memory stays flat
+    @GetMapping(value = "/requests/export", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> exportRequests() {
+        log.info("/requests/export GET request");
+        StreamingResponseBody body = out -> requestService.exportRequests(request -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(request));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
     }
 
     @GetMapping("/requests/municipalities/{municipality}")
-    public ResponseEntity<List<ServiceRequest>> getRequestsInMunicipality(@PathVariable String municipality) {
+    public ResponseEntity<List<RequestSummary>> getRequestsInMunicipality(@PathVariable String municipality,
+            @RequestParam(defaultValue = "false") boolean history, WebRequest webRequest) {
         log.info("/requests/municipalities/municipality GET request");
-        List<ServiceRequest> requests = requestService.getRequests(municipality);
-        return new ResponseEntity<>(requests, HttpStatus.OK);
+        String eTag = listingETag(requestService.getListingVersion(municipality));
+        if (webRequest.checkNotModified(eTag)) {
+            log.info("Requests in {} not modified", municipality);
+            return null;
+        }
+        List<RequestSummary> requests = requestService.getRequests(municipality, history);
+        return ResponseEntity.ok().eTag(eTag).cacheControl(CacheControl.noCache()).body(requests);
     }
 
     @GetMapping("/requests/{id}")
-    public ResponseEntity<Object> getRequest(@PathVariable("id") String token) {
+    public ResponseEntity<Object> getRequest(@PathVariable("id") String token, WebRequest webRequest) {
         log.info("/requests/id GET request");
         try {
-            ServiceRequest req = requestService.getRequest(Long.valueOf(token));
+            long parsed = Long.parseLong(token);
+            // Accepted in write-behind mode but not written yet
+            var queued = writeBehindQueue.findPending(parsed);
+            if (queued.isPresent()) {
+                log.info("Request with token={} is still queued for writing", token);
+                return ResponseEntity.accepted().body(queued.get());
+            }
+
+            if (isConditional(webRequest) && isNotModified(webRequest, parsed)) {
+                log.info("Request with token={} not modified", token);
+                return null;
+            }
+            ServiceRequest req = requestService.getRequest(parsed);
             log.info("Request found with token={}, state={}", req.getToken(), req.getState());
-            return ResponseEntity.ok(req);
+            return ResponseEntity.ok().eTag(requestETag(parsed, req.getVersion())).cacheControl(CacheControl.noCache()).body(req);
         } catch (RequestNotFoundException e) {
+            var failure = writeBehindQueue.findFailure(Long.parseLong(token));
+            if (failure.isPresent()) {
+                log.warn("Queued request with token={} was not written: {}", token, failure.get());
+                String message = failure.get() == QueuedWriteFailure.SLOT_TAKEN ? OVERFLOW_MSG : WRITE_FAILED_MSG;
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of(ERROR_KEY, message));
+            }
             log.warn("Request with token={} not found", token);
             return requestNotFoundResponse();
         } catch (NumberFormatException e) {
@@ -96,12 +285,28 @@ public class RequestController {
         }
     }
 
+    // Paged by cursor: the response's Next-Cursor header is the "after" to ask for next,
+    // so a polling client only gets the transitions it hasn't seen
     @GetMapping("/requests/{id}/states")
-    public ResponseEntity<Object> getRequestStates(@PathVariable("id") String token) {
+    public ResponseEntity<Object> getRequestStates(@PathVariable("id") String token,
+            @RequestParam(defaultValue = "0") int after,
+            @RequestParam(defaultValue = "" + DEFAULT_HISTORY_LIMIT) int limit, WebRequest webRequest) {
         log.info("/requests/id/states GET request");
+        if (after < 0 || limit < 1) {
+            log.warn("Invalid history cursor after={} limit={}", after, limit);
+            return ResponseEntity.badRequest().body(Map.of(ERROR_KEY, "invalid cursor"));
+        }
         try {
-            var states = requestService.getStateChanges(Long.valueOf(token));
-            return ResponseEntity.ok(states);
+            long parsed = Long.parseLong(token);
+            // Every state change moves the request's version on, so it versions the history too
+            if (isNotModified(webRequest, parsed)) {
+                log.info("History of request with token={} not modified", token);
+                return null;
+            }
+            var states = requestService.getStateChanges(parsed, after, Math.min(limit, MAX_HISTORY_LIMIT));
+            int next = states.isEmpty() ? after : states.get(states.size() - 1).getSeq();
+            return ResponseEntity.ok().cacheControl(CacheControl.noCache())
+                    .header(NEXT_CURSOR_HEADER, String.valueOf(next)).body(states);
         } catch (RequestNotFoundException e) {
             log.warn("Request with token={} not found for state history", token);
             return requestNotFoundResponse();
@@ -110,27 +315,76 @@ public class RequestController {
         }
     }
 
-    @PutMapping("/requests/{id}/cancel")
-    public ResponseEntity<Object> cancelRequest(@PathVariable("id") String token) {
-        log.info("/requests/id/cancel PUT request");
-        return handleRequestOperation(token, requestService::cancelRequest, "request isn't in a valid state to be cancelled");
+    // The ETags come from version numbers, so If-None-Match is answered with 304 before
+    // any request is loaded or serialised. Sent with no-cache, so browsers always revalidate
+    private static String requestETag(long token, Long version) {
+        return "\"" + token + "-" + version + "\"";
     }
 
-    @PutMapping("/requests/{id}/assign")
-    public ResponseEntity<Object> assignRequest(@PathVariable("id") String token) {
-        log.info("/requests/id/assign PUT request");
-        return handleRequestOperation(token, requestService::assignRequest, "request isn't in a valid state to be assigned");
+    private static String listingETag(ListingVersion listing) {
+        return "\"" + listing.version() + "-" + (listing.firstDate() == null ? "empty" : listing.firstDate()) + "\"";
     }
 
-    @PutMapping("/requests/{id}/start")
-    public ResponseEntity<Object> startRequest(@PathVariable("id") String token) {
-        log.info("/requests/id/start PUT request");
-        return handleRequestOperation(token, requestService::startRequest, "request isn't in a valid state to start");
+    private static boolean isConditional(WebRequest webRequest) {
+        return webRequest.getHeader(HttpHeaders.IF_NONE_MATCH) != null;
     }
 
-    @PutMapping("/requests/{id}/end")
-    public ResponseEntity<Object> completeRequest(@PathVariable("id") String token) {
-        log.info("/requests/id/end PUT request");
-        return handleRequestOperation(token, requestService::completeRequest, "request isn't in a valid state to end");
+    // Also sets the ETag on the response when it is modified
+    private boolean isNotModified(WebRequest webRequest, long token) {
+        var version = requestService.getRequestVersion(token);
+        return version.isPresent() && webRequest.checkNotModified(requestETag(token, version.get()));
+    }
+
+    // One mapping for every move in the state machine, e.g. PUT /requests/42/assign
+    @PutMapping("/requests/{id}/{action}")
+    public ResponseEntity<Object> transitionRequest(@PathVariable("id") String token, @PathVariable String action) {
+        log.info("/requests/id/{} PUT request", action);
+        var transition = RequestTransition.fromPath(action);
+        if (transition.isEmpty()) {
+            log.warn("Unknown transition {}", action);
+            return ResponseEntity.notFound().build();
+        }
+        return handleRequestOperation(token, id -> requestService.transitionRequest(id, transition.get()),
+                INVALID_STATE_MSG + transition.get().description());
+    }
+
+    @PutMapping("/requests/bulk/{action}")
+    public ResponseEntity<Object> transitionRequests(@PathVariable String action, @RequestBody List<Long> tokens) {
+        log.info("/requests/bulk/{} PUT request with {} tokens", action, tokens.size());
+        var transition = RequestTransition.fromPath(action);
+        if (transition.isEmpty()) {
+            log.warn("Unknown transition {}", action);
+            return ResponseEntity.notFound().build();
+        }
+        return handleBulkOperation(tokens, transition.get());
+    }
+
+    @GetMapping("/metrics/transitions")
+    public ResponseEntity<List<TransitionStats>> getTransitionStats() {
+        log.info("/metrics/transitions GET request");
+        return ResponseEntity.ok(requestService.getTransitionStats());
+    }
+
+    @GetMapping("/metrics/request-cache")
+    public ResponseEntity<RequestCacheStats> getRequestCacheStats() {
+        log.info("/metrics/request-cache GET request");
+        return ResponseEntity.ok(requestService.getRequestCacheStats());
+    }
+
+    // Rebuilds every state snapshot from the lifecycle log, see LifecycleReplay before running it
+    @PostMapping("/admin/lifecycle/replay")
+    public ResponseEntity<Object> replayLifecycle() {
+        log.info("/admin/lifecycle/replay POST request");
+        return ResponseEntity.ok(Map.of("rebuilt", lifecycleReplay.rebuildAll()));
+    }
+
+    @PostMapping("/admin/lifecycle/replay/{id}")
+    public ResponseEntity<Object> replayLifecycle(@PathVariable("id") String token) {
+        log.info("/admin/lifecycle/replay/id POST request");
+        try {
+            return ResponseEntity.ok(Map.of("rebuilt", lifecycleReplay.rebuild(Long.parseLong(token)) ? 1 : 0));
+        } catch (NumberFormatException e) {
+            return invalidTokenResponse();
+        }
     }
 }
@@ -0,0 +1,288 @@
+package pt.ua.tqs.hw1.boundary;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+import jakarta.annotation.PreDestroy;
+import pt.ua.tqs.hw1.data.RequestSummary;
+import pt.ua.tqs.hw1.service.RequestLogEvent;
+
+// Pushes request events to the SSE subscribers they concern. The events come from the lifecycle log
+// (RequestEventSync), so every node sends the same ones, under ids made from the log entry: a client
+// can reconnect to any node with its Last-Event-ID.
+// Publishing only puts the event in each subscriber's buffer, so a transaction never waits on a client.
+// While a subscriber has something to send, a virtual thread of its own does the writing: a client
+// that stops reading only holds up its own stream, and no thread is held by an idle one.
+// A subscriber whose buffer fills up is disconnected, and catches up from the recent events
+// when the browser reconnects with Last-Event-ID.
+@Component
+public class RequestEventBroadcaster {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestEventBroadcaster.class);
+
+    static final String REQUEST_EVENT = "request";
+
+    // Sent when the events after Last-Event-ID are gone, the client has to load everything again
+    static final String RESET_EVENT = "reset";
+
+    // A log entry's position: when it was logged, then the entry itself for the ones logged together.
+    // Sent as "<microseconds>-<token>-<seq>"
+    private record EventId(LocalDateTime loggedAt, long token, int seq) {
+
+        private static final Comparator<EventId> ORDER = Comparator.comparing(EventId::loggedAt)
+                .thenComparingLong(EventId::token).thenComparingInt(EventId::seq);
+
+        private static EventId parse(String value) {
+            String[] parts = value.split("-");
+            try {
+                if (parts.length == 3) {
+                    LocalDateTime loggedAt = LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC).plus(Long.parseLong(parts[0]), ChronoUnit.MICROS);
+                    return new EventId(loggedAt, Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                }
+            } catch (NumberFormatException e) {
+                // Not one of ours, e.g. from before ids came from the log
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return ChronoUnit.MICROS.between(LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC), loggedAt) + "-" + token + "-" + seq;
+        }
+    }
+
+    private record Published(EventId id, RequestSummary request) {
+    }
+
+    private final class Subscriber {
+        private final SseEmitter emitter;
+        private final Predicate<RequestSummary> filter;
+        private final Queue<SseEventBuilder> buffer;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        // Set when it's dropped. Its own writer completes the emitter, which waits for any write in progress
+        private volatile boolean closed;
+        // Only touched by the writer
+        private boolean completed;
+
+        private Subscriber(SseEmitter emitter, Predicate<RequestSummary> filter) {
+            this.emitter = emitter;
+            this.filter = filter;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+    }
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    // The last events, in the order they arrived, for clients reconnecting
+    private final Deque<Published> recent = new ArrayDeque<>();
+
+    // recent has every entry logged after this (older ones were dropped, or came before this node started)
+    private LocalDateTime coveredFrom = LocalDateTime.now();
+
+    // Orders replay and fan-out. Not synchronized: on JDK 21 a virtual thread waiting for a
+    // monitor holds on to its carrier, and subscribing request threads come through here
+    private final Lock lock = new ReentrantLock();
+
+    private final ExecutorService sender;
+
+    private final int bufferSize;
+
+    private final int replaySize;
+
+    private final long timeoutMillis;
+
+    // How late an entry can show up in the log after the ones logged after it (see RequestEventSync)
+    private final Duration lag;
+
+    public RequestEventBroadcaster(@Value("${zeromonos.events.buffer-size:64}") int bufferSize,
+            @Value("${zeromonos.events.replay-size:1000}") int replaySize,
+            @Value("${zeromonos.events.timeout:PT30M}") Duration timeout,
+            @Value("${zeromonos.events.sync-lag:PT5S}") Duration lag) {
+        this.sender = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sse-sender-", 0).factory());
+        this.bufferSize = bufferSize;
+        this.replaySize = replaySize;
+        this.timeoutMillis = timeout.toMillis();
+        this.lag = lag;
+    }
+
+    // lastEventId is the Last-Event-ID of a reconnecting client, or null
+    public SseEmitter subscribe(Predicate<RequestSummary> filter, String lastEventId) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, filter);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+
+        lock.lock();
+        try {
+            // Sends the headers right away, so the client knows it's listening
+            subscriber.buffer.offer(SseEmitter.event().comment("subscribed"));
+            if (lastEventId != null) {
+                replay(subscriber, lastEventId);
+            }
+            subscribers.add(subscriber);
+        } finally {
+            lock.unlock();
+        }
+        schedule(subscriber);
+        log.info("SSE subscriber added, {} open", subscribers.size());
+        return emitter;
+    }
+
+    // Entries logged shortly before the last one seen may have shown up after it (on this node or the one
+    // the client was on), so everything from lag before it is sent again, in log order. Clients keep the
+    // latest state of each request, so the repeats are harmless and the last state sent is the newest
+    private void replay(Subscriber subscriber, String lastEventId) {
+        EventId last = EventId.parse(lastEventId);
+        LocalDateTime from = last == null ? null : last.loggedAt().minus(lag);
+        if (from == null || !from.isAfter(coveredFrom)) {
+            subscriber.buffer.offer(resetEvent());
+            return;
+        }
+        List<Published> missed = recent.stream()
+                .filter(published -> !published.id().loggedAt().isBefore(from) && subscriber.filter.test(published.request()))
+                .sorted(Comparator.comparing(Published::id, EventId.ORDER))
+                .toList();
+        for (Published published : missed) {
+            if (!subscriber.buffer.offer(toEvent(published))) {
+                // Too far behind to replay through the buffer
+                subscriber.buffer.clear();
+                subscriber.buffer.offer(resetEvent());
+                return;
+            }
+        }
+    }
+
+    // With the newest id there is, so the client's next reconnect starts from here
+    private SseEventBuilder resetEvent() {
+        SseEventBuilder reset = SseEmitter.event().name(RESET_EVENT).data("");
+        recent.stream().map(Published::id).max(EventId.ORDER).ifPresent(id -> reset.id(id.toString()));
+        return reset;
+    }
+
+    // Only committed entries are in the log, so clients never hear about a change that was rolled back
+    @EventListener
+    public void onRequestLogEvent(RequestLogEvent event) {
+        lock.lock();
+        try {
+            Published published = new Published(new EventId(event.loggedAt(), event.token(), event.seq()), event.request());
+            recent.addLast(published);
+            if (recent.size() > replaySize) {
+                LocalDateTime dropped = recent.removeFirst().id().loggedAt();
+                if (dropped.isAfter(coveredFrom)) {
+                    coveredFrom = dropped;
+                }
+            }
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.filter.test(published.request())) {
+                    deliver(subscriber, toEvent(published));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Keeps idle streams from being closed by proxies, and finds the clients that went away
+    @Scheduled(fixedDelayString = "${zeromonos.events.heartbeat:PT15S}")
+    public void heartbeat() {
+        for (Subscriber subscriber : subscribers) {
+            deliver(subscriber, SseEmitter.event().comment("heartbeat"));
+        }
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    // Before the web server's graceful shutdown, which would otherwise wait on the open streams
+    @EventListener(ContextClosedEvent.class)
+    public void disconnectAll() {
+        subscribers.forEach(this::close);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sender.shutdownNow();
+    }
+
+    private static SseEventBuilder toEvent(Published published) {
+        return SseEmitter.event().id(String.valueOf(published.id())).name(REQUEST_EVENT)
+                .data(published.request(), MediaType.APPLICATION_JSON);
+    }
+
+    private void deliver(Subscriber subscriber, SseEventBuilder event) {
+        if (!subscriber.buffer.offer(event)) {
+            log.warn("SSE subscriber is {} events behind, disconnecting it", bufferSize);
+            close(subscriber);
+            return;
+        }
+        schedule(subscriber);
+    }
+
+    private void close(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        subscriber.closed = true;
+        schedule(subscriber);
+    }
+
+    // At most one writer works on a subscriber at a time, so its events go out in order
+    private void schedule(Subscriber subscriber) {
+        if (!sender.isShutdown() && subscriber.sending.compareAndSet(false, true)) {
+            sender.execute(() -> send(subscriber));
+        }
+    }
+
+    private void send(Subscriber subscriber) {
+        try {
+            SseEventBuilder event;
+            while (!subscriber.closed && (event = subscriber.buffer.poll()) != null) {
+                subscriber.emitter.send(event);
+            }
+            if (subscriber.closed && !subscriber.completed) {
+                subscriber.completed = true;
+                subscriber.emitter.complete();
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.info("SSE subscriber went away");
+            subscribers.remove(subscriber);
+            subscriber.completed = true;
+            subscriber.emitter.completeWithError(e);
+        } finally {
+            subscriber.sending.set(false);
+        }
+        // Something may have arrived, or it may have been closed, after the last check
+        boolean pending = subscriber.closed ? !subscriber.completed : !subscriber.buffer.isEmpty() && subscribers.contains(subscriber);
+        if (pending) {
+            schedule(subscriber);
+        }
+    }
+}
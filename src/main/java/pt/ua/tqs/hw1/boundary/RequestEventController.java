@@ -0,0 +1,42 @@
+package pt.ua.tqs.hw1.boundary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+// Server-sent events instead of polling: staff follow a municipality, citizens follow their token.
+// Browsers reconnect on their own, to this node or another, and send Last-Event-ID, so nothing is missed in between
+@RestController
+@RequestMapping("/api/events")
+public class RequestEventController {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestEventController.class);
+
+    private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+
+    private final RequestEventBroadcaster broadcaster;
+
+    public RequestEventController(RequestEventBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    @GetMapping(path = "/municipalities/{municipality}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter followMunicipality(@PathVariable String municipality,
+            @RequestHeader(name = LAST_EVENT_ID_HEADER, required = false) String lastEventId) {
+        log.info("/events/municipalities/municipality GET request");
+        return broadcaster.subscribe(request -> municipality.equals(request.municipality()), lastEventId);
+    }
+
+    @GetMapping(path = "/requests/{id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter followRequest(@PathVariable("id") long token,
+            @RequestHeader(name = LAST_EVENT_ID_HEADER, required = false) String lastEventId) {
+        log.info("/events/requests/id GET request");
+        return broadcaster.subscribe(request -> request.token() == token, lastEventId);
+    }
+}
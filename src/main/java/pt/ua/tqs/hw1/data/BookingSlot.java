@@ -0,0 +1,100 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+
+import org.springframework.data.domain.Persistable;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Index;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+
+// One row per booked slot; the primary key is what stops two nodes from taking the same slot
+@Entity
+@Table(name = "booking_slot", indexes = @Index(name = "idx_booking_slot_request", columnList = "request_token"))
+@IdClass(BookingSlotId.class)
+public class BookingSlot implements Persistable<BookingSlotId> {
+
+    @Id
+    @Column(nullable = false)
+    private String municipality;
+
+    @Id
+    @Column(name = "booking_day", nullable = false)
+    private LocalDate day;
+
+    @Id
+    @Column(name = "slot_number", nullable = false)
+    private int slot;
+
+    // Null while the slot is held but the request hasn't been saved yet
+    @Column(name = "request_token")
+    private Long requestToken;
+
+    // The key is assigned by us, so without this saving a new slot would SELECT it first
+    @Transient
+    private boolean isNew = true;
+
+    public BookingSlot() {
+    }
+
+    public BookingSlot(String municipality, LocalDate day, int slot, Long requestToken) {
+        this.municipality = municipality;
+        this.day = day;
+        this.slot = slot;
+        this.requestToken = requestToken;
+    }
+
+    public String getMunicipality() {
+        return municipality;
+    }
+
+    public void setMunicipality(String municipality) {
+        this.municipality = municipality;
+    }
+
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public void setDay(LocalDate day) {
+        this.day = day;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    public Long getRequestToken() {
+        return requestToken;
+    }
+
+    public void setRequestToken(Long requestToken) {
+        this.requestToken = requestToken;
+    }
+
+    @Override
+    public BookingSlotId getId() {
+        return new BookingSlotId(municipality, day, slot);
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.isNew = false;
+    }
+}
@@ -0,0 +1,56 @@
+package pt.ua.tqs.hw1.data;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+public class BookingSlotId implements Serializable {
+
+    private String municipality;
+
+    private LocalDate day;
+
+    private int slot;
+
+    public BookingSlotId() {
+    }
+
+    public BookingSlotId(String municipality, LocalDate day, int slot) {
+        this.municipality = municipality;
+        this.day = day;
+        this.slot = slot;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((municipality == null) ? 0 : municipality.hashCode());
+        result = prime * result + ((day == null) ? 0 : day.hashCode());
+        result = prime * result + slot;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        BookingSlotId other = (BookingSlotId) obj;
+        if (slot != other.slot)
+            return false;
+        if (municipality == null) {
+            if (other.municipality != null)
+                return false;
+        } else if (!municipality.equals(other.municipality))
+            return false;
+        if (day == null) {
+            if (other.day != null)
+                return false;
+        } else if (!day.equals(other.day))
+            return false;
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface BookingSlotRepository extends JpaRepository<BookingSlot, BookingSlotId>, BookingSlotWriter {
+
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.DailyCount(s.municipality, s.day, COUNT(s))
+            FROM BookingSlot s
+            WHERE s.municipality = :municipality AND s.day BETWEEN :from AND :to
+            GROUP BY s.municipality, s.day
+            """)
+    public List<DailyCount> countByDay(@Param("municipality") String municipality, @Param("from") LocalDate from, @Param("to") LocalDate to);
+
+    public List<BookingSlot> findByMunicipalityInAndDayIn(Collection<String> municipalities, Collection<LocalDate> days);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM BookingSlot s WHERE s.requestToken = :token")
+    public int releaseSlot(@Param("token") long token);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM BookingSlot s WHERE s.requestToken IN :tokens")
+    public int releaseSlots(@Param("tokens") Collection<Long> tokens);
+}
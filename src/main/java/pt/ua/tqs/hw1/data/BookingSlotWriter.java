@@ -0,0 +1,10 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+
+// BookingSlotRepository operations that Spring Data can't express
+public interface BookingSlotWriter {
+
+    // Takes the lowest free slot below the capacity, returns 0 when the day is full
+    public int claimSlot(String municipality, LocalDate day, long token, int capacity);
+}
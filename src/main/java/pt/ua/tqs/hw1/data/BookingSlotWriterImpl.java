@@ -0,0 +1,44 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+
+import org.hibernate.exception.ConstraintViolationException;
+import org.springframework.transaction.annotation.Transactional;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+public class BookingSlotWriterImpl implements BookingSlotWriter {
+
+    // Each retry means another transaction just took a slot, so a few cover all but a stampede
+    private static final int MAX_CLAIM_ATTEMPTS = 3;
+
+    // Takes the lowest free slot below the capacity in a single statement (inserts nothing when the day is full).
+    // The lowest free slot is always 0 or right after a taken one, so only those are candidates.
+    // Two transactions picking the same slot are stopped by the primary key, and the loser tries again
+    private static final String CLAIM_SLOT = """
+            INSERT INTO booking_slot (municipality, booking_day, slot_number, request_token)
+            SELECT CAST(? AS VARCHAR(255)), CAST(? AS DATE), MIN(c.slot_number), CAST(? AS BIGINT)
+            FROM (
+                SELECT 0 AS slot_number
+                UNION ALL
+                SELECT b.slot_number + 1 FROM booking_slot b WHERE b.municipality = ? AND b.booking_day = ?
+            ) c
+            WHERE c.slot_number < ?
+              AND NOT EXISTS (SELECT 1 FROM booking_slot t
+                              WHERE t.municipality = ? AND t.booking_day = ? AND t.slot_number = c.slot_number)
+            HAVING MIN(c.slot_number) IS NOT NULL
+            """;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // A failed claim has already been undone to its savepoint, so it doesn't doom the caller's transaction.
+    // Translation into DataIntegrityViolationException happens further out, here it is still Hibernate's
+    @Override
+    @Transactional(noRollbackFor = ConstraintViolationException.class)
+    public int claimSlot(String municipality, LocalDate day, long token, int capacity) {
+        return DuplicateKeyRetry.executeUpdate(entityManager, MAX_CLAIM_ATTEMPTS, CLAIM_SLOT,
+                municipality, day, token, municipality, day, capacity, municipality, day);
+    }
+}
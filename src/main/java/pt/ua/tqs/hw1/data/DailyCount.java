@@ -0,0 +1,6 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+
+public record DailyCount(String municipality, LocalDate day, long total) {
+}
@@ -0,0 +1,53 @@
+package pt.ua.tqs.hw1.data;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import jakarta.persistence.EntityManager;
+
+// Runs a native statement under a savepoint, and again when it fails on a unique key that a concurrent
+// transaction took first: by the time the error comes back that row is committed, so the next run
+// sees it. Straight on the connection, a failed Hibernate query would mark the whole transaction for
+// rollback. Prepared through Hibernate all the same, so it shows in its statistics like any other
+final class DuplicateKeyRetry {
+
+    // SQLSTATE of a unique or primary key violation
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private DuplicateKeyRetry() {
+    }
+
+    static int executeUpdate(EntityManager entityManager, int attempts, String sql, Object... parameters) {
+        SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        // Like a native query would, so the statement sees what's pending in the session
+        session.flush();
+        JdbcCoordinator jdbc = session.getJdbcCoordinator();
+        return session.doReturningWork(connection -> {
+            for (int attempt = 1;; attempt++) {
+                Savepoint savepoint = connection.setSavepoint();
+                PreparedStatement statement = jdbc.getStatementPreparer().prepareStatement(sql);
+                try {
+                    for (int i = 0; i < parameters.length; i++) {
+                        statement.setObject(i + 1, parameters[i]);
+                    }
+                    int updated = statement.executeUpdate();
+                    connection.releaseSavepoint(savepoint);
+                    return updated;
+                } catch (SQLException e) {
+                    // Undoes just this statement, the rest of the transaction carries on
+                    connection.rollback(savepoint);
+                    if (!UNIQUE_VIOLATION.equals(e.getSQLState()) || attempt >= attempts) {
+                        throw e;
+                    }
+                } finally {
+                    jdbc.getLogicalConnection().getResourceRegistry().release(statement);
+                    jdbc.afterStatementExecution();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,11 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDateTime;
+
+// A lifecycle log entry along with the token it belongs to, for reading several logs at once
+public record HistoryEntry(long token, int seq, LocalDateTime date, RequestState state) {
+
+    public RequestStateChange toStateChange() {
+        return new RequestStateChange(seq, date, state);
+    }
+}
@@ -0,0 +1,8 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDateTime;
+
+// What a municipality's listing depends on: its change version and, since the listing only has
+// requests after a given time, the first of them (the next one to drop out). Null when there's none
+public record ListingVersion(long version, LocalDateTime firstDate) {
+}
@@ -0,0 +1,14 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDateTime;
+
+// A lifecycle log entry along with the request it belongs to, for telling subscribers about it.
+// loggedAt is the entry's date, date is the request's
+public record LoggedChange(long token, int seq, LocalDateTime loggedAt, LocalDateTime date, String description,
+        String municipality, RequestState state) {
+
+    // The request as of this entry
+    public RequestSummary summary() {
+        return new RequestSummary(token, date, description, municipality, state);
+    }
+}
@@ -0,0 +1,55 @@
+package pt.ua.tqs.hw1.data;
+
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+// With zeromonos.datasource.replica.url set, read-only transactions read from that database and the
+// rest keep using spring.datasource. Without it, Spring Boot sets up the single data source as usual.
+// With open-in-view, a web request keeps the connection its first transaction took, so an endpoint
+// that writes must not read in a read-only transaction before it
+@Configuration
+@ConditionalOnProperty("zeromonos.datasource.replica.url")
+public class ReadReplicaConfiguration {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    // Pool settings (maximum-pool-size, ...) go under zeromonos.datasource.replica.hikari
+    @Bean
+    @ConfigurationProperties("zeromonos.datasource.replica.hikari")
+    public HikariDataSource replicaDataSource(@Value("${zeromonos.datasource.replica.url}") String url,
+            @Value("${zeromonos.datasource.replica.username:}") String username,
+            @Value("${zeromonos.datasource.replica.password:}") String password) {
+        HikariDataSource replica = DataSourceBuilder.create().type(HikariDataSource.class)
+                .url(url).username(username).password(password).build();
+        replica.setPoolName("replica");
+        replica.setReadOnly(true);
+        return replica;
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(HikariDataSource primaryDataSource, HikariDataSource replicaDataSource) {
+        ReplicaRouting routing = new ReplicaRouting();
+        routing.setTargetDataSources(Map.of(ReplicaRouting.Target.PRIMARY, primaryDataSource, ReplicaRouting.Target.REPLICA, replicaDataSource));
+        routing.setDefaultTargetDataSource(primaryDataSource);
+        routing.afterPropertiesSet();
+        return new LazyConnectionDataSourceProxy(routing);
+    }
+}
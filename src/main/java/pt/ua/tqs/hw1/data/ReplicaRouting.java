@@ -0,0 +1,38 @@
+package pt.ua.tqs.hw1.data;
+
+import java.util.function.Supplier;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+// Sends the connections of read-only transactions to the replica and everything else to the primary.
+// Only decides well behind a LazyConnectionDataSourceProxy: the connection has to be taken on the
+// first statement, once the transaction is marked read-only, not when it begins
+public class ReplicaRouting extends AbstractRoutingDataSource {
+
+    public enum Target {
+        PRIMARY,
+        REPLICA
+    }
+
+    private static final ThreadLocal<Boolean> ON_PRIMARY = ThreadLocal.withInitial(() -> false);
+
+    // Runs the reads on the primary even in a read-only transaction, for data the replica may not have yet.
+    // The transaction mustn't have taken its connection already
+    public static <T> T onPrimary(Supplier<T> reads) {
+        if (ON_PRIMARY.get()) {
+            return reads.get();
+        }
+        ON_PRIMARY.set(true);
+        try {
+            return reads.get();
+        } finally {
+            ON_PRIMARY.remove();
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return TransactionSynchronizationManager.isCurrentTransactionReadOnly() && !ON_PRIMARY.get() ? Target.REPLICA : Target.PRIMARY;
+    }
+}
@@ -1,23 +1,158 @@
 
 package pt.ua.tqs.hw1.data;
 
-import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import jakarta.persistence.LockModeType;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface RequestRepository extends JpaRepository<ServiceRequest, Long> {
+public interface RequestRepository extends JpaRepository<ServiceRequest, Long>, RequestWriter {
 
-    @EntityGraph(attributePaths = "stateChanges") // Makes it so stateChanges is populated
+    // Reads the snapshot only, the log stays unloaded.
+    // Read-only, so that called outside a service transaction it can go to the replica (findVersion too)
+    @Transactional(readOnly = true)
     public Optional<ServiceRequest> findByToken(long token);
 
+    // A request's lifecycle log from a given entry on, oldest first, without loading the request.
+    // A range scan over the (request, seq) primary key
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.RequestStateChange(e.seq, e.date, e.state)
+            FROM RequestStateChange e
+            WHERE e.serviceRequest.token = :token AND e.seq > :after
+            ORDER BY e.seq
+            """)
+    public List<RequestStateChange> findHistoryAfter(@Param("token") long token, @Param("after") int after, Limit limit);
+
+    // Replay: sets every snapshot that differs from the last entry of its log
+    @Modifying
+    @Query("""
+            UPDATE ServiceRequest r SET r.version = r.version + 1, r.state = (
+                SELECT e.state FROM RequestStateChange e
+                WHERE e.serviceRequest.token = r.token
+                AND e.seq = (SELECT MAX(l.seq) FROM RequestStateChange l WHERE l.serviceRequest.token = r.token))
+            WHERE r.state <> (
+                SELECT e.state FROM RequestStateChange e
+                WHERE e.serviceRequest.token = r.token
+                AND e.seq = (SELECT MAX(l.seq) FROM RequestStateChange l WHERE l.serviceRequest.token = r.token))
+            """)
+    public int rebuildSnapshots();
+
+    // Same for one request
+    @Modifying
+    @Query("""
+            UPDATE ServiceRequest r SET r.version = r.version + 1, r.state = (
+                SELECT e.state FROM RequestStateChange e
+                WHERE e.serviceRequest.token = r.token
+                AND e.seq = (SELECT MAX(l.seq) FROM RequestStateChange l WHERE l.serviceRequest.token = r.token))
+            WHERE r.token = :token AND r.state <> (
+                SELECT e.state FROM RequestStateChange e
+                WHERE e.serviceRequest.token = r.token
+                AND e.seq = (SELECT MAX(l.seq) FROM RequestStateChange l WHERE l.serviceRequest.token = r.token))
+            """)
+    public int rebuildSnapshot(@Param("token") long token);
+
+    // Just the request's own columns, for answers that don't need the history
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.ServiceRequest(r.token, r.date, r.description, r.state, r.municipality, r.version)
+            FROM ServiceRequest r
+            WHERE r.token = :token
+            """)
+    public Optional<ServiceRequest> findWithoutHistory(@Param("token") long token);
+
+    // For conditional GETs, so a request that didn't change is never loaded
+    @Transactional(readOnly = true)
+    @Query("SELECT r.version FROM ServiceRequest r WHERE r.token = :token")
+    public Optional<Long> findVersion(@Param("token") long token);
+
+    // Compare-and-set: only changes the state if it is still the expected one,
+    // so two concurrent transitions can't both succeed. Returns the number of rows changed
+    @Modifying
+    @Query("UPDATE ServiceRequest r SET r.state = :state, r.version = r.version + 1 WHERE r.token = :token AND r.state = :expected")
+    public int transitionState(@Param("token") long token, @Param("expected") RequestState expected,
+            @Param("state") RequestState state);
+
+    // Set-based version of transitionState, for tokens already checked under lock
+    @Modifying
+    @Query("UPDATE ServiceRequest r SET r.state = :state, r.version = r.version + 1 WHERE r.token IN :tokens AND r.state IN :expected")
+    public int transitionStates(@Param("tokens") Collection<Long> tokens, @Param("expected") Collection<RequestState> expected,
+            @Param("state") RequestState state);
+
+    // Locks the rows so their state can't change between checking and updating them
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT r FROM ServiceRequest r WHERE r.token IN :tokens")
+    public List<ServiceRequest> lockAllByTokenIn(@Param("tokens") Collection<Long> tokens);
+
+    // Keyset pagination: the page after a token, in token order
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.RequestSummary(r.token, r.date, r.description, r.municipality, r.state)
+            FROM ServiceRequest r
+            WHERE r.token > :token
+            ORDER BY r.token
+            """)
+    public List<RequestSummary> findSummariesAfter(@Param("token") long token, Limit limit);
+
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.RequestSummary(r.token, r.date, r.description, r.municipality, r.state)
+            FROM ServiceRequest r
+            WHERE r.date > :date AND r.municipality = :municipality
+            ORDER BY r.token
+            """)
+    public List<RequestSummary> findSummariesByDateAfterAndMunicipality(@Param("date") LocalDateTime date,
+            @Param("municipality") String municipality);
+
+    // Several requests' own columns in one query
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.RequestSummary(r.token, r.date, r.description, r.municipality, r.state)
+            FROM ServiceRequest r
+            WHERE r.token IN :tokens
+            """)
+    public List<RequestSummary> findSummariesByTokenIn(@Param("tokens") Collection<Long> tokens);
+
+    // The logs of several requests in one query, each one in order
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.HistoryEntry(e.serviceRequest.token, e.seq, e.date, e.state)
+            FROM RequestStateChange e
+            WHERE e.serviceRequest.token IN :tokens
+            ORDER BY e.serviceRequest.token, e.seq
+            """)
+    public List<HistoryEntry> findHistories(@Param("tokens") Collection<Long> tokens);
+
+    // Requests whose lifecycle log got an entry after the given time
+    @Query("SELECT DISTINCT e.serviceRequest.token FROM RequestStateChange e WHERE e.date > :since")
+    public List<Long> findTokensChangedSince(@Param("since") LocalDateTime since);
+
+    // Lifecycle log entries written after the given time, with their requests, in the order they were logged
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.LoggedChange(r.token, e.seq, e.date, r.date, r.description, r.municipality, e.state)
+            FROM RequestStateChange e JOIN e.serviceRequest r
+            WHERE e.date > :since
+            ORDER BY e.date, r.token, e.seq
+            """)
+    public List<LoggedChange> findChangesSince(@Param("since") LocalDateTime since);
+
     public List<ServiceRequest> findByDateBetween(LocalDateTime start, LocalDateTime end);
 
     public List<ServiceRequest> findByDateBetweenAndMunicipality(LocalDateTime start, LocalDateTime end, String municipality);
 
-    public List<ServiceRequest> findByDateAfterAndMunicipality(LocalDateTime date, String municipality);
+
+    // Requests still holding a slot, counted per municipality and day
+    @Query("""
+            SELECT new pt.ua.tqs.hw1.data.DailyCount(r.municipality, CAST(r.date AS LocalDate), COUNT(r))
+            FROM ServiceRequest r
+            WHERE r.date >= :from AND r.state <> pt.ua.tqs.hw1.data.RequestState.CANCELLED
+            GROUP BY r.municipality, CAST(r.date AS LocalDate)
+            """)
+    public List<DailyCount> countActiveByMunicipalityAndDay(@Param("from") LocalDateTime from);
 }
\ No newline at end of file
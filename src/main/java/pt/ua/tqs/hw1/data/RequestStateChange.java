@@ -2,7 +2,7 @@ package pt.ua.tqs.hw1.data;
 
 import java.time.LocalDateTime;
 
-import com.fasterxml.jackson.annotation.JsonBackReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -12,6 +12,7 @@ import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
 import jakarta.persistence.Table;
 
+// One entry of a request's lifecycle log. Entries are only ever inserted
 @Entity
 @Table(name = "request_state")
 @IdClass(RequestStateChangeId.class)
@@ -20,10 +21,15 @@ public class RequestStateChange {
     @Id
     @ManyToOne
     @JoinColumn(name = "request_token")
-    @JsonBackReference
+    @JsonIgnore
     private ServiceRequest serviceRequest;
 
+    // Position in the request's log, starting at 1. With the request it forms the primary key,
+    // so reading a log in order is a walk over that index
     @Id
+    private int seq;
+
+    @Column(nullable = false)
     private LocalDateTime date;
 
     @Column
@@ -37,6 +43,11 @@ public class RequestStateChange {
         this.state = state;
     }
 
+    public RequestStateChange(int seq, LocalDateTime date, RequestState state) {
+        this(date, state);
+        this.seq = seq;
+    }
+
     public ServiceRequest getServiceRequest() {
         return serviceRequest;
     }
@@ -45,6 +56,14 @@ public class RequestStateChange {
         this.serviceRequest = serviceRequest;
     }
 
+    public int getSeq() {
+        return seq;
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
     public LocalDateTime getDate() {
         return date;
     }
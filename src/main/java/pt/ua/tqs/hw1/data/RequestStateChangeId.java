@@ -1,20 +1,19 @@
 package pt.ua.tqs.hw1.data;
 
 import java.io.Serializable;
-import java.time.LocalDateTime;
 
 public class RequestStateChangeId implements Serializable {
 
     private long serviceRequest;
 
-    private LocalDateTime date;
+    private int seq;
 
     public RequestStateChangeId() {
     }
 
-    public RequestStateChangeId(long serviceRequest, LocalDateTime date) {
+    public RequestStateChangeId(long serviceRequest, int seq) {
         this.serviceRequest = serviceRequest;
-        this.date = date;
+        this.seq = seq;
     }
 
     @Override
@@ -22,7 +21,7 @@ public class RequestStateChangeId implements Serializable {
         final int prime = 31;
         int result = 1;
         result = prime * result + (int) (serviceRequest ^ (serviceRequest >>> 32));
-        result = prime * result + ((date == null) ? 0 : date.hashCode());
+        result = prime * result + seq;
         return result;
     }
 
@@ -37,10 +36,7 @@ public class RequestStateChangeId implements Serializable {
         RequestStateChangeId other = (RequestStateChangeId) obj;
         if (serviceRequest != other.serviceRequest)
             return false;
-        if (date == null) {
-            if (other.date != null)
-                return false;
-        } else if (!date.equals(other.date))
+        if (seq != other.seq)
             return false;
         return true;
     }
@@ -0,0 +1,20 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// What the list endpoints send for each request, read in one query without touching the history.
+// stateChanges is only filled (and sent) when the history was asked for
+public record RequestSummary(long token, LocalDateTime date, String description, String municipality, RequestState state,
+        @JsonInclude(JsonInclude.Include.NON_NULL) List<RequestStateChange> stateChanges) {
+
+    public RequestSummary(long token, LocalDateTime date, String description, String municipality, RequestState state) {
+        this(token, date, description, municipality, state, null);
+    }
+
+    public RequestSummary withHistory(List<RequestStateChange> history) {
+        return new RequestSummary(token, date, description, municipality, state, history);
+    }
+}
@@ -0,0 +1,54 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Extra RequestRepository operations that Spring Data can't derive
+public interface RequestWriter {
+
+    // Takes a token from the same pool Hibernate uses, before the request is saved
+    public long nextToken();
+
+    // Inserts requests whose token was already allocated (save() would treat them as existing rows),
+    // along with the first entry of their lifecycle log
+    public void persistAll(List<ServiceRequest> requests);
+
+    // Starts the lifecycle log of newly saved requests with their first state.
+    // Like recordStateChanges, also moves on the listing version of their municipalities,
+    // and counts the requests in the state counts
+    public void recordCreation(List<ServiceRequest> requests);
+
+    // Adds a history row without loading the request or its history
+    public void recordStateChange(long token, LocalDateTime date, RequestState state);
+
+    // Same for many requests at once, in a single statement
+    public void recordStateChanges(Collection<Long> tokens, LocalDateTime date, RequestState state);
+
+    // Moves on the listing version of the municipalities these requests are in.
+    // Creations and state changes already do it, this is for other changes to the snapshot
+    public void bumpListingVersions(Collection<Long> tokens);
+
+    public void bumpAllListingVersions();
+
+    // Moves requests from the state they were read in to the given one in the state counts.
+    // Called in the transaction that changes their state
+    public void moveStateCounts(Collection<ServiceRequest> requests, RequestState state);
+
+    // Recounts everything from the snapshots, for when they were rebuilt
+    public void rebuildStateCounts();
+
+    // Same, only for the municipalities and days these requests are in
+    public void rebuildStateCounts(Collection<Long> tokens);
+
+    // The state counts of every municipality between two days, in day and municipality order.
+    // Counts that are down to zero are left out
+    public List<StateCount> findStateCounts(LocalDate from, LocalDate to);
+
+    public ListingVersion findListingVersion(String municipality, LocalDateTime from);
+
+    // Hands every request to the action in token order, without ever holding more than a fetch's worth in memory
+    public void forEachRequest(Consumer<ServiceRequest> action);
+}
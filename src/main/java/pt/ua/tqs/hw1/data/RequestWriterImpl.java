@@ -0,0 +1,266 @@
+package pt.ua.tqs.hw1.data;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.springframework.transaction.annotation.Transactional;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+public class RequestWriterImpl implements RequestWriter {
+
+    // Rows the driver fetches per round trip while streaming
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    // Adds one to the version of each municipality the source query gives, starting the ones not seen yet.
+    // Two transactions starting the same one both take the NOT MATCHED branch, so the merges that can
+    // start rows run through DuplicateKeyRetry and the loser merges again into the row the winner made
+    private static final String MERGE_LISTING_VERSIONS = """
+            MERGE INTO municipality_version v
+            USING (%s) AS s (municipality)
+            ON v.municipality = s.municipality
+            WHEN MATCHED THEN UPDATE SET v.version = v.version + 1
+            WHEN NOT MATCHED THEN INSERT (municipality, version) VALUES (s.municipality, 1)
+            """;
+
+    // Adds each delta of the source to its count, starting the counts not seen yet
+    private static final String MERGE_STATE_COUNTS = """
+            MERGE INTO request_state_count c
+            USING (VALUES %s) AS s (request_day, municipality, state, delta)
+            ON c.request_day = s.request_day AND c.municipality = s.municipality AND c.state = s.state
+            WHEN MATCHED THEN UPDATE SET c.total = c.total + s.delta
+            WHEN NOT MATCHED THEN INSERT (request_day, municipality, state, total) VALUES (s.request_day, s.municipality, s.state, s.delta)
+            """;
+
+    private static final String STATE_COUNT_ROW = "(CAST(? AS DATE), CAST(? AS VARCHAR(255)), CAST(? AS TINYINT), CAST(? AS BIGINT))";
+
+    private static final String MUNICIPALITY_ROW = "(CAST(? AS VARCHAR(255)))";
+
+    // Keeps the statement, and its parameter list, at a reasonable size for big batches
+    private static final int MAX_ROWS_PER_MERGE = 500;
+
+    // Each retry means another transaction just started one of the rows, so a few are plenty
+    private static final int MAX_MERGE_ATTEMPTS = 3;
+
+    private static final String COUNT_STATES = """
+            INSERT INTO request_state_count (request_day, municipality, state, total)
+            SELECT CAST(r.date AS DATE), r.municipality, r.state, COUNT(*) FROM request r
+            %s
+            GROUP BY CAST(r.date AS DATE), r.municipality, r.state
+            """;
+
+    // The requests sharing a municipality and day with one of the tokens
+    private static final String SAME_DAY_AND_PLACE_AS_TOKENS = """
+            WHERE EXISTS (SELECT 1 FROM request t WHERE t.token IN (:tokens)
+                          AND t.municipality = r.municipality AND CAST(t.date AS DATE) = CAST(r.date AS DATE))
+            """;
+
+    // Ordered like the primary key, so concurrent transactions lock the counts in the same order
+    private static final Comparator<StateCount> COUNT_ORDER = Comparator.comparing(StateCount::day)
+            .thenComparing(StateCount::municipality).thenComparing(StateCount::state);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    @Transactional
+    public long nextToken() {
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        BeforeExecutionGenerator generator = (BeforeExecutionGenerator) session.getFactory().getMappingMetamodel()
+                .getEntityDescriptor(ServiceRequest.class).getGenerator();
+        return (Long) generator.generate(session, null, null, EventType.INSERT);
+    }
+
+    @Override
+    @Transactional
+    public void persistAll(List<ServiceRequest> requests) {
+        requests.forEach(entityManager::persist);
+        recordCreation(requests);
+        entityManager.flush();
+    }
+
+    @Override
+    @Transactional
+    public void recordCreation(List<ServiceRequest> requests) {
+        LocalDateTime now = LocalDateTime.now();
+        for (ServiceRequest request : requests) {
+            // A new log starts at 1, so these are plain inserts that can be batched
+            RequestStateChange change = new RequestStateChange(1, now, request.getState());
+            // A reference only carries the key, nothing is read
+            change.setServiceRequest(entityManager.getReference(ServiceRequest.class, request.getToken()));
+            entityManager.persist(change);
+        }
+        bumpListingVersions(requests.stream().map(ServiceRequest::getMunicipality).distinct().sorted().toList());
+
+        Map<StateCount, Long> deltas = new TreeMap<>(COUNT_ORDER);
+        requests.forEach(request -> deltas.merge(countOf(request, request.getState()), 1L, Long::sum));
+        addToStateCounts(deltas);
+    }
+
+    @Override
+    @Transactional
+    public void moveStateCounts(Collection<ServiceRequest> requests, RequestState state) {
+        Map<StateCount, Long> deltas = new TreeMap<>(COUNT_ORDER);
+        for (ServiceRequest request : requests) {
+            deltas.merge(countOf(request, request.getState()), -1L, Long::sum);
+            deltas.merge(countOf(request, state), 1L, Long::sum);
+        }
+        addToStateCounts(deltas);
+    }
+
+    // Only the key matters, the total is what's added to it
+    private static StateCount countOf(ServiceRequest request, RequestState state) {
+        return new StateCount(request.getMunicipality(), request.getDate().toLocalDate(), state, 0);
+    }
+
+    private void addToStateCounts(Map<StateCount, Long> deltas) {
+        List<Map.Entry<StateCount, Long>> changes = deltas.entrySet().stream().filter(delta -> delta.getValue() != 0).toList();
+        for (int start = 0; start < changes.size(); start += MAX_ROWS_PER_MERGE) {
+            List<Map.Entry<StateCount, Long>> chunk = changes.subList(start, Math.min(start + MAX_ROWS_PER_MERGE, changes.size()));
+            Object[] parameters = chunk.stream()
+                    .flatMap(change -> Stream.of(change.getKey().day(), change.getKey().municipality(), change.getKey().state().ordinal(), change.getValue()))
+                    .toArray();
+            DuplicateKeyRetry.executeUpdate(entityManager, MAX_MERGE_ATTEMPTS,
+                    MERGE_STATE_COUNTS.formatted(String.join(", ", Collections.nCopies(chunk.size(), STATE_COUNT_ROW))), parameters);
+        }
+    }
+
+    @Override
+    @Transactional
+    public void rebuildStateCounts() {
+        entityManager.createNativeQuery("DELETE FROM request_state_count").executeUpdate();
+        entityManager.createNativeQuery(COUNT_STATES.formatted("")).executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public void rebuildStateCounts(Collection<Long> tokens) {
+        entityManager.createNativeQuery("""
+                DELETE FROM request_state_count c
+                WHERE EXISTS (SELECT 1 FROM request t WHERE t.token IN (:tokens)
+                              AND t.municipality = c.municipality AND CAST(t.date AS DATE) = c.request_day)
+                """)
+                .setParameter("tokens", tokens)
+                .executeUpdate();
+        entityManager.createNativeQuery(COUNT_STATES.formatted(SAME_DAY_AND_PLACE_AS_TOKENS))
+                .setParameter("tokens", tokens)
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<StateCount> findStateCounts(LocalDate from, LocalDate to) {
+        List<?> rows = entityManager.createNativeQuery("""
+                SELECT c.municipality, c.request_day, c.state, c.total FROM request_state_count c
+                WHERE c.request_day BETWEEN :from AND :to AND c.total <> 0
+                ORDER BY c.request_day, c.municipality, c.state
+                """)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultList();
+        return rows.stream().map(Object[].class::cast)
+                .map(row -> new StateCount((String) row[0], toLocalDate(row[1]),
+                        RequestState.values()[((Number) row[2]).intValue()], ((Number) row[3]).longValue()))
+                .toList();
+    }
+
+    @Override
+    @Transactional
+    public void recordStateChange(long token, LocalDateTime date, RequestState state) {
+        recordStateChanges(List.of(token), date, state);
+    }
+
+    // One INSERT ... SELECT for all the tokens, each entry numbered after the last one in its log.
+    // The callers hold the request rows locked (the state UPDATE), so numbers can't be taken twice
+    @Override
+    @Transactional
+    public void recordStateChanges(Collection<Long> tokens, LocalDateTime date, RequestState state) {
+        entityManager.createQuery("""
+                INSERT INTO RequestStateChange (serviceRequest, seq, date, state)
+                SELECT r, COALESCE((SELECT MAX(e.seq) FROM RequestStateChange e WHERE e.serviceRequest = r), 0) + 1, :date, :state
+                FROM ServiceRequest r
+                WHERE r.token IN :tokens
+                """)
+                .setParameter("tokens", tokens)
+                .setParameter("date", date)
+                .setParameter("state", state)
+                .executeUpdate();
+        bumpListingVersions(tokens);
+    }
+
+    @Override
+    @Transactional
+    public void bumpListingVersions(Collection<Long> tokens) {
+        DuplicateKeyRetry.executeUpdate(entityManager, MAX_MERGE_ATTEMPTS, MERGE_LISTING_VERSIONS.formatted(
+                "SELECT DISTINCT municipality FROM request WHERE token IN (" + String.join(", ", Collections.nCopies(tokens.size(), "?")) + ")"),
+                tokens.toArray());
+    }
+
+    @Override
+    @Transactional
+    public void bumpAllListingVersions() {
+        DuplicateKeyRetry.executeUpdate(entityManager, MAX_MERGE_ATTEMPTS, MERGE_LISTING_VERSIONS.formatted("SELECT DISTINCT municipality FROM request"));
+    }
+
+    // One merge over all the municipalities, sorted so concurrent transactions lock them in the same order
+    private void bumpListingVersions(List<String> municipalities) {
+        for (int start = 0; start < municipalities.size(); start += MAX_ROWS_PER_MERGE) {
+            List<String> chunk = municipalities.subList(start, Math.min(start + MAX_ROWS_PER_MERGE, municipalities.size()));
+            DuplicateKeyRetry.executeUpdate(entityManager, MAX_MERGE_ATTEMPTS,
+                    MERGE_LISTING_VERSIONS.formatted("VALUES " + String.join(", ", Collections.nCopies(chunk.size(), MUNICIPALITY_ROW))),
+                    chunk.toArray());
+        }
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public ListingVersion findListingVersion(String municipality, LocalDateTime from) {
+        Object[] row = (Object[]) entityManager.createNativeQuery("""
+                SELECT COALESCE((SELECT v.version FROM municipality_version v WHERE v.municipality = :municipality), 0),
+                       (SELECT MIN(r.date) FROM request r WHERE r.municipality = :municipality AND r.date > :from)
+                """)
+                .setParameter("municipality", municipality)
+                .setParameter("from", from)
+                .getSingleResult();
+        return new ListingVersion(((Number) row[0]).longValue(), row[1] == null ? null : toLocalDateTime(row[1]));
+    }
+
+    private static LocalDateTime toLocalDateTime(Object value) {
+        return value instanceof Timestamp timestamp ? timestamp.toLocalDateTime() : (LocalDateTime) value;
+    }
+
+    private static LocalDate toLocalDate(Object value) {
+        return value instanceof Date date ? date.toLocalDate() : (LocalDate) value;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void forEachRequest(Consumer<ServiceRequest> action) {
+        try (Stream<ServiceRequest> requests = entityManager
+                .createQuery("SELECT r FROM ServiceRequest r ORDER BY r.token", ServiceRequest.class)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, STREAM_FETCH_SIZE)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultStream()) {
+            requests.forEach(request -> {
+                action.accept(request);
+                // Otherwise the persistence context would end up holding the whole table
+                entityManager.detach(request);
+            });
+        }
+    }
+}
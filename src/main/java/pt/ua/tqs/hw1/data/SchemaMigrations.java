@@ -0,0 +1,150 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.sql.init.SqlDataSourceScriptDatabaseInitializer;
+import org.springframework.boot.autoconfigure.sql.init.SqlInitializationProperties;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+// Takes the place of Spring Boot's script initializer. Versioned scripts (V<n>__<description>.sql)
+// run once each, in version order, and are recorded in schema_version, so restarting against a
+// database that already has the schema only runs the new ones. Anything else runs every time, as before.
+// Nodes starting together take turns through a lock row in schema_lock. It is a flag and not a row lock
+// held by a transaction, because H2 (like most databases) commits on every DDL statement
+@Component
+public class SchemaMigrations extends SqlDataSourceScriptDatabaseInitializer {
+
+    private static final Logger log = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    private static final Pattern VERSIONED = Pattern.compile("V(\\d+)__(.+)\\.sql");
+
+    private static final String CREATE_VERSION_TABLE = """
+            CREATE TABLE IF NOT EXISTS schema_version (
+                version INTEGER NOT NULL,
+                description VARCHAR(255) NOT NULL,
+                installed_on TIMESTAMP(6) NOT NULL,
+                PRIMARY KEY (version)
+            )
+            """;
+
+    private static final String CREATE_LOCK_TABLE = """
+            CREATE TABLE IF NOT EXISTS schema_lock (
+                id INTEGER NOT NULL,
+                locked BOOLEAN NOT NULL,
+                locked_on TIMESTAMP(6),
+                PRIMARY KEY (id)
+            )
+            """;
+
+    private static final long LOCK_POLL_MILLIS = 200;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // Each script with its version row, for databases where DDL can be rolled back
+    private final TransactionTemplate transactionTemplate;
+
+    private final Duration lockTimeout;
+
+    public SchemaMigrations(DataSource dataSource, SqlInitializationProperties properties,
+            @Value("${zeromonos.schema.lock-timeout:PT2M}") Duration lockTimeout) {
+        super(dataSource, properties);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.lockTimeout = lockTimeout;
+    }
+
+    @Override
+    protected void runScripts(Scripts scripts) {
+        jdbcTemplate.execute(CREATE_VERSION_TABLE);
+        jdbcTemplate.execute(CREATE_LOCK_TABLE);
+        lock();
+        try {
+            migrate(scripts);
+        } finally {
+            jdbcTemplate.update("UPDATE schema_lock SET locked = FALSE, locked_on = NULL WHERE id = 1");
+        }
+    }
+
+    private void lock() {
+        try {
+            jdbcTemplate.update("INSERT INTO schema_lock (id, locked) VALUES (1, FALSE)");
+        } catch (DuplicateKeyException e) {
+            // Another node created it first
+        }
+
+        long deadline = System.nanoTime() + lockTimeout.toNanos();
+        while (jdbcTemplate.update("UPDATE schema_lock SET locked = TRUE, locked_on = ? WHERE id = 1 AND locked = FALSE", LocalDateTime.now()) == 0) {
+            if (System.nanoTime() > deadline) {
+                // Not taken over: a node that died halfway may have left the schema in between versions
+                throw new IllegalStateException("Schema is locked by another node since "
+                        + jdbcTemplate.queryForObject("SELECT locked_on FROM schema_lock WHERE id = 1", LocalDateTime.class)
+                        + ". If no node is migrating, check the schema and run UPDATE schema_lock SET locked = FALSE");
+            }
+            log.info("Waiting for another node to finish migrating the schema");
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the schema lock", e);
+            }
+        }
+    }
+
+    // Under the lock, so what was applied is read after the node before this one finished
+    private void migrate(Scripts scripts) {
+        Set<Integer> applied = new HashSet<>(jdbcTemplate.queryForList("SELECT version FROM schema_version", Integer.class));
+
+        Map<Integer, Resource> pending = new TreeMap<>();
+        List<Resource> unversioned = new ArrayList<>();
+        for (Resource script : scripts) {
+            Matcher name = VERSIONED.matcher(String.valueOf(script.getFilename()));
+            if (!name.matches()) {
+                unversioned.add(script);
+            } else if (!applied.contains(Integer.valueOf(name.group(1)))) {
+                pending.put(Integer.valueOf(name.group(1)), script);
+            }
+        }
+
+        for (Map.Entry<Integer, Resource> migration : pending.entrySet()) {
+            String description = VERSIONED.matcher(migration.getValue().getFilename()).replaceFirst("$2").replace('_', ' ');
+            log.info("Applying schema version {}: {}", migration.getKey(), description);
+            transactionTemplate.executeWithoutResult(status -> {
+                super.runScripts(like(scripts, List.of(migration.getValue())));
+                jdbcTemplate.update("INSERT INTO schema_version (version, description, installed_on) VALUES (?, ?, ?)",
+                        migration.getKey(), description, LocalDateTime.now());
+            });
+        }
+        if (pending.isEmpty()) {
+            log.info("Schema is up to date at version {}", applied.stream().max(Integer::compare).orElse(0));
+        }
+
+        if (!unversioned.isEmpty()) {
+            super.runScripts(like(scripts, unversioned));
+        }
+    }
+
+    // Other scripts, run with the same settings
+    private static Scripts like(Scripts settings, List<Resource> resources) {
+        return new Scripts(resources).continueOnError(settings.isContinueOnError())
+                .separator(settings.getSeparator()).encoding(settings.getEncoding());
+    }
+}
@@ -1,44 +1,65 @@
 package pt.ua.tqs.hw1.data;
 
 import java.time.LocalDateTime;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
-import com.fasterxml.jackson.annotation.JsonManagedReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.OneToMany;
+import jakarta.persistence.OrderBy;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import jakarta.persistence.Version;
 
 @Entity
 @Table(name = "request")
 public class ServiceRequest {
 
+    // Pooled sequence: one round trip hands out 50 tokens, and inserts no longer have to run
+    // one by one to read the key back, so they can be batched.
+    // Never read from JSON, clients don't get to pick their token
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TokenSequence
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     private long token;
 
+    // Set when the token was allocated before the insert (write-behind), the only time it's kept
+    @Transient
+    @JsonIgnore
+    private boolean tokenReserved;
+
     @Column(nullable = false)
     private LocalDateTime date;
 
     @Column(nullable = false)
     private String description;
 
+    // Snapshot of the last entry in the request's lifecycle log (stateChanges), kept up to date
+    // by the transitions and rebuilt from the log by LifecycleReplay
     @Column(nullable = false)
     private RequestState state = RequestState.RECIEVED;
 
+    // The lifecycle log, append-only. Never sent with the request, it is served from /states.
+    // Ordered by the primary key, so the database hands it back in order
     @OneToMany(mappedBy="serviceRequest", cascade = CascadeType.ALL, orphanRemoval = true)
-    @JsonManagedReference
-    private Set<RequestStateChange> stateChanges = new HashSet<>();
+    @OrderBy("seq")
+    @JsonIgnore
+    private List<RequestStateChange> stateChanges = new ArrayList<>();
 
     @Column(nullable = false)
     private String municipality;
 
+    // Bumped with every change to the state, it's what the request's ETag is made of
+    @Version
+    @JsonIgnore
+    private Long version;
+
     public ServiceRequest() {
     }
 
@@ -49,6 +70,16 @@ public class ServiceRequest {
         this.municipality = municipality;
     }
 
+    public ServiceRequest(long token, LocalDateTime date, String description, RequestState state, String municipality) {
+        this(date, description, state, municipality);
+        this.token = token;
+    }
+
+    public ServiceRequest(long token, LocalDateTime date, String description, RequestState state, String municipality, Long version) {
+        this(token, date, description, state, municipality);
+        this.version = version;
+    }
+
     public long getToken() {
         return token;
     }
@@ -57,6 +88,15 @@ public class ServiceRequest {
         this.token = token;
     }
 
+    public boolean isTokenReserved() {
+        return tokenReserved;
+    }
+
+    public void reserveToken(long token) {
+        this.token = token;
+        this.tokenReserved = true;
+    }
+
     public LocalDateTime getDate() {
         return date;
     }
@@ -77,20 +117,16 @@ public class ServiceRequest {
         return state;
     }
 
+    // Only the snapshot: entries are appended to the log through RequestRepository
     public void setState(RequestState state) {
         this.state = state;
-
-        // Logic for adding new state
-        RequestStateChange newChange = new RequestStateChange(LocalDateTime.now(), state);
-        newChange.setServiceRequest(this);
-        this.stateChanges.add(newChange);
     }
 
-    public Set<RequestStateChange> getStateChanges() {
+    public List<RequestStateChange> getStateChanges() {
         return stateChanges;
     }
 
-    public void setStateChanges(Set<RequestStateChange> stateChanges) {
+    public void setStateChanges(List<RequestStateChange> stateChanges) {
         this.stateChanges = stateChanges;
     }
 
@@ -102,5 +138,11 @@ public class ServiceRequest {
         this.municipality = municipality;
     }
 
-    
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
 }
\ No newline at end of file
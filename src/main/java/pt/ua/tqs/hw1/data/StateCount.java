@@ -0,0 +1,7 @@
+package pt.ua.tqs.hw1.data;
+
+import java.time.LocalDate;
+
+// One row of the request_state_count summary: requests of a municipality on a day that are in a state
+public record StateCount(String municipality, LocalDate day, RequestState state, long total) {
+}
@@ -0,0 +1,40 @@
+package pt.ua.tqs.hw1.data;
+
+import java.util.Properties;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.EventType;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+// The usual pooled sequence generator, except it keeps tokens that were reserved before the
+// insert (write-behind submissions tell the client their token before the row exists).
+// Any other token already on the request is replaced
+public class TokenGenerator extends SequenceStyleGenerator {
+
+    public static final String SEQUENCE_NAME = "request_token_seq";
+
+    public static final int ALLOCATION_SIZE = 50;
+
+    @Override
+    public void configure(Type type, Properties parameters, ServiceRegistry serviceRegistry) throws MappingException {
+        parameters.setProperty(SEQUENCE_PARAM, SEQUENCE_NAME);
+        parameters.setProperty(INCREMENT_PARAM, String.valueOf(ALLOCATION_SIZE));
+        super.configure(type, parameters, serviceRegistry);
+    }
+
+    @Override
+    public boolean allowAssignedIdentifiers() {
+        return true;
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner, Object currentValue, EventType eventType) {
+        if (owner instanceof ServiceRequest request && request.isTokenReserved()) {
+            return request.getToken();
+        }
+        return generate(session, owner);
+    }
+}
@@ -0,0 +1,15 @@
+package pt.ua.tqs.hw1.data;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+// Request tokens come from a pooled sequence, but a token handed out in advance is kept
+@IdGeneratorType(TokenGenerator.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.FIELD, ElementType.METHOD })
+public @interface TokenSequence {
+}
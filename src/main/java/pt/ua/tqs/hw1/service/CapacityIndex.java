@@ -0,0 +1,114 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import pt.ua.tqs.hw1.data.DailyCount;
+import pt.ua.tqs.hw1.data.ReplicaRouting;
+import pt.ua.tqs.hw1.data.RequestRepository;
+
+// In-memory count of booked slots per municipality and day, used to turn away full days without touching the database.
+// The slot ledger is still what decides, this only has to be close enough (and is reconciled periodically).
+@Component
+public class CapacityIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(CapacityIndex.class);
+
+    private record Key(String municipality, LocalDate day) {
+    }
+
+    // ConcurrentHashMap is already striped, and each counter is updated with CAS
+    private final Map<Key, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+    private RequestRepository repository;
+
+    public CapacityIndex(RequestRepository repository) {
+        this.repository = repository;
+    }
+
+    public boolean tryReserve(String municipality, LocalDate day, int capacity) {
+        AtomicInteger counter = counters.computeIfAbsent(new Key(municipality, day), k -> new AtomicInteger());
+        while (true) {
+            int current = counter.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(String municipality, LocalDate day) {
+        AtomicInteger counter = counters.get(new Key(municipality, day));
+        if (counter != null) {
+            counter.getAndUpdate(c -> Math.max(0, c - 1));
+        }
+    }
+
+    // Used when the database says the day is full but this node didn't know (e.g. booked through another node)
+    public void markFull(String municipality, LocalDate day, int capacity) {
+        counters.computeIfAbsent(new Key(municipality, day), k -> new AtomicInteger()).accumulateAndGet(capacity, Math::max);
+    }
+
+    // For callers that know the exact number booked, like a batch that just read the ledger
+    public void update(String municipality, LocalDate day, int booked) {
+        counters.computeIfAbsent(new Key(municipality, day), k -> new AtomicInteger()).set(booked);
+    }
+
+    public int booked(String municipality, LocalDate day) {
+        AtomicInteger counter = counters.get(new Key(municipality, day));
+        return counter == null ? 0 : counter.get();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        log.info("Building capacity index from the database");
+        reconcile();
+    }
+
+    // Fixes drift against the request table (rollbacks, other nodes, rows written outside the service).
+    // Bookings made while this runs can be undercounted, which only costs a trip to the ledger.
+    @Scheduled(fixedDelayString = "${zeromonos.capacity.reconcile-interval:PT5M}", initialDelayString = "${zeromonos.capacity.reconcile-interval:PT5M}")
+    public void reconcile() {
+        LocalDate today = LocalDate.now();
+        // From the primary, a replica that is behind could still count cancelled requests and turn days away
+        List<DailyCount> counts = ReplicaRouting.onPrimary(() -> repository.countActiveByMunicipalityAndDay(today.atStartOfDay()));
+
+        Map<Key, Integer> actual = new HashMap<>();
+        for (DailyCount count : counts) {
+            actual.put(new Key(count.municipality(), count.day()), (int) count.total());
+        }
+
+        int fixed = 0;
+        for (Map.Entry<Key, Integer> entry : actual.entrySet()) {
+            AtomicInteger counter = counters.computeIfAbsent(entry.getKey(), k -> new AtomicInteger());
+            if (counter.getAndSet(entry.getValue()) != entry.getValue()) {
+                fixed++;
+            }
+        }
+
+        // Past days and days with nothing booked anymore
+        for (Key key : counters.keySet()) {
+            if (key.day().isBefore(today) || !actual.containsKey(key)) {
+                AtomicInteger removed = counters.remove(key);
+                if (removed != null && removed.get() != 0 && !key.day().isBefore(today)) {
+                    fixed++;
+                }
+            }
+        }
+
+        log.info("Capacity index reconciled: {} municipality/day entries, {} corrected", actual.size(), fixed);
+    }
+}
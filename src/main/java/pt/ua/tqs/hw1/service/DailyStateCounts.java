@@ -0,0 +1,19 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.Map;
+
+import pt.ua.tqs.hw1.data.RequestState;
+
+// How many of a municipality's requests for a day are in each state, every state listed
+public record DailyStateCounts(String municipality, LocalDate day, Map<RequestState, Long> counts) {
+
+    static Map<RequestState, Long> noCounts() {
+        Map<RequestState, Long> counts = new EnumMap<>(RequestState.class);
+        for (RequestState state : RequestState.values()) {
+            counts.put(state, 0L);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,6 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.LocalDate;
+
+public record DayAvailability(LocalDate date, int remaining) {
+}
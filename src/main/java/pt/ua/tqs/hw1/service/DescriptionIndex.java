@@ -0,0 +1,287 @@
+package pt.ua.tqs.hw1.service;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import pt.ua.tqs.hw1.data.ReplicaRouting;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.RequestSummary;
+
+// In-memory inverted index over request descriptions, so searching never scans the request table.
+// Built from the database on startup, then kept up to date from the RequestEvents of this node once
+// they commit and from the lifecycle log, which also has what other nodes did (like RequestCacheSync).
+@Component
+public class DescriptionIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(DescriptionIndex.class);
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Words that are in most descriptions and say nothing about what's to be collected
+    private static final Set<String> STOP_WORDS = Set.of("a", "ao", "as", "com", "da", "das", "de", "do", "dos", "e", "em",
+            "na", "nas", "no", "nos", "o", "os", "ou", "para", "por", "um", "uma", "uns", "umas");
+
+    private record Document(String description, String municipality, RequestState state, Map<String, Integer> terms) {
+    }
+
+    // Term -> token -> how many times the term is in that description
+    private static final class Postings {
+        private final Map<String, Map<Long, Integer>> byTerm = new HashMap<>();
+        private final Map<Long, Document> documents = new HashMap<>();
+
+        private void put(RequestSummary request) {
+            Document current = documents.get(request.token());
+            if (current != null && Objects.equals(current.description(), request.description())) {
+                // A transition, only the filters change
+                documents.put(request.token(), new Document(current.description(), request.municipality(), request.state(), current.terms()));
+                return;
+            }
+            remove(request.token());
+            Map<String, Integer> terms = termCounts(request.description());
+            documents.put(request.token(), new Document(request.description(), request.municipality(), request.state(), terms));
+            terms.forEach((term, count) -> byTerm.computeIfAbsent(term, k -> new HashMap<>()).put(request.token(), count));
+        }
+
+        private void remove(long token) {
+            Document removed = documents.remove(token);
+            if (removed == null) {
+                return;
+            }
+            for (String term : removed.terms().keySet()) {
+                Map<Long, Integer> postings = byTerm.get(term);
+                postings.remove(token);
+                if (postings.isEmpty()) {
+                    byTerm.remove(term);
+                }
+            }
+        }
+    }
+
+    private record Hit(long token, double score) {
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private Postings postings = new Postings();
+
+    // While a rebuild reads the table, the changes that arrive are also kept here, to be applied on top of it
+    private List<RequestSummary> pending;
+
+    private RequestRepository repository;
+
+    // Log entries are dated by the node that wrote them before its commit, so look back
+    // this much further to cover slow commits and clocks that are a little apart
+    private final Duration lag;
+
+    // Only touched by the scheduled poll, which never overlaps itself
+    private LocalDateTime lastSync = LocalDateTime.now();
+
+    public DescriptionIndex(RequestRepository repository, @Value("${zeromonos.search.sync-lag:PT5S}") Duration lag) {
+        this.repository = repository;
+        this.lag = lag;
+    }
+
+    // Lower case, without accents, split into words, stop words dropped and plurals made singular:
+    // "Os SOFÁS e um frigorífico" gives sofa, frigorifico
+    public static List<String> terms(String text) {
+        if (text == null) {
+            return List.of();
+        }
+        String folded = ACCENTS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>();
+        for (String word : SEPARATORS.split(folded)) {
+            if (!word.isEmpty() && !STOP_WORDS.contains(word)) {
+                terms.add(singular(word));
+            }
+        }
+        return terms;
+    }
+
+    // Only the regular plural, which is what most descriptions have (sofas, mesas, frigorificos)
+    private static String singular(String word) {
+        return word.length() > 3 && word.endsWith("s") && !word.endsWith("ss") ? word.substring(0, word.length() - 1) : word;
+    }
+
+    private static Map<String, Integer> termCounts(String text) {
+        Map<String, Integer> counts = new HashMap<>();
+        terms(text).forEach(term -> counts.merge(term, 1, Integer::sum));
+        return counts;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onRequestEvent(RequestEvent event) {
+        apply(List.of(event.request()));
+    }
+
+    private void apply(List<RequestSummary> requests) {
+        lock.writeLock().lock();
+        try {
+            requests.forEach(postings::put);
+            if (pending != null) {
+                pending.addAll(requests);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Re-reads the requests whose log got an entry since the last sync, whichever node wrote it
+    @Scheduled(fixedDelayString = "${zeromonos.search.sync-interval:PT1S}")
+    public void sync() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime since = lastSync.minus(lag);
+        lastSync = now;
+
+        // From the primary, a replica that is behind would miss the newest entries
+        List<Long> changed = ReplicaRouting.onPrimary(() -> repository.findTokensChangedSince(since));
+        if (changed.isEmpty()) {
+            return;
+        }
+        List<RequestSummary> requests = ReplicaRouting.onPrimary(() -> repository.findSummariesByTokenIn(changed));
+        log.debug("Updating {} requests changed since {} in the description index", requests.size(), since);
+        apply(requests);
+
+        // Deleted since the log entry was read
+        if (requests.size() < changed.size()) {
+            Set<Long> gone = new HashSet<>(changed);
+            requests.forEach(request -> gone.remove(request.token()));
+            lock.writeLock().lock();
+            try {
+                gone.forEach(postings::remove);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Tokens of the requests whose description has every word of the query, best match first.
+    // Each word weighs more the fewer descriptions have it, and more the more often it's in the description.
+    // Only the descriptions with the rarest word are looked at
+    public List<Long> search(String query, String municipality, RequestState state, int limit) {
+        List<String> words = terms(query).stream().distinct().toList();
+        if (words.isEmpty()) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Map<Long, Integer>> lists = new ArrayList<>();
+            for (String word : words) {
+                Map<Long, Integer> list = postings.byTerm.get(word);
+                if (list == null) {
+                    return List.of();
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(Map::size));
+
+            int total = postings.documents.size();
+            List<Hit> hits = new ArrayList<>();
+            for (long token : lists.get(0).keySet()) {
+                Document document = postings.documents.get(token);
+                if ((municipality != null && !municipality.equals(document.municipality()))
+                        || (state != null && state != document.state())) {
+                    continue;
+                }
+                double score = 0;
+                for (Map<Long, Integer> list : lists) {
+                    Integer count = list.get(token);
+                    if (count == null) {
+                        score = -1;
+                        break;
+                    }
+                    score += count * Math.log(1 + (double) total / list.size());
+                }
+                if (score >= 0) {
+                    hits.add(new Hit(token, score));
+                }
+            }
+
+            return hits.stream()
+                    .sorted(Comparator.comparingDouble(Hit::score).reversed().thenComparingLong(Hit::token))
+                    .limit(limit)
+                    .map(Hit::token)
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return postings.documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // After LifecycleReplay, so the states are the rebuilt ones
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        log.info("Building description index from the database");
+        rebuild();
+    }
+
+    // Reads the table into a new index while searches keep using the old one, then swaps them.
+    // Changes that came in meanwhile are applied again, since the rows read may be older than them
+    public void rebuild() {
+        lock.writeLock().lock();
+        try {
+            if (pending != null) {
+                return;
+            }
+            pending = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Postings rebuilt = new Postings();
+        try {
+            repository.forEachRequest(request -> rebuilt.put(RequestEvent.of(request).request()));
+        } catch (RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                pending = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            pending.forEach(rebuilt::put);
+            pending = null;
+            postings = rebuilt;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Description index built: {} requests, {} words", rebuilt.documents.size(), rebuilt.byTerm.size());
+    }
+}
@@ -0,0 +1,72 @@
+package pt.ua.tqs.hw1.service;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import pt.ua.tqs.hw1.data.RequestRepository;
+
+// The lifecycle log (request_state) is the record of what happened to each request, and the state
+// column on request is a snapshot of its last entry. Replaying rebuilds snapshots from the log.
+// A full replay rewrites every listing version and recounts the state counts, which races the counts
+// other nodes are adding to at the same time: it is an operation to run on purpose, not on every boot
+@Component
+public class LifecycleReplay {
+
+    private static final Logger log = LoggerFactory.getLogger(LifecycleReplay.class);
+
+    private RequestRepository repository;
+
+    private RequestCache requestCache;
+
+    private boolean replayOnStartup;
+
+    public LifecycleReplay(RequestRepository repository, RequestCache requestCache,
+            @Value("${zeromonos.lifecycle.replay-on-startup:false}") boolean replayOnStartup) {
+        this.repository = repository;
+        this.requestCache = requestCache;
+        this.replayOnStartup = replayOnStartup;
+    }
+
+    // When enabled, before anything else reads the snapshots (CapacityIndex counts from them)
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @Transactional
+    public void replayOnStartup() {
+        if (replayOnStartup) {
+            rebuildAll();
+        }
+    }
+
+    @Transactional
+    public int rebuildAll() {
+        int changed = repository.rebuildSnapshots();
+        if (changed > 0) {
+            repository.bumpAllListingVersions();
+            repository.rebuildStateCounts();
+            requestCache.clear();
+        }
+        log.info("Replayed lifecycle log, {} snapshots were out of date", changed);
+        return changed;
+    }
+
+    @Transactional
+    public boolean rebuild(long token) {
+        boolean changed = repository.rebuildSnapshot(token) > 0;
+        if (changed) {
+            repository.bumpListingVersions(List.of(token));
+            repository.rebuildStateCounts(List.of(token));
+            requestCache.invalidate(token);
+            log.warn("Snapshot of request {} was out of date and was rebuilt from its log", token);
+        }
+        return changed;
+    }
+}
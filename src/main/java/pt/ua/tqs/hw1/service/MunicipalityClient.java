@@ -1,10 +1,14 @@
 package pt.ua.tqs.hw1.service;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -12,27 +16,64 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-
-
+// Cached list of municipalities, loaded from the API the first time it's needed.
+// Concurrent callers share a single load. Once ttl - refresh-ahead has passed, the list is refreshed
+// in the background while the cached one is still served. Past ttl, callers wait for a new load, and
+// get the old list if it fails. After a failure no load is tried for retry-backoff, doubling on each
+// failure in a row up to max-retry-backoff, so a down API isn't called on every page view
 @Service
 public class MunicipalityClient {
 
     private static final Logger log = LoggerFactory.getLogger(MunicipalityClient.class);
 
-    // Lazy loaded to save API requests
-    private static List<String> municipalities;
-
     private static final String API_URL = "https://json.geoapi.pt/municipios";
 
+    // Page views may be waiting on the load
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private static final RequestConfig REQUEST_CONFIG = RequestConfig.custom()
+            .setConnectTimeout(TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+            .setSocketTimeout(TIMEOUT_MILLIS)
+            .build();
+
+    // municipalities is null until a load succeeds. Times are System.nanoTime()
+    private record Cached(List<String> municipalities, long loadedAt, int failures, long retryAt) {
+    }
+
+    private volatile Cached cached = new Cached(null, 0, 0, System.nanoTime());
+
+    // The load in progress, if any
+    private final AtomicReference<CompletableFuture<List<String>>> loading = new AtomicReference<>();
+
+    private final long ttlNanos;
+
+    private final long refreshAfterNanos;
+
+    private final Duration retryBackoff;
+
+    private final Duration maxRetryBackoff;
+
+    public MunicipalityClient(@Value("${zeromonos.municipalities.ttl:PT24H}") Duration ttl,
+            @Value("${zeromonos.municipalities.refresh-ahead:PT1H}") Duration refreshAhead,
+            @Value("${zeromonos.municipalities.retry-backoff:PT10S}") Duration retryBackoff,
+            @Value("${zeromonos.municipalities.max-retry-backoff:PT10M}") Duration maxRetryBackoff) {
+        this.ttlNanos = ttl.toNanos();
+        this.refreshAfterNanos = Math.max(0, ttl.minus(refreshAhead).toNanos());
+        this.retryBackoff = retryBackoff;
+        this.maxRetryBackoff = maxRetryBackoff;
+    }
+
     // HTTP request (wanted this to be private, but mockito requires it to be public)
-    public void loadMunicipalities() throws IOException {
+    public List<String> loadMunicipalities() throws IOException {
         log.info("Attempting to load municipalities from API: {}", API_URL);
 
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
+        try (CloseableHttpClient client = HttpClients.custom().setDefaultRequestConfig(REQUEST_CONFIG).build()) {
             HttpGet request = new HttpGet(API_URL);
             log.debug("Executing GET request to {}", API_URL);
 
@@ -41,41 +82,93 @@ public class MunicipalityClient {
                 log.info("Received response from API with status code {}", statusCode);
 
                 if (statusCode != 200) {
-                    log.warn("Unexpected status code {} while fetching municipalities", statusCode);
+                    throw new IOException("Unexpected status code " + statusCode + " while fetching municipalities");
                 }
 
                 HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    String json = EntityUtils.toString(entity);
-                    log.debug("Response body successfully read ({} bytes)", json.length());
-
-                    // Map json to list
-                    ObjectMapper mapper = new ObjectMapper();
-                    municipalities = mapper.readValue(json,
-                            mapper.getTypeFactory().constructCollectionType(List.class, String.class));
-
-                    log.info("Successfully parsed {} municipalities from API", municipalities.size());
-                } else {
-                    log.warn("No entity found in API response");
+                if (entity == null) {
+                    throw new IOException("No entity found in API response");
                 }
+                String json = EntityUtils.toString(entity);
+                log.debug("Response body successfully read ({} bytes)", json.length());
+
+                // Map json to list
+                ObjectMapper mapper = new ObjectMapper();
+                List<String> municipalities = mapper.readValue(json,
+                        mapper.getTypeFactory().constructCollectionType(List.class, String.class));
+
+                log.info("Successfully parsed {} municipalities from API", municipalities.size());
+                return List.copyOf(municipalities);
             }
         }
     }
 
     public List<String> getMunicipalities() {
-        // Lazy loading
-        if (municipalities == null) {
-            log.info("Municipality list not loaded yet, loading now...");
+        Cached current = cached;
+        long now = System.nanoTime();
+        boolean loaded = current.municipalities() != null;
+        boolean backingOff = now - current.retryAt() < 0;
+
+        if (loaded && now - current.loadedAt() < ttlNanos) {
+            if (now - current.loadedAt() >= refreshAfterNanos && !backingOff) {
+                load(true);
+            }
+            log.debug("Returning cached list of {} municipalities", current.municipalities().size());
+            return current.municipalities();
+        }
+
+        if (backingOff) {
+            log.debug("Municipality API failed recently, not trying again yet");
+            return loaded ? current.municipalities() : List.of();
+        }
+
+        log.info(loaded ? "Municipality list expired, loading it again..." : "Municipality list not loaded yet, loading now...");
+        try {
+            return load(false).join();
+        } catch (CompletionException e) {
+            // The load already logged why
+            return loaded ? current.municipalities() : List.of();
+        }
+    }
+
+    // Starts a load unless one is already running, and gives the one that is.
+    // In the background it runs on its own thread, otherwise on the caller's
+    private CompletableFuture<List<String>> load(boolean background) {
+        CompletableFuture<List<String>> load = new CompletableFuture<>();
+        CompletableFuture<List<String>> running = loading.compareAndExchange(null, load);
+        if (running != null) {
+            return running;
+        }
+
+        Runnable task = () -> {
             try {
-                loadMunicipalities();
-            } catch (IOException e) {
-                log.error("Error while loading municipalities: {}", e.getMessage(), e);
-                return Collections.emptyList();
+                List<String> municipalities = loadMunicipalities();
+                cached = new Cached(municipalities, System.nanoTime(), 0, System.nanoTime());
+                loading.set(null);
+                load.complete(municipalities);
+            } catch (IOException | RuntimeException e) {
+                Cached failed = failed(cached);
+                log.error("Error while loading municipalities: {}, next attempt in {}s", e.getMessage(),
+                        Duration.ofNanos(failed.retryAt() - System.nanoTime()).toSeconds(), e);
+                cached = failed;
+                loading.set(null);
+                load.completeExceptionally(e);
             }
+        };
+        if (background) {
+            Thread.ofVirtual().name("municipality-refresh").start(task);
         } else {
-            log.debug("Returning cached list of {} municipalities", municipalities.size());
+            task.run();
         }
+        return load;
+    }
 
-        return municipalities;
+    private Cached failed(Cached previous) {
+        int failures = previous.failures() + 1;
+        Duration backoff = retryBackoff.multipliedBy(1L << Math.min(failures - 1, 20));
+        if (backoff.compareTo(maxRetryBackoff) > 0) {
+            backoff = maxRetryBackoff;
+        }
+        return new Cached(previous.municipalities(), previous.loadedAt(), failures, System.nanoTime() + backoff.toNanos());
     }
 }
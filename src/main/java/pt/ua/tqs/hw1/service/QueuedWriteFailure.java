@@ -0,0 +1,9 @@
+package pt.ua.tqs.hw1.service;
+
+// Why a request accepted in write-behind mode was never written
+public enum QueuedWriteFailure {
+    // Its day filled up through another node before the batch got to it
+    SLOT_TAKEN,
+    // The batch it was in could not be written, nothing of it was kept
+    WRITE_FAILED
+}
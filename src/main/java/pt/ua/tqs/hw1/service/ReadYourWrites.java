@@ -0,0 +1,74 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import pt.ua.tqs.hw1.data.ReplicaRouting;
+
+// With a read replica, the citizen who just submitted a request (or the staff who just moved it)
+// would often read it back before the replica has it. For max-lag after a request is written on
+// this node, its reads go to the primary instead
+@Component
+public class ReadYourWrites {
+
+    // Token -> System.nanoTime() until which it's read from the primary
+    private final Map<Long, Long> recent = new ConcurrentHashMap<>();
+
+    private final boolean enabled;
+
+    private final long lagNanos;
+
+    public ReadYourWrites(@Value("${zeromonos.datasource.replica.url:}") String replicaUrl,
+            @Value("${zeromonos.datasource.replica.max-lag:PT5S}") Duration maxLag) {
+        this.enabled = !replicaUrl.isBlank();
+        this.lagNanos = maxLag.toNanos();
+    }
+
+    // Counts from now and, inside a transaction, again from its commit, which is when the replica starts catching up
+    public void written(long token) {
+        if (!enabled) {
+            return;
+        }
+        mark(token);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    mark(token);
+                }
+            });
+        }
+    }
+
+    public void writtenAll(Iterable<Long> tokens) {
+        tokens.forEach(this::written);
+    }
+
+    public boolean isRecent(long token) {
+        Long until = recent.get(token);
+        return until != null && until - System.nanoTime() >= 0;
+    }
+
+    // Runs reads about the request where they will see its last write
+    public <T> T read(long token, Supplier<T> reads) {
+        return isRecent(token) ? ReplicaRouting.onPrimary(reads) : reads.get();
+    }
+
+    @Scheduled(fixedDelayString = "PT1M")
+    public void evictExpired() {
+        long now = System.nanoTime();
+        recent.values().removeIf(until -> until - now < 0);
+    }
+
+    private void mark(long token) {
+        recent.put(token, System.nanoTime() + lagNanos);
+    }
+}
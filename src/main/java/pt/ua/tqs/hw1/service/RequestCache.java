@@ -0,0 +1,159 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+// Requests by token, for the citizens polling GET /requests/{id}. A request only changes a few
+// times in its life, so most polls can be answered without the database.
+// Entries are dropped by the transitions on this node, by RequestCacheSync for the other nodes,
+// and after the TTL whatever happens. The cached requests are shared, so callers must not change them
+@Component
+public class RequestCache {
+
+    private record Entry(ServiceRequest request, long expiresAt) {
+    }
+
+    private record Queued(long token, Entry entry) {
+    }
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    // The entries in insertion order, which with a single TTL is also expiry order, so eviction
+    // only ever looks at the head. Entries already dropped from the map are skipped when reached
+    private final Queue<Queued> order = new ConcurrentLinkedQueue<>();
+
+    // Bumped by every invalidation; a load that started before one isn't stored
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final long ttlNanos;
+
+    private final int maxEntries;
+
+    public RequestCache(@Value("${zeromonos.request-cache.max-entries:10000}") int maxEntries,
+            @Value("${zeromonos.request-cache.ttl:PT30S}") Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    // Only requests that exist are cached, a miss goes to the loader every time
+    public Optional<ServiceRequest> get(long token, LongFunction<Optional<ServiceRequest>> loader) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(token);
+        if (entry != null && entry.expiresAt() - now >= 0) {
+            hits.increment();
+            return Optional.of(entry.request());
+        }
+
+        misses.increment();
+        long loadedAt = generation.get();
+        Optional<ServiceRequest> loaded = loader.apply(token);
+        if (loaded.isPresent() && maxEntries > 0) {
+            Entry created = new Entry(loaded.get(), now + ttlNanos);
+            entries.put(token, created);
+            order.add(new Queued(token, created));
+            // An invalidation ran while loading, what was read may already be stale
+            if (generation.get() != loadedAt) {
+                entries.remove(token, created);
+            }
+            evictIfFull();
+        }
+        return loaded;
+    }
+
+    // Without loading anything on a miss
+    public Optional<ServiceRequest> getIfPresent(long token) {
+        Entry entry = entries.get(token);
+        if (entry == null || entry.expiresAt() - System.nanoTime() < 0) {
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(entry.request());
+    }
+
+    // Drops the token now and, inside a transaction, again once it's over, so a poll reading
+    // the old row before the commit can't put it back
+    public void invalidate(long token) {
+        evict(token);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(token);
+                }
+            });
+        }
+    }
+
+    public void invalidateAll(Iterable<Long> tokens) {
+        tokens.forEach(this::invalidate);
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+        order.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public RequestCacheStats stats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+        return new RequestCacheStats(hitCount, missCount, total == 0 ? 0 : (double) hitCount / total,
+                entries.size(), evictions.sum());
+    }
+
+    @Scheduled(fixedDelayString = "PT1M")
+    public void evictExpired() {
+        long now = System.nanoTime();
+        for (Queued oldest = order.peek(); oldest != null && oldest.entry().expiresAt() - now < 0; oldest = order.peek()) {
+            // Another thread may have taken it off the head meanwhile
+            if (order.remove(oldest)) {
+                entries.remove(oldest.token(), oldest.entry());
+            }
+        }
+    }
+
+    private void evict(long token) {
+        generation.incrementAndGet();
+        entries.remove(token);
+    }
+
+    private void evictIfFull() {
+        long now = System.nanoTime();
+        while (entries.size() > maxEntries) {
+            Queued oldest = order.poll();
+            if (oldest == null) {
+                return;
+            }
+            // Only live entries that had time left count as evictions
+            if (entries.remove(oldest.token(), oldest.entry()) && oldest.entry().expiresAt() - now >= 0) {
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package pt.ua.tqs.hw1.service;
+
+// Counters of RequestCache since startup, evictions are the ones made to stay under the size limit
+public record RequestCacheStats(long hits, long misses, double hitRatio, int size, long evictions) {
+}
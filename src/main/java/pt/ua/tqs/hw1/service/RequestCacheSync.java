@@ -0,0 +1,58 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import pt.ua.tqs.hw1.data.ReplicaRouting;
+import pt.ua.tqs.hw1.data.RequestRepository;
+
+// Other nodes sharing the database don't tell us about their transitions, but every transition
+// leaves an entry in the lifecycle log. Polling the log for recent entries drops those requests
+// here too, so a cached request is never more than about one interval behind.
+@Component
+public class RequestCacheSync {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestCacheSync.class);
+
+    private final RequestRepository repository;
+
+    private final RequestCache cache;
+
+    // Log entries are dated by the node that wrote them before its commit, so look back
+    // this much further to cover slow commits and clocks that are a little apart
+    private final Duration lag;
+
+    private LocalDateTime lastSync = LocalDateTime.now();
+
+    public RequestCacheSync(RequestRepository repository, RequestCache cache,
+            @Value("${zeromonos.request-cache.sync-lag:PT5S}") Duration lag) {
+        this.repository = repository;
+        this.cache = cache;
+        this.lag = lag;
+    }
+
+    @Scheduled(fixedDelayString = "${zeromonos.request-cache.sync-interval:PT1S}")
+    public void sync() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime since = lastSync.minus(lag);
+        lastSync = now;
+        // Nothing cached, nothing can be stale
+        if (cache.size() == 0) {
+            return;
+        }
+
+        // From the primary, a replica that is behind would miss the newest entries
+        List<Long> changed = ReplicaRouting.onPrimary(() -> repository.findTokensChangedSince(since));
+        if (!changed.isEmpty()) {
+            log.debug("Dropping {} requests changed since {} from the cache", changed.size(), since);
+            changed.forEach(cache::invalidate);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package pt.ua.tqs.hw1.service;
+
+import pt.ua.tqs.hw1.data.RequestSummary;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+// Published by RequestService whenever a request is submitted or moves to another state
+public record RequestEvent(RequestSummary request) {
+
+    public static RequestEvent of(ServiceRequest request) {
+        return new RequestEvent(new RequestSummary(request.getToken(), request.getDate(), request.getDescription(),
+                request.getMunicipality(), request.getState()));
+    }
+}
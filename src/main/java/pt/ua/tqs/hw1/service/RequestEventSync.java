@@ -0,0 +1,73 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import pt.ua.tqs.hw1.data.LoggedChange;
+import pt.ua.tqs.hw1.data.ReplicaRouting;
+import pt.ua.tqs.hw1.data.RequestRepository;
+
+// Every submission and transition, on any node sharing the database, leaves an entry in the lifecycle log.
+// Polling the log for new entries and publishing them as RequestLogEvents gives every node the same events,
+// including the ones it wrote itself, so what subscribers see doesn't depend on the node they are on.
+@Component
+public class RequestEventSync {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestEventSync.class);
+
+    private record EntryKey(long token, int seq) {
+    }
+
+    private final RequestRepository repository;
+
+    private final ApplicationEventPublisher events;
+
+    // Log entries are dated by the node that wrote them before its commit, so look back
+    // this much further to cover slow commits and clocks that are a little apart
+    private final Duration lag;
+
+    // Entries already published that the next poll can still return, with when they were logged.
+    // Only touched by the scheduled poll, which never overlaps itself
+    private final Map<EntryKey, LocalDateTime> published = new HashMap<>();
+
+    private LocalDateTime lastSync = LocalDateTime.now();
+
+    public RequestEventSync(RequestRepository repository, ApplicationEventPublisher events,
+            @Value("${zeromonos.events.sync-lag:PT5S}") Duration lag) {
+        this.repository = repository;
+        this.events = events;
+        this.lag = lag;
+    }
+
+    @Scheduled(fixedDelayString = "${zeromonos.events.sync-interval:PT1S}")
+    public void sync() {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime since = lastSync.minus(lag);
+        lastSync = now;
+
+        // From the primary, a replica that is behind would miss the newest entries
+        List<LoggedChange> changes = ReplicaRouting.onPrimary(() -> repository.findChangesSince(since));
+        published.values().removeIf(loggedAt -> !loggedAt.isAfter(since));
+
+        int count = 0;
+        for (LoggedChange change : changes) {
+            if (published.putIfAbsent(new EntryKey(change.token(), change.seq()), change.loggedAt()) == null) {
+                events.publishEvent(RequestLogEvent.of(change));
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.debug("Published {} lifecycle log entries logged since {}", count, since);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package pt.ua.tqs.hw1.service;
+
+import java.time.LocalDateTime;
+
+import pt.ua.tqs.hw1.data.LoggedChange;
+import pt.ua.tqs.hw1.data.RequestSummary;
+
+// Published by RequestEventSync for each new lifecycle log entry, whichever node wrote it.
+// token and seq identify the entry, so every node tells it apart the same way
+public record RequestLogEvent(long token, int seq, LocalDateTime loggedAt, RequestSummary request) {
+
+    public static RequestLogEvent of(LoggedChange change) {
+        return new RequestLogEvent(change.token(), change.seq(), change.loggedAt(), change.summary());
+    }
+}
@@ -3,18 +3,40 @@ package pt.ua.tqs.hw1.service;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import pt.ua.tqs.hw1.data.BookingSlot;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.DailyCount;
+import pt.ua.tqs.hw1.data.HistoryEntry;
+import pt.ua.tqs.hw1.data.ListingVersion;
 import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestSummary;
 import pt.ua.tqs.hw1.data.RequestState;
 import pt.ua.tqs.hw1.data.RequestStateChange;
 import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.data.StateCount;
 
 
 @Service
@@ -24,15 +46,46 @@ public class RequestService {
 
     private RequestRepository repository;
 
-    public RequestService(RequestRepository repository) {
+    private BookingSlotRepository slotRepository;
+
+    private CapacityIndex capacityIndex;
+
+    private TransitionMetrics transitionMetrics;
+
+    private RequestCache requestCache;
+
+    private DescriptionIndex descriptionIndex;
+
+    private ReadYourWrites readYourWrites;
+
+    // Listeners that push to clients only get the events once the transaction commits
+    private ApplicationEventPublisher events;
+
+    public RequestService(RequestRepository repository, BookingSlotRepository slotRepository, CapacityIndex capacityIndex,
+            TransitionMetrics transitionMetrics, RequestCache requestCache, DescriptionIndex descriptionIndex,
+            ReadYourWrites readYourWrites, ApplicationEventPublisher events) {
         this.repository = repository;
+        this.slotRepository = slotRepository;
+        this.capacityIndex = capacityIndex;
+        this.transitionMetrics = transitionMetrics;
+        this.requestCache = requestCache;
+        this.descriptionIndex = descriptionIndex;
+        this.readYourWrites = readYourWrites;
+        this.events = events;
     }
 
     private static final int MAX_REQUESTS_PER_DAY_AND_PLACE = 2;
 
+    private static final int LAST_HOUR = 17;
+
+    private static final int MAX_AVAILABILITY_DAYS = 366;
+
+    // How far ahead to look for free days to suggest when a day is full
+    private static final int SUGGESTION_WINDOW_DAYS = 30;
+
     public ServiceRequest getRequest(long token) {
         log.info("Fetching request with token {}", token);
-        Optional<ServiceRequest> opRequest = repository.findByToken(token);
+        Optional<ServiceRequest> opRequest = readYourWrites.read(token, () -> requestCache.get(token, repository::findByToken));
         if (opRequest.isEmpty()) {
             log.warn("Request with token {} not found", token);
             throw new RequestNotFoundException();
@@ -42,112 +95,486 @@ public class RequestService {
         return opRequest.get();
     }
 
-    public ServiceRequest submitRequest(ServiceRequest request) {
-        log.info("Submitting new request");
+    // Same rules as validateDate, for a whole day: a weekday with some bookable time left
+    private static boolean isBookableDay(LocalDate day, LocalDateTime now) {
+        DayOfWeek weekday = day.getDayOfWeek();
+        if (weekday == DayOfWeek.SATURDAY || weekday == DayOfWeek.SUNDAY) {
+            return false;
+        }
+        LocalDate today = now.toLocalDate();
+        return day.isAfter(today) || (day.equals(today) && now.getHour() <= LAST_HOUR);
+    }
 
+    private void validateDate(LocalDateTime date) {
         // The system can't accept dates before today
-        if (request.getDate().isBefore(LocalDateTime.now())) {
+        if (date.isBefore(LocalDateTime.now())) {
             log.warn("Rejected request: date is before now");
             throw new InvalidRequestDateException();
         }
 
         // The system can't accept dates in the weekend
-        DayOfWeek weekday = request.getDate().getDayOfWeek();
+        DayOfWeek weekday = date.getDayOfWeek();
         if (weekday == DayOfWeek.SATURDAY || weekday == DayOfWeek.SUNDAY) {
             log.warn("Rejected request: date falls on weekend ({})", weekday);
             throw new InvalidRequestDateException();
         }
 
         // The system can't accept times after 17:00h
-        if (request.getDate().getHour() > 17) {
+        if (date.getHour() > LAST_HOUR) {
             log.warn("Rejected request: time is after 17:00h");
             throw new InvalidRequestDateException();
         }
+    }
 
-        // During the week, the system can only have 2 requests per municipality
+    @Transactional
+    public ServiceRequest submitRequest(ServiceRequest request) {
+        log.info("Submitting new request");
+
+        validateDate(request.getDate());
+
+        // During the week, the system can only have 2 requests per municipality.
+        // Days known to be full are turned away here, without going to the database
         LocalDate date = request.getDate().toLocalDate();
-        List<ServiceRequest> samePlaceAndTime = repository.findByDateBetweenAndMunicipality(date.atStartOfDay(), date.atTime(LocalTime.MAX), request.getMunicipality());
+        if (!capacityIndex.tryReserve(request.getMunicipality(), date, MAX_REQUESTS_PER_DAY_AND_PLACE)) {
+            log.warn("Rejected request: municipality already has {} requests on {}", MAX_REQUESTS_PER_DAY_AND_PLACE, date);
+            throw new RequestOverflowException();
+        }
+
+        // The slot ledger decides, so the limit holds even with several nodes on the same database
+        ServiceRequest saved;
+        int claimed;
+        try {
+            saved = repository.save(request);
+            repository.recordCreation(List.of(saved));
+            claimed = claimSlot(request.getMunicipality(), date, saved.getToken());
+        } catch (RuntimeException e) {
+            capacityIndex.release(request.getMunicipality(), date);
+            throw e;
+        }
 
-        if (samePlaceAndTime.size() >= MAX_REQUESTS_PER_DAY_AND_PLACE) {
-            log.warn("Rejected request: municipality already has {} requests on {}", samePlaceAndTime.size(), date);
+        if (claimed == 0) {
+            // Booked through another node, remember it so the next ones don't reach the database
+            capacityIndex.markFull(request.getMunicipality(), date, MAX_REQUESTS_PER_DAY_AND_PLACE);
+            log.warn("Rejected request: municipality already has {} requests on {}", MAX_REQUESTS_PER_DAY_AND_PLACE, date);
             throw new RequestOverflowException();
         }
 
-        ServiceRequest saved = repository.save(request);
         log.info("Request successfully saved with token {}", saved.getToken());
+        readYourWrites.written(saved.getToken());
+        events.publishEvent(RequestEvent.of(saved));
         return saved;
     }
 
-    public List<ServiceRequest> getRequests() {
-        log.info("Fetching all requests");
-        return repository.findAll();
+    // The claim already tries again when a concurrent one takes its slot. Still losing after that,
+    // the day is being booked faster than it can be claimed, which only happens when it fills up
+    private int claimSlot(String municipality, LocalDate date, long token) {
+        try {
+            return slotRepository.claimSlot(municipality, date, token, MAX_REQUESTS_PER_DAY_AND_PLACE);
+        } catch (DataIntegrityViolationException e) {
+            log.warn("Rejected request: lost the race for a slot in the municipality on {}", date);
+            throw new RequestOverflowException();
+        }
+    }
+
+    // Write-behind mode: only the cheap checks happen before the request is queued,
+    // the slot is held in memory and the token is allocated up front
+    public ServiceRequest reserveSubmission(ServiceRequest request) {
+        log.info("Reserving submission for write-behind");
+        validateDate(request.getDate());
+
+        LocalDate date = request.getDate().toLocalDate();
+        if (!capacityIndex.tryReserve(request.getMunicipality(), date, MAX_REQUESTS_PER_DAY_AND_PLACE)) {
+            log.warn("Rejected request: municipality already has {} requests on {}", MAX_REQUESTS_PER_DAY_AND_PLACE, date);
+            throw new RequestOverflowException();
+        }
+
+        try {
+            request.reserveToken(repository.nextToken());
+        } catch (RuntimeException e) {
+            capacityIndex.release(request.getMunicipality(), date);
+            throw e;
+        }
+        log.info("Reserved token {} for write-behind", request.getToken());
+        return request;
+    }
+
+    public void releaseReservation(ServiceRequest request) {
+        capacityIndex.release(request.getMunicipality(), request.getDate().toLocalDate());
+    }
+
+    // Write-behind mode: claims the slots and inserts the queued requests in one transaction.
+    // Returns the ones that didn't get a slot after all (e.g. taken through another node).
+    // When the write fails nothing is kept, and the reservations of the whole batch are released
+    @Transactional
+    public List<ServiceRequest> writeSubmissions(List<ServiceRequest> requests) {
+        log.info("Writing {} queued requests", requests.size());
+        List<ServiceRequest> accepted = new ArrayList<>();
+        List<ServiceRequest> rejected = new ArrayList<>();
+        try {
+            for (ServiceRequest request : requests) {
+                LocalDate date = request.getDate().toLocalDate();
+                int claimed;
+                try {
+                    claimed = slotRepository.claimSlot(request.getMunicipality(), date, request.getToken(), MAX_REQUESTS_PER_DAY_AND_PLACE);
+                } catch (DataIntegrityViolationException e) {
+                    claimed = 0;
+                }
+
+                if (claimed == 0) {
+                    log.warn("Queued request {} lost its slot on {}", request.getToken(), date);
+                    capacityIndex.markFull(request.getMunicipality(), date, MAX_REQUESTS_PER_DAY_AND_PLACE);
+                    rejected.add(request);
+                } else {
+                    accepted.add(request);
+                }
+            }
+            repository.persistAll(accepted);
+        } catch (RuntimeException e) {
+            log.error("Failed to write {} queued requests", requests.size());
+            // The ones that lost their slot were already counted as full
+            requests.stream().filter(request -> !rejected.contains(request)).forEach(this::releaseReservation);
+            throw e;
+        }
+
+        accepted.forEach(request -> {
+            readYourWrites.written(request.getToken());
+            events.publishEvent(RequestEvent.of(request));
+        });
+        log.info("Wrote {} queued requests, {} rejected", accepted.size(), rejected.size());
+        return rejected;
+    }
+
+    private record DayAndPlace(String municipality, LocalDate day) {
+    }
+
+    // All or nothing on the database side, but each request is accepted or rejected on its own
+    @Transactional
+    public List<SubmissionOutcome> submitRequests(List<ServiceRequest> requests) {
+        log.info("Submitting batch of {} requests", requests.size());
+        SubmissionOutcome[] outcomes = new SubmissionOutcome[requests.size()];
+
+        // Dates are checked in memory, then the valid ones are grouped by place and day (keeping their order)
+        Map<DayAndPlace, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            ServiceRequest request = requests.get(i);
+            try {
+                validateDate(request.getDate());
+                groups.computeIfAbsent(new DayAndPlace(request.getMunicipality(), request.getDate().toLocalDate()), k -> new ArrayList<>()).add(i);
+            } catch (InvalidRequestDateException e) {
+                outcomes[i] = SubmissionOutcome.rejected(e);
+            }
+        }
+
+        // One query for the slots already taken in every group
+        Set<String> municipalities = groups.keySet().stream().map(DayAndPlace::municipality).collect(Collectors.toSet());
+        Set<LocalDate> days = groups.keySet().stream().map(DayAndPlace::day).collect(Collectors.toSet());
+        Map<DayAndPlace, Set<Integer>> taken = new HashMap<>();
+        if (!groups.isEmpty()) {
+            for (BookingSlot slot : slotRepository.findByMunicipalityInAndDayIn(municipalities, days)) {
+                taken.computeIfAbsent(new DayAndPlace(slot.getMunicipality(), slot.getDay()), k -> new HashSet<>()).add(slot.getSlot());
+            }
+        }
+
+        List<Integer> accepted = new ArrayList<>();
+        List<Integer> acceptedSlots = new ArrayList<>();
+        Map<DayAndPlace, Integer> booked = new HashMap<>();
+        for (Map.Entry<DayAndPlace, List<Integer>> group : groups.entrySet()) {
+            Set<Integer> takenSlots = taken.getOrDefault(group.getKey(), Set.of());
+            Iterator<Integer> freeSlots = IntStream.range(0, MAX_REQUESTS_PER_DAY_AND_PLACE).filter(n -> !takenSlots.contains(n)).iterator();
+            int count = takenSlots.size();
+
+            for (int i : group.getValue()) {
+                if (freeSlots.hasNext()) {
+                    accepted.add(i);
+                    acceptedSlots.add(freeSlots.next());
+                    count++;
+                } else {
+                    log.warn("Rejected batched request {}: municipality already has {} requests on {}", i, MAX_REQUESTS_PER_DAY_AND_PLACE, group.getKey().day());
+                    outcomes[i] = SubmissionOutcome.rejected(new RequestOverflowException());
+                }
+            }
+            booked.put(group.getKey(), count);
+        }
+
+        List<ServiceRequest> saved = repository.saveAll(accepted.stream().map(requests::get).toList());
+        repository.recordCreation(saved);
+        List<BookingSlot> slots = new ArrayList<>();
+        for (int i = 0; i < saved.size(); i++) {
+            ServiceRequest request = saved.get(i);
+            slots.add(new BookingSlot(request.getMunicipality(), request.getDate().toLocalDate(), acceptedSlots.get(i), request.getToken()));
+            outcomes[accepted.get(i)] = SubmissionOutcome.accepted(request);
+        }
+
+        try {
+            slotRepository.saveAllAndFlush(slots);
+        } catch (DataIntegrityViolationException e) {
+            // Someone booked one of the same slots since we read them
+            log.warn("Batch rejected: conflicting bookings were made concurrently");
+            throw new BookingConflictException();
+        }
+
+        booked.forEach((key, count) -> capacityIndex.update(key.municipality(), key.day(), count));
+        saved.forEach(request -> {
+            readYourWrites.written(request.getToken());
+            events.publishEvent(RequestEvent.of(request));
+        });
+
+        log.info("Batch saved {} of {} requests", saved.size(), requests.size());
+        return Arrays.asList(outcomes);
     }
 
-    public List<ServiceRequest> getRequests(String municipality) {
+    // Remaining slots for each bookable day in the range, from one grouped count over the ledger
+    @Transactional(readOnly = true)
+    public List<DayAvailability> getAvailability(String municipality, LocalDate from, LocalDate to) {
+        log.info("Fetching availability from {} to {}", from, to);
+        if (to.isBefore(from) || ChronoUnit.DAYS.between(from, to) >= MAX_AVAILABILITY_DAYS) {
+            log.warn("Rejected availability query: invalid range {} to {}", from, to);
+            throw new InvalidRequestDateException();
+        }
+
+        Map<LocalDate, Long> booked = new HashMap<>();
+        for (DailyCount count : slotRepository.countByDay(municipality, from, to)) {
+            booked.put(count.day(), count.total());
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        return from.datesUntil(to.plusDays(1))
+                .filter(day -> isBookableDay(day, now))
+                .map(day -> new DayAvailability(day, (int) Math.max(0, MAX_REQUESTS_PER_DAY_AND_PLACE - booked.getOrDefault(day, 0L))))
+                .toList();
+    }
+
+    // Suggestions for someone who was just told a day is full. Read from the capacity index, not the ledger:
+    // overflows come in bursts when a day fills up, and a suggestion that turns out to be full only costs a retry
+    public List<LocalDate> getNextAvailableDays(String municipality, LocalDate after, int count) {
+        LocalDate from = after.plusDays(1);
+        LocalDate today = LocalDate.now();
+        if (from.isBefore(today)) {
+            from = today;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        return from.datesUntil(from.plusDays(SUGGESTION_WINDOW_DAYS + 1L))
+                .filter(day -> isBookableDay(day, now))
+                .filter(day -> capacityIndex.booked(municipality, day) < MAX_REQUESTS_PER_DAY_AND_PLACE)
+                .limit(count)
+                .toList();
+    }
+
+    // Requests per state for each municipality and day in the range, from the counts kept by
+    // submissions and transitions: a few rows per municipality and day, however many requests there are
+    @Transactional(readOnly = true)
+    public List<DailyStateCounts> getStateCounts(LocalDate from, LocalDate to) {
+        log.info("Fetching state counts from {} to {}", from, to);
+        if (to.isBefore(from) || ChronoUnit.DAYS.between(from, to) >= MAX_AVAILABILITY_DAYS) {
+            log.warn("Rejected state counts query: invalid range {} to {}", from, to);
+            throw new InvalidRequestDateException();
+        }
+
+        Map<DayAndPlace, Map<RequestState, Long>> counts = new LinkedHashMap<>();
+        for (StateCount count : repository.findStateCounts(from, to)) {
+            counts.computeIfAbsent(new DayAndPlace(count.municipality(), count.day()), k -> DailyStateCounts.noCounts())
+                    .put(count.state(), count.total());
+        }
+        return counts.entrySet().stream()
+                .map(entry -> new DailyStateCounts(entry.getKey().municipality(), entry.getKey().day(), entry.getValue()))
+                .toList();
+    }
+
+    // What the ETags are made of, read without loading the requests
+    public Optional<Long> getRequestVersion(long token) {
+        Optional<ServiceRequest> cached = requestCache.getIfPresent(token);
+        return cached.isPresent() ? cached.map(ServiceRequest::getVersion) : readYourWrites.read(token, () -> repository.findVersion(token));
+    }
+
+    @Transactional(readOnly = true)
+    public ListingVersion getListingVersion(String municipality) {
+        return repository.findListingVersion(municipality, LocalDateTime.now());
+    }
+
+    // One page of requests in token order, starting after the given token
+    @Transactional(readOnly = true)
+    public List<RequestSummary> getRequests(long afterToken, int limit, boolean withHistory) {
+        log.info("Fetching up to {} requests after token {}", limit, afterToken);
+        List<RequestSummary> requests = repository.findSummariesAfter(afterToken, Limit.of(limit));
+        return withHistory ? addHistory(requests) : requests;
+    }
+
+    // Tokens of the requests whose description has all the words, best match first, straight from the index
+    public List<Long> searchRequests(String query, String municipality, RequestState state, int limit) {
+        log.info("Searching requests, municipality={} state={}", municipality, state);
+        return descriptionIndex.search(query, municipality, state, limit);
+    }
+
+    // Every request, streamed from the database in token order
+    @Transactional(readOnly = true)
+    public void exportRequests(Consumer<ServiceRequest> action) {
+        log.info("Exporting all requests");
+        repository.forEachRequest(action);
+    }
+
+    @Transactional(readOnly = true)
+    public List<RequestSummary> getRequests(String municipality, boolean withHistory) {
         log.info("Fetching requests for municipality");
-        return repository.findByDateAfterAndMunicipality(LocalDateTime.now(), municipality);
+        List<RequestSummary> requests = repository.findSummariesByDateAfterAndMunicipality(LocalDateTime.now(), municipality);
+        return withHistory ? addHistory(requests) : requests;
     }
 
-    public List<RequestStateChange> getStateChanges(long token) {
-        log.info("Fetching state change history for token {}", token);
-        ServiceRequest request = getRequest(token);
+    // All the logs come from one query, however many requests there are
+    private List<RequestSummary> addHistory(List<RequestSummary> requests) {
+        if (requests.isEmpty()) {
+            return requests;
+        }
+        Map<Long, List<RequestStateChange>> histories = new HashMap<>();
+        for (HistoryEntry entry : repository.findHistories(requests.stream().map(RequestSummary::token).toList())) {
+            histories.computeIfAbsent(entry.token(), k -> new ArrayList<>()).add(entry.toStateChange());
+        }
+        return requests.stream().map(request -> request.withHistory(histories.getOrDefault(request.token(), List.of()))).toList();
+    }
 
-        List<RequestStateChange> changes = request.getStateChanges().stream().sorted((r1, r2) -> r1.getDate().compareTo(r2.getDate())).toList();
+    // Straight from the lifecycle log: up to limit entries numbered after the given one
+    @Transactional(readOnly = true)
+    public List<RequestStateChange> getStateChanges(long token, int after, int limit) {
+        log.info("Fetching state change history for token {} after {}", token, after);
+        List<RequestStateChange> changes = readYourWrites.read(token, () -> repository.findHistoryAfter(token, after, Limit.of(limit)));
+        if (changes.isEmpty() && !readYourWrites.read(token, () -> repository.existsById(token))) {
+            log.warn("Request with token {} not found", token);
+            throw new RequestNotFoundException();
+        }
 
         log.info("Found {} state changes for token {}", changes.size(), token);
         return changes;
     }
 
-    public ServiceRequest cancelRequest(long token) {
-        log.info("Attempting to cancel request with token {}", token);
-        ServiceRequest request = getRequest(token);
-        if (request.getState() != RequestState.RECIEVED && request.getState() != RequestState.ASSIGNED) {
-            log.warn("Invalid state transition: cannot cancel request {} in state {}", token, request.getState());
+    // One read without the history, one conditional UPDATE and one history INSERT.
+    // The UPDATE only matches the state that was read, so concurrent moves can't both succeed
+    @Transactional
+    public ServiceRequest transitionRequest(long token, RequestTransition transition) {
+        log.info("Attempting to {} request with token {}", transition.path(), token);
+        long start = System.nanoTime();
+        ServiceRequest request = repository.findWithoutHistory(token).orElseThrow(() -> {
+            log.warn("Request with token {} not found", token);
+            return new RequestNotFoundException();
+        });
+
+        RequestState from = request.getState();
+        RequestState to = transition.target();
+        if (!transition.allows(from) || repository.transitionState(token, from, to) == 0) {
+            // Either a move the table doesn't allow, or the state changed since it was read
+            log.warn("Invalid state transition: cannot move request {} from {} to {}", token, from, to);
+            transitionMetrics.recordRejection(from, to);
             throw new InvalidStateTransitionException();
         }
-        request.setState(RequestState.CANCELLED);
-        ServiceRequest saved = repository.save(request);
-        log.info("Request {} successfully cancelled", token);
-        return saved;
+
+        LocalDateTime now = LocalDateTime.now();
+        repository.recordStateChange(token, now, to);
+        repository.moveStateCounts(List.of(request), to);
+        requestCache.invalidate(token);
+        readYourWrites.written(token);
+        if (transition.releasesSlot()) {
+            // Give the slot back so someone else can book that day
+            slotRepository.releaseSlot(token);
+            capacityIndex.release(request.getMunicipality(), request.getDate().toLocalDate());
+        }
+
+        transitionMetrics.recordSuccess(from, to, 1, System.nanoTime() - start);
+        log.info("Request {} moved from {} to {}", token, from, to);
+        ServiceRequest updated = moved(request, to);
+        events.publishEvent(RequestEvent.of(updated));
+        return updated;
     }
 
-    public ServiceRequest assignRequest(long token) {
-        log.info("Attempting to assign request with token {}", token);
-        ServiceRequest request = getRequest(token);
-        if (request.getState() != RequestState.RECIEVED) {
-            log.warn("Invalid state transition: cannot assign request {} in state {}", token, request.getState());
-            throw new InvalidStateTransitionException();
+    private static ServiceRequest moved(ServiceRequest request, RequestState state) {
+        Long version = request.getVersion() == null ? null : request.getVersion() + 1;
+        return new ServiceRequest(request.getToken(), request.getDate(), request.getDescription(), state, request.getMunicipality(), version);
+    }
+
+    // Same rules for many requests in one transaction:
+    // one locking read, one set-based update and one INSERT ... SELECT for the history
+    @Transactional
+    public List<TransitionOutcome> transitionRequests(List<Long> tokens, RequestTransition transition) {
+        RequestState to = transition.target();
+        log.info("Attempting to move {} requests to {}", tokens.size(), to);
+        long start = System.nanoTime();
+        LocalDateTime now = LocalDateTime.now();
+
+        Map<Long, ServiceRequest> found = new HashMap<>();
+        if (!tokens.isEmpty()) {
+            for (ServiceRequest request : repository.lockAllByTokenIn(new HashSet<>(tokens))) {
+                found.put(request.getToken(), request);
+            }
         }
-        request.setState(RequestState.ASSIGNED);
-        ServiceRequest saved = repository.save(request);
-        log.info("Request {} successfully assigned", token);
-        return saved;
+
+        Map<Long, TransitionOutcome> outcomes = new LinkedHashMap<>();
+        List<ServiceRequest> eligible = new ArrayList<>();
+        for (long token : tokens) {
+            if (outcomes.containsKey(token)) {
+                continue;
+            }
+            ServiceRequest request = found.get(token);
+            if (request == null) {
+                log.warn("Request with token {} not found", token);
+                outcomes.put(token, TransitionOutcome.rejected(token, new RequestNotFoundException()));
+            } else if (!transition.allows(request.getState())) {
+                log.warn("Invalid state transition: cannot move request {} from {} to {}", token, request.getState(), to);
+                transitionMetrics.recordRejection(request.getState(), to);
+                outcomes.put(token, TransitionOutcome.rejected(token, new InvalidStateTransitionException()));
+            } else {
+                eligible.add(request);
+                outcomes.put(token, TransitionOutcome.updated(moved(request, to)));
+            }
+        }
+
+        if (!eligible.isEmpty()) {
+            List<Long> eligibleTokens = eligible.stream().map(ServiceRequest::getToken).toList();
+            repository.transitionStates(eligibleTokens, transition.from(), to);
+            repository.recordStateChanges(eligibleTokens, now, to);
+            repository.moveStateCounts(eligible, to);
+            requestCache.invalidateAll(eligibleTokens);
+            readYourWrites.writtenAll(eligibleTokens);
+
+            if (transition.releasesSlot()) {
+                slotRepository.releaseSlots(eligibleTokens);
+                eligible.forEach(request -> capacityIndex.release(request.getMunicipality(), request.getDate().toLocalDate()));
+            }
+
+            // The batch's time is shared out between the edges it used
+            long nanos = System.nanoTime() - start;
+            Map<RequestState, Long> perEdge = eligible.stream().collect(Collectors.groupingBy(ServiceRequest::getState, Collectors.counting()));
+            perEdge.forEach((from, count) -> transitionMetrics.recordSuccess(from, to, count.intValue(), nanos * count / eligible.size()));
+        }
+
+        outcomes.values().stream().filter(TransitionOutcome::isUpdated)
+                .forEach(outcome -> events.publishEvent(RequestEvent.of(outcome.updated())));
+        log.info("Moved {} of {} requests to {}", eligible.size(), tokens.size(), to);
+        return tokens.stream().map(outcomes::get).toList();
     }
 
+    public List<TransitionStats> getTransitionStats() {
+        return transitionMetrics.snapshot();
+    }
+
+    public RequestCacheStats getRequestCacheStats() {
+        return requestCache.stats();
+    }
+
+    @Transactional
+    public ServiceRequest cancelRequest(long token) {
+        return transitionRequest(token, RequestTransition.CANCEL);
+    }
+
+    @Transactional
+    public ServiceRequest assignRequest(long token) {
+        return transitionRequest(token, RequestTransition.ASSIGN);
+    }
+
+    @Transactional
     public ServiceRequest startRequest(long token) {
-        log.info("Attempting to start request with token {}", token);
-        ServiceRequest request = getRequest(token);
-        if (request.getState() != RequestState.ASSIGNED) {
-            log.warn("Invalid state transition: cannot start request {} in state {}", 
-                     token, request.getState());
-            throw new InvalidStateTransitionException();
-        }
-        request.setState(RequestState.IN_PROGRESS);
-        ServiceRequest saved = repository.save(request);
-        log.info("Request {} started successfully", token);
-        return saved;
+        return transitionRequest(token, RequestTransition.START);
     }
 
+    @Transactional
     public ServiceRequest completeRequest(long token) {
-        log.info("Attempting to complete request with token {}", token);
-        ServiceRequest request = getRequest(token);
-        if (request.getState() != RequestState.IN_PROGRESS) {
-            log.warn("Invalid state transition: cannot complete request {} in state {}", token, request.getState());
-            throw new InvalidStateTransitionException();
-        }
-        request.setState(RequestState.DONE);
-        ServiceRequest saved = repository.save(request);
-        log.info("Request {} completed successfully", token);
-        return saved;
+        return transitionRequest(token, RequestTransition.END);
     }
 }
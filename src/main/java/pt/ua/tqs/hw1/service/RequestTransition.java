@@ -0,0 +1,70 @@
+package pt.ua.tqs.hw1.service;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import pt.ua.tqs.hw1.data.RequestState;
+
+// The request state machine: every move a request can make, the API path that asks for it,
+// the state it ends in and the states it may start from. A new state only needs entries here.
+public enum RequestTransition {
+    ASSIGN("assign", "to be assigned", RequestState.ASSIGNED, false, RequestState.RECIEVED),
+    START("start", "to start", RequestState.IN_PROGRESS, false, RequestState.ASSIGNED),
+    END("end", "to end", RequestState.DONE, false, RequestState.IN_PROGRESS),
+    CANCEL("cancel", "to be cancelled", RequestState.CANCELLED, true, RequestState.RECIEVED, RequestState.ASSIGNED);
+
+    private static final Map<String, RequestTransition> BY_PATH = Arrays.stream(values())
+            .collect(Collectors.toUnmodifiableMap(RequestTransition::path, Function.identity()));
+
+    private final String path;
+
+    private final String description;
+
+    private final RequestState target;
+
+    // Whether the booking slot is given back
+    private final boolean releasesSlot;
+
+    // An EnumSet is a bitmask, so checking a move allocates nothing
+    private final EnumSet<RequestState> from;
+
+    RequestTransition(String path, String description, RequestState target, boolean releasesSlot, RequestState first, RequestState... rest) {
+        this.path = path;
+        this.description = description;
+        this.target = target;
+        this.releasesSlot = releasesSlot;
+        this.from = EnumSet.of(first, rest);
+    }
+
+    public static Optional<RequestTransition> fromPath(String path) {
+        return Optional.ofNullable(BY_PATH.get(path));
+    }
+
+    public boolean allows(RequestState state) {
+        return from.contains(state);
+    }
+
+    public String path() {
+        return path;
+    }
+
+    public String description() {
+        return description;
+    }
+
+    public RequestState target() {
+        return target;
+    }
+
+    public boolean releasesSlot() {
+        return releasesSlot;
+    }
+
+    public EnumSet<RequestState> from() {
+        return EnumSet.copyOf(from);
+    }
+}
@@ -0,0 +1,19 @@
+package pt.ua.tqs.hw1.service;
+
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+// Result of one request in a batch: either the saved request or why it was rejected
+public record SubmissionOutcome(ServiceRequest saved, RuntimeException rejection) {
+
+    public static SubmissionOutcome accepted(ServiceRequest saved) {
+        return new SubmissionOutcome(saved, null);
+    }
+
+    public static SubmissionOutcome rejected(RuntimeException rejection) {
+        return new SubmissionOutcome(null, rejection);
+    }
+
+    public boolean isAccepted() {
+        return rejection == null;
+    }
+}
@@ -0,0 +1,4 @@
+package pt.ua.tqs.hw1.service;
+
+public class SubmissionQueueFullException extends RuntimeException {
+}
@@ -0,0 +1,67 @@
+package pt.ua.tqs.hw1.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.stereotype.Component;
+
+import pt.ua.tqs.hw1.data.RequestState;
+
+// Counters and latency for each (from -> to) edge of the state machine.
+// Indexed by ordinal and built up front, so recording never allocates or locks.
+@Component
+public class TransitionMetrics {
+
+    private static final RequestState[] STATES = RequestState.values();
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private static final class Edge {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+    }
+
+    private final Edge[][] edges = new Edge[STATES.length][STATES.length];
+
+    public TransitionMetrics() {
+        for (int from = 0; from < STATES.length; from++) {
+            for (int to = 0; to < STATES.length; to++) {
+                edges[from][to] = new Edge();
+            }
+        }
+    }
+
+    // count requests moved along the edge, taking nanos in total
+    public void recordSuccess(RequestState from, RequestState to, int count, long nanos) {
+        Edge edge = edges[from.ordinal()][to.ordinal()];
+        edge.count.add(count);
+        edge.totalNanos.add(nanos);
+        edge.maxNanos.accumulate(nanos / count);
+    }
+
+    public void recordRejection(RequestState from, RequestState to) {
+        edges[from.ordinal()][to.ordinal()].rejected.increment();
+    }
+
+    // Only the edges that were used or attempted
+    public List<TransitionStats> snapshot() {
+        List<TransitionStats> stats = new ArrayList<>();
+        for (RequestState from : STATES) {
+            for (RequestState to : STATES) {
+                Edge edge = edges[from.ordinal()][to.ordinal()];
+                long count = edge.count.sum();
+                long rejected = edge.rejected.sum();
+                if (count == 0 && rejected == 0) {
+                    continue;
+                }
+                double mean = count == 0 ? 0 : edge.totalNanos.sum() / NANOS_PER_MILLI / count;
+                stats.add(new TransitionStats(from, to, count, rejected, mean, edge.maxNanos.get() / NANOS_PER_MILLI));
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,19 @@
+package pt.ua.tqs.hw1.service;
+
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+// Result of one token in a bulk transition: either the updated request or why it was left alone
+public record TransitionOutcome(long token, ServiceRequest updated, RuntimeException rejection) {
+
+    public static TransitionOutcome updated(ServiceRequest updated) {
+        return new TransitionOutcome(updated.getToken(), updated, null);
+    }
+
+    public static TransitionOutcome rejected(long token, RuntimeException rejection) {
+        return new TransitionOutcome(token, null, rejection);
+    }
+
+    public boolean isUpdated() {
+        return rejection == null;
+    }
+}
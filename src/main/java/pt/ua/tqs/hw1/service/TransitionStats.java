@@ -0,0 +1,7 @@
+package pt.ua.tqs.hw1.service;
+
+import pt.ua.tqs.hw1.data.RequestState;
+
+// What TransitionMetrics has seen for one edge, latencies in milliseconds
+public record TransitionStats(RequestState from, RequestState to, long count, long rejected, double meanMillis, double maxMillis) {
+}
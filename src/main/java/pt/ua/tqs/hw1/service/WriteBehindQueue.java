@@ -0,0 +1,185 @@
+package pt.ua.tqs.hw1.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+// Optional submission mode: /api/submit checks and reserves, answers 202 with the token right away,
+// and virtual-thread workers write the queued requests to the database in batches
+@Component
+public class WriteBehindQueue implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    // How many failed tokens are remembered so their owners can find out
+    private static final int MAX_FAILED = 10_000;
+
+    private final RequestService requestService;
+
+    private final boolean enabled;
+
+    private final int batchSize;
+
+    private final int workers;
+
+    private final long drainTimeoutMillis;
+
+    private final BlockingQueue<ServiceRequest> queue;
+
+    // Accepted but not written yet, so they can still be looked up
+    private final Map<Long, ServiceRequest> pending = new ConcurrentHashMap<>();
+
+    private final Map<Long, QueuedWriteFailure> failed = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, QueuedWriteFailure> eldest) {
+            return size() > MAX_FAILED;
+        }
+    });
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private volatile boolean running;
+
+    public WriteBehindQueue(RequestService requestService,
+            @Value("${zeromonos.submit.write-behind.enabled:false}") boolean enabled,
+            @Value("${zeromonos.submit.write-behind.capacity:1000}") int capacity,
+            @Value("${zeromonos.submit.write-behind.batch-size:50}") int batchSize,
+            @Value("${zeromonos.submit.write-behind.workers:2}") int workers,
+            @Value("${zeromonos.submit.write-behind.drain-timeout-ms:30000}") long drainTimeoutMillis) {
+        this.requestService = requestService;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.workers = workers;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ServiceRequest submit(ServiceRequest request) {
+        if (!running) {
+            log.warn("Rejected request: write-behind queue is not running");
+            throw new SubmissionQueueFullException();
+        }
+
+        requestService.reserveSubmission(request);
+        pending.put(request.getToken(), request);
+
+        // Backpressure: don't wait for room, let the client retry later
+        if (!queue.offer(request)) {
+            log.warn("Rejected request: write-behind queue is full");
+            pending.remove(request.getToken());
+            requestService.releaseReservation(request);
+            throw new SubmissionQueueFullException();
+        }
+
+        log.info("Request {} queued for writing", request.getToken());
+        return request;
+    }
+
+    public Optional<ServiceRequest> findPending(long token) {
+        return Optional.ofNullable(pending.get(token));
+    }
+
+    public Optional<QueuedWriteFailure> findFailure(long token) {
+        return Optional.ofNullable(failed.get(token));
+    }
+
+    private void work() {
+        List<ServiceRequest> batch = new ArrayList<>(batchSize);
+        // Keeps going after stop() until the queue is empty
+        while (running || !queue.isEmpty()) {
+            try {
+                ServiceRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<ServiceRequest> batch) {
+        try {
+            for (ServiceRequest request : requestService.writeSubmissions(batch)) {
+                failed.put(request.getToken(), QueuedWriteFailure.SLOT_TAKEN);
+            }
+        } catch (RuntimeException e) {
+            // Not the day being full: the client has to submit again, and may well get in
+            log.error("Failed to write batch of {} queued requests: {}", batch.size(), e.getMessage(), e);
+            batch.forEach(request -> failed.put(request.getToken(), QueuedWriteFailure.WRITE_FAILED));
+        } finally {
+            batch.forEach(request -> pending.remove(request.getToken()));
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!enabled || running) {
+            return;
+        }
+        log.info("Starting {} write-behind workers", workers);
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            threads.add(Thread.ofVirtual().name("write-behind-" + i).start(this::work));
+        }
+    }
+
+    // Stops taking new submissions and waits for the queued ones to be written
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        log.info("Draining write-behind queue ({} queued)", queue.size());
+        running = false;
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        for (Thread thread : threads) {
+            try {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        threads.clear();
+        if (!queue.isEmpty()) {
+            log.error("Write-behind queue stopped with {} requests not written", queue.size());
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Stop after the web server, so nothing is submitted once draining started
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
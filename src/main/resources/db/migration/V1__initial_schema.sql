@@ -0,0 +1,34 @@
+-- The schema as Hibernate used to generate it from the entities, with keys in the order they are queried
+
+CREATE SEQUENCE request_token_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE request (
+    token BIGINT NOT NULL,
+    date TIMESTAMP(6) NOT NULL,
+    description VARCHAR(255) NOT NULL,
+    municipality VARCHAR(255) NOT NULL,
+    state TINYINT NOT NULL,
+    PRIMARY KEY (token)
+);
+
+CREATE TABLE request_state (
+    request_token BIGINT NOT NULL,
+    seq INTEGER NOT NULL,
+    date TIMESTAMP(6) NOT NULL,
+    state TINYINT,
+    -- The history is always read per request and in seq order, so the key leads with the request
+    -- (and the foreign key reuses it instead of keeping an index of its own)
+    PRIMARY KEY (request_token, seq),
+    CONSTRAINT fk_request_state_request FOREIGN KEY (request_token) REFERENCES request
+);
+
+CREATE TABLE booking_slot (
+    booking_day DATE NOT NULL,
+    slot_number INTEGER NOT NULL,
+    municipality VARCHAR(255) NOT NULL,
+    request_token BIGINT,
+    -- claimSlot and countByDay look slots up by municipality and day
+    PRIMARY KEY (municipality, booking_day, slot_number)
+);
+
+CREATE INDEX idx_booking_slot_request ON booking_slot (request_token);
@@ -0,0 +1,8 @@
+-- Indexes for the queries the repositories actually run
+
+-- Submits and the staff listing: municipality = ? AND date > ? (or BETWEEN).
+-- state is carried along so the capacity count never has to read the row
+CREATE INDEX idx_request_municipality_date ON request (municipality, date, state);
+
+-- Date ranges across every municipality (findByDateBetween, CapacityIndex on startup)
+CREATE INDEX idx_request_date ON request (date, municipality, state);
@@ -0,0 +1,2 @@
+-- RequestCacheSync polls the lifecycle log for entries newer than a given time
+CREATE INDEX idx_request_state_date ON request_state (date);
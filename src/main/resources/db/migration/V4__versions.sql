@@ -0,0 +1,9 @@
+-- Versions behind the ETags: one per request, bumped with its state, and one per municipality,
+-- bumped whenever one of its requests is created or changes
+ALTER TABLE request ADD COLUMN version BIGINT DEFAULT 0 NOT NULL;
+
+CREATE TABLE municipality_version (
+    municipality VARCHAR(255) NOT NULL,
+    version BIGINT NOT NULL,
+    PRIMARY KEY (municipality)
+);
@@ -0,0 +1,13 @@
+-- How many requests each municipality has in each state, per day of the request.
+-- Kept up to date by the same transactions that create and move requests, so GET /api/stats
+-- reads a handful of rows instead of scanning request
+CREATE TABLE request_state_count (
+    request_day DATE NOT NULL,
+    municipality VARCHAR(255) NOT NULL,
+    state TINYINT NOT NULL,
+    total BIGINT NOT NULL,
+    PRIMARY KEY (request_day, municipality, state)
+);
+
+INSERT INTO request_state_count (request_day, municipality, state, total)
+SELECT CAST(date AS DATE), municipality, state, COUNT(*) FROM request GROUP BY CAST(date AS DATE), municipality, state;
@@ -0,0 +1,10 @@
+-- Tokens used to come from an IDENTITY column. On a database that already has requests, move the
+-- sequence past the highest token so the tokens people hold are never handed out again.
+-- The pooled optimizer treats the sequence value as the top of a block, so leave a whole block (50)
+-- of room. Only ever forward: running nodes may hold blocks below the current value
+ALTER SEQUENCE request_token_seq RESTART WITH (
+    SELECT GREATEST(s.base_value, COALESCE(MAX(r.token) + 51, s.base_value))
+    FROM information_schema.sequences s LEFT JOIN request r ON TRUE
+    WHERE s.sequence_name = 'REQUEST_TOKEN_SEQ'
+    GROUP BY s.base_value
+);
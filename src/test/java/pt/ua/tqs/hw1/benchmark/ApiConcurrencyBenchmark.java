@@ -0,0 +1,138 @@
+package pt.ua.tqs.hw1.benchmark;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.util.threads.ThreadPoolExecutor;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.embedded.tomcat.TomcatWebServer;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import pt.ua.tqs.hw1.Hw1Application;
+import pt.ua.tqs.hw1.boundary.ConnectionAdmissionFilter;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+// Not part of the normal build, run with: mvn test -Dtest=ApiConcurrencyBenchmark [-Dclients=5000]
+// Starts the application as usual and in admission mode (zeromonos.api.admission.enabled), sends the
+// same number of concurrent listing requests to each and prints how many server threads and pool
+// connections were busy, and how many threads were left waiting on the pool.
+class ApiConcurrencyBenchmark {
+
+    private static final int CLIENTS = Integer.getInteger("clients", 5000);
+
+    private static final int REQUESTS = 500;
+
+    private record Usage(String mode, long millis, int ok, int busy, int peakThreads, double threads, int connections,
+            int waitingOnPool, int queued) {
+    }
+
+    // Arguments, since application.properties takes precedence over the builder's default properties
+    private static Usage run(String mode, String... args) throws InterruptedException {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Hw1Application.class)
+                .properties("server.port=0", "logging.level.pt.ua.tqs.hw1=WARN")
+                .run(args)) {
+            seed(context);
+            int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+            ThreadPoolExecutor serverThreads = (ThreadPoolExecutor) ((TomcatWebServer) ((ServletWebServerApplicationContext) context).getWebServer())
+                    .getTomcat().getConnector().getProtocolHandler().getExecutor();
+            HikariPoolMXBean pool = context.getBean(HikariDataSource.class).getHikariPoolMXBean();
+
+            AtomicInteger peakThreads = new AtomicInteger();
+            AtomicLong threadSamples = new AtomicLong();
+            AtomicLong samples = new AtomicLong();
+            AtomicInteger connections = new AtomicInteger();
+            AtomicInteger waitingOnPool = new AtomicInteger();
+            AtomicBoolean sampling = new AtomicBoolean(true);
+            Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+                while (sampling.get()) {
+                    int active = serverThreads.getActiveCount();
+                    peakThreads.accumulateAndGet(active, Math::max);
+                    threadSamples.addAndGet(active);
+                    samples.incrementAndGet();
+                    connections.accumulateAndGet(pool.getActiveConnections(), Math::max);
+                    waitingOnPool.accumulateAndGet(pool.getThreadsAwaitingConnection(), Math::max);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            URI uri = URI.create("http://localhost:" + port + "/api/requests?limit=100&history=true");
+            long start = System.nanoTime();
+            List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                responses.add(client.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding()));
+            }
+            int ok = 0;
+            int busy = 0;
+            for (CompletableFuture<HttpResponse<Void>> response : responses) {
+                int status = response.join().statusCode();
+                ok += status == 200 ? 1 : 0;
+                busy += status == 503 ? 1 : 0;
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            sampling.set(false);
+            sampler.join();
+            ConnectionAdmissionFilter filter = context.getBeanProvider(ConnectionAdmissionFilter.class).getIfAvailable();
+            return new Usage(mode, millis, ok, busy, peakThreads.get(), (double) threadSamples.get() / samples.get(),
+                    connections.get(), waitingOnPool.get(), filter == null ? 0 : filter.peakWaiting());
+        }
+    }
+
+    private static void seed(ConfigurableApplicationContext context) {
+        RequestRepository repository = context.getBean(RequestRepository.class);
+        LocalDateTime date = LocalDateTime.now().plusDays(30);
+        context.getBean(TransactionTemplate.class).executeWithoutResult(status -> {
+            List<ServiceRequest> requests = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                requests.add(new ServiceRequest(date, "Benchmark item " + i, RequestState.RECIEVED, "Municipality " + i % 50));
+            }
+            repository.saveAll(requests);
+            repository.recordCreation(requests);
+        });
+    }
+
+    @Test
+    void concurrentClients() throws InterruptedException {
+        Usage plain = run("blocking");
+        Usage admission = run("admission", "--zeromonos.api.admission.enabled=true");
+
+        System.out.printf("%d concurrent clients%n", CLIENTS);
+        for (Usage usage : List.of(plain, admission)) {
+            System.out.printf("%-10s %6d ms, %d ok, %d busy | server threads: %.0f busy on average, %d at most"
+                    + " | %d connections, at most %d threads waiting on the pool, %d requests queued without a thread%n",
+                    usage.mode(), usage.millis(), usage.ok(), usage.busy(), usage.threads(), usage.peakThreads(),
+                    usage.connections(), usage.waitingOnPool(), usage.queued());
+        }
+
+        // Both answer everyone. The burst of connections briefly takes every server thread in both modes,
+        // but after that the admission mode only keeps busy about as many as the pool has connections
+        assertThat(plain.ok()).isEqualTo(CLIENTS);
+        assertThat(admission.ok()).isEqualTo(CLIENTS);
+        assertThat(admission.waitingOnPool()).isLessThan(plain.waitingOnPool());
+        assertThat(admission.threads()).isLessThan(plain.threads() / 2);
+    }
+}
@@ -0,0 +1,134 @@
+package pt.ua.tqs.hw1.benchmark;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import jakarta.persistence.EntityManagerFactory;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+import pt.ua.tqs.hw1.service.RequestService;
+import pt.ua.tqs.hw1.service.RequestTransition;
+
+// Not part of the normal build, run with: mvn test -Dtest=BulkSubmitBenchmark
+// Compares submitting one request at a time with the batch path, which can now send
+// its inserts in JDBC batches because tokens come from a pooled sequence.
+@SpringBootTest(properties = {"spring.jpa.properties.hibernate.generate_statistics=true",
+        // The lifecycle log polls would show up in the counts
+        "zeromonos.events.sync-interval=PT1H", "zeromonos.search.sync-interval=PT1H"})
+class BulkSubmitBenchmark {
+
+    private static final int MUNICIPALITIES = 500;
+
+    @Autowired
+    private RequestService service;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setup() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+    }
+
+    // Two requests per municipality, so every one of them fits
+    private List<ServiceRequest> requests(LocalDate day) {
+        List<ServiceRequest> requests = new ArrayList<>();
+        for (int i = 0; i < MUNICIPALITIES * 2; i++) {
+            requests.add(new ServiceRequest(day.atTime(9 + i % 2, 0), "Benchmark item " + i, RequestState.RECIEVED, "Municipality " + i / 2));
+        }
+        return requests;
+    }
+
+    @Test
+    void bulkSubmission() {
+        LocalDate day = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+
+        // Warm up both paths
+        requests(day.plusWeeks(1)).stream().limit(20).forEach(service::submitRequest);
+        service.submitRequests(requests(day.plusWeeks(2)));
+
+        List<ServiceRequest> single = requests(day);
+        statistics.clear();
+        long start = System.nanoTime();
+        single.forEach(service::submitRequest);
+        long singleNanos = System.nanoTime() - start;
+        long singleStatements = statistics.getPrepareStatementCount();
+
+        List<ServiceRequest> batch = requests(day.plusWeeks(3));
+        statistics.clear();
+        start = System.nanoTime();
+        service.submitRequests(batch);
+        long batchNanos = System.nanoTime() - start;
+        long batchStatements = statistics.getPrepareStatementCount();
+
+        System.out.printf("One by one: %d requests in %d ms (%.0f req/s), %d statements%n",
+                single.size(), singleNanos / 1_000_000, single.size() / (singleNanos / 1e9), singleStatements);
+        System.out.printf("Batch:      %d requests in %d ms (%.0f req/s), %d statements%n",
+                batch.size(), batchNanos / 1_000_000, batch.size() / (batchNanos / 1e9), batchStatements);
+
+        // Inserts are batched and tokens are fetched 50 at a time, so the batch path
+        // needs a small fraction of a statement per request
+        assertThat(batchStatements).isLessThan(batch.size() / 10);
+        assertThat(batchNanos).isLessThan(singleNanos);
+    }
+
+    @Test
+    void bulkTransition() {
+        LocalDate day = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        List<Long> tokens = service.submitRequests(requests(day)).stream().map(outcome -> outcome.saved().getToken()).toList();
+        List<Long> single = tokens.subList(0, tokens.size() / 2);
+        List<Long> bulk = tokens.subList(tokens.size() / 2, tokens.size());
+
+        statistics.clear();
+        long start = System.nanoTime();
+        single.forEach(service::assignRequest);
+        long singleNanos = System.nanoTime() - start;
+        long singleStatements = statistics.getPrepareStatementCount();
+
+        statistics.clear();
+        start = System.nanoTime();
+        service.transitionRequests(bulk, RequestTransition.ASSIGN);
+        long bulkNanos = System.nanoTime() - start;
+        long bulkStatements = statistics.getPrepareStatementCount();
+
+        System.out.printf("One by one: %d transitions in %d ms, %d statements%n", single.size(), singleNanos / 1_000_000, singleStatements);
+        System.out.printf("Bulk:       %d transitions in %d ms, %d statements%n", bulk.size(), bulkNanos / 1_000_000, bulkStatements);
+
+        assertThat(bulkStatements).isLessThan(bulk.size() / 10);
+        assertThat(bulkNanos).isLessThan(singleNanos);
+    }
+}
@@ -0,0 +1,138 @@
+package pt.ua.tqs.hw1.benchmark;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import jdk.jfr.consumer.RecordingStream;
+import pt.ua.tqs.hw1.Hw1Application;
+
+// Not part of the normal build, run with: mvn test -Dtest=VirtualThreadBenchmark [-Dclients=1000]
+// Starts the application on platform threads and on virtual threads (spring.threads.virtual.enabled)
+// and has the same number of concurrent clients submit requests and then read them back by token.
+// Prints the throughput of /api/submit and /api/requests/{id} in each mode, and how often a virtual
+// thread was pinned to its carrier while the load ran.
+class VirtualThreadBenchmark {
+
+    private static final int CLIENTS = Integer.getInteger("clients", 1000);
+
+    // Submissions per client, one per week so a municipality never runs out of room
+    private static final int SUBMISSIONS = 5;
+
+    // Times each client reads each of its requests
+    private static final int READS = 10;
+
+    private record Throughput(String mode, double submitsPerSecond, double readsPerSecond, int failed, int pinned) {
+    }
+
+    private interface Client {
+        int run(int client, HttpClient http, URI base) throws Exception;
+    }
+
+    // Arguments, since application.properties takes precedence over the builder's default properties
+    private static Throughput run(String mode, String... args) throws Exception {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Hw1Application.class)
+                .properties("server.port=0", "logging.level.pt.ua.tqs.hw1=WARN")
+                .run(args);
+                RecordingStream recording = new RecordingStream()) {
+            AtomicInteger pinned = new AtomicInteger();
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            recording.onEvent("jdk.VirtualThreadPinned", event -> pinned.incrementAndGet());
+            recording.startAsync();
+
+            URI base = URI.create("http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort());
+            HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            LocalDate monday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+            List<List<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                tokens.add(new ArrayList<>());
+            }
+            AtomicInteger failed = new AtomicInteger();
+
+            double submits = load(http, base, failed, CLIENTS * SUBMISSIONS, (client, h, b) -> {
+                for (int week = 0; week < SUBMISSIONS; week++) {
+                    String body = """
+                            {"date": "%sT10:00", "description": "Benchmark item", "state": "RECIEVED", "municipality": "Municipality %d"}
+                            """.formatted(monday.plusWeeks(week), client);
+                    HttpResponse<String> response = h.send(HttpRequest.newBuilder(b.resolve("/api/submit"))
+                            .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                            HttpResponse.BodyHandlers.ofString());
+                    if (response.statusCode() != 201) {
+                        return SUBMISSIONS - week;
+                    }
+                    tokens.get(client).add(response.body().replaceAll(".*\"token\":(\\d+).*", "$1"));
+                }
+                return 0;
+            });
+
+            double reads = load(http, base, failed, CLIENTS * SUBMISSIONS * READS, (client, h, b) -> {
+                int errors = 0;
+                for (int round = 0; round < READS; round++) {
+                    for (String token : tokens.get(client)) {
+                        HttpResponse<Void> response = h.send(HttpRequest.newBuilder(b.resolve("/api/requests/" + token)).build(),
+                                HttpResponse.BodyHandlers.discarding());
+                        errors += response.statusCode() == 200 ? 0 : 1;
+                    }
+                }
+                return errors;
+            });
+
+            recording.stop();
+            return new Throughput(mode, submits, reads, failed.get(), pinned.get());
+        }
+    }
+
+    // Runs every client at once, each on its own virtual thread, and gives the calls per second
+    private static double load(HttpClient http, URI base, AtomicInteger failed, int calls, Client client) throws Exception {
+        long start = System.nanoTime();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                int id = i;
+                results.add(clients.submit(() -> client.run(id, http, base)));
+            }
+            for (Future<Integer> result : results) {
+                failed.addAndGet(result.get());
+            }
+        }
+        return calls / ((System.nanoTime() - start) / 1e9);
+    }
+
+    @Test
+    void platformAndVirtualThreads() throws Exception {
+        // Warm up the JIT, so the first mode measured isn't at a disadvantage
+        run("warm-up");
+        Throughput platform = run("platform");
+        Throughput virtual = run("virtual", "--spring.threads.virtual.enabled=true");
+
+        System.out.printf("%d concurrent clients%n", CLIENTS);
+        for (Throughput throughput : List.of(platform, virtual)) {
+            System.out.printf("%-9s submit %6.0f req/s, get by token %6.0f req/s, %d failed, %d pinned%n",
+                    throughput.mode(), throughput.submitsPerSecond(), throughput.readsPerSecond(), throughput.failed(), throughput.pinned());
+        }
+
+        // No claim on which is faster, that depends on the machine and the database. Both must serve
+        // every call, and the virtual threads must never be pinned on these paths
+        assertThat(platform.failed()).isZero();
+        assertThat(virtual.failed()).isZero();
+        assertThat(virtual.pinned()).isZero();
+    }
+}
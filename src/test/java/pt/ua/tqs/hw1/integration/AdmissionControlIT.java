@@ -0,0 +1,120 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.boundary.ConnectionAdmissionFilter;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT,
+        properties = { "zeromonos.api.admission.enabled=true", "zeromonos.api.admission.max-in-flight=2" })
+class AdmissionControlIT {
+
+    private static final int CLIENTS = 200;
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private ConnectionAdmissionFilter filter;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+    }
+
+    // The slot goes back when the container is done with the request, just after the client has its response
+    private void waitForIdle() throws InterruptedException {
+        for (int i = 0; i < 50 && filter.inFlight() > 0; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void concurrentClientsAreAllServed_twoAtATime() throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + randomServerPort + "/api/requests?limit=10")).build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertThat(response.join().statusCode()).isEqualTo(200);
+        }
+        waitForIdle();
+        assertThat(filter.peakInFlight()).isBetween(1, 2);
+        assertThat(filter.inFlight()).isZero();
+        assertThat(filter.waiting()).isZero();
+    }
+
+    @Test
+    void sameContractBehindTheFilter() throws InterruptedException {
+        LocalDateTime dateTime = LocalDateTime.of(LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY)), LocalTime.of(10, 0));
+        long token = given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(dateTime, "Old sofa", RequestState.RECIEVED, "Aveiro"))
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().jsonPath().getLong("token");
+
+        // Same state machine as always
+        given().when().put("/api/requests/" + token + "/end")
+            .then().statusCode(400);
+        given().when().put("/api/requests/" + token + "/assign")
+            .then().statusCode(200).body("state", equalTo("ASSIGNED"));
+
+        // The export runs async itself, and keeps its slot until it's done
+        given().when().get("/api/requests/export")
+            .then().statusCode(200).body(containsString("Old sofa"));
+        waitForIdle();
+        assertThat(filter.inFlight()).isZero();
+    }
+}
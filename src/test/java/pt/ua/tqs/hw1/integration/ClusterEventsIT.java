@@ -0,0 +1,124 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.Hw1Application;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Two nodes on the same database: staff following a municipality on one of them see what is done
+// through the other, under the same event ids, and can reconnect to either
+class ClusterEventsIT {
+
+    private ConfigurableApplicationContext first;
+
+    private ConfigurableApplicationContext second;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private final List<CompletableFuture<HttpResponse<Stream<String>>>> streams = new ArrayList<>();
+
+    // A short lag, so nodes that only just started can already place a reconnecting client's events
+    private static ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(Hw1Application.class)
+                .run("--server.port=0", "--spring.datasource.url=jdbc:h2:mem:cluster-events-it;DB_CLOSE_DELAY=-1",
+                        "--zeromonos.events.sync-lag=PT0.5S");
+    }
+
+    private static int port(ConfigurableApplicationContext node) {
+        return ((WebServerApplicationContext) node).getWebServer().getPort();
+    }
+
+    @BeforeEach
+    void setup() {
+        first = start();
+        second = start();
+    }
+
+    @AfterEach
+    void cleanup() {
+        streams.forEach(stream -> stream.cancel(true));
+        second.close();
+        first.close();
+    }
+
+    private BlockingQueue<String> subscribe(ConfigurableApplicationContext node, String path, String lastEventId) throws Exception {
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port(node) + path))
+                .header("Accept", "text/event-stream");
+        if (lastEventId != null) {
+            request.header("Last-Event-ID", lastEventId);
+        }
+        CompletableFuture<HttpResponse<Stream<String>>> stream = client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofLines());
+        streams.add(stream);
+        stream.thenAcceptAsync(response -> response.body().forEach(lines::add));
+        assertThat(nextLineStartingWith(lines, ":")).isEqualTo(":subscribed");
+        return lines;
+    }
+
+    private static String nextLineStartingWith(BlockingQueue<String> lines, String prefix) throws InterruptedException {
+        String line;
+        while ((line = lines.poll(10, TimeUnit.SECONDS)) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void eventsReachEveryNodeUnderTheSameIds() throws Exception {
+        BlockingQueue<String> onFirst = subscribe(first, "/api/events/municipalities/Beja", null);
+        BlockingQueue<String> onSecond = subscribe(second, "/api/events/municipalities/Beja", null);
+
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        int token = given()
+            .port(port(first))
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(nextMonday.atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Beja"))
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().path("token");
+
+        String id = nextLineStartingWith(onFirst, "id:");
+        assertThat(nextLineStartingWith(onFirst, "data:")).contains("\"token\":" + token);
+        assertThat(nextLineStartingWith(onSecond, "id:")).isEqualTo(id);
+        assertThat(nextLineStartingWith(onSecond, "data:")).contains("\"token\":" + token).contains("RECIEVED");
+
+        // Assigned through the first node while the client is away, and it comes back on the second
+        given().port(port(first)).put("/api/requests/{id}/assign", token).then().statusCode(200);
+        assertThat(nextLineStartingWith(onFirst, "data:")).contains("ASSIGNED");
+
+        BlockingQueue<String> reconnected = subscribe(second, "/api/events/municipalities/Beja", id.substring(3));
+        String data = nextLineStartingWith(reconnected, "data:");
+        if (data != null && data.contains("RECIEVED")) {
+            data = nextLineStartingWith(reconnected, "data:");
+        }
+        assertThat(data).contains("\"token\":" + token).contains("ASSIGNED");
+    }
+}
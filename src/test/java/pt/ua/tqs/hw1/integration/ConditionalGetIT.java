@@ -0,0 +1,102 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+class ConditionalGetIT {
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    private long token;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+        token = newRequest("Aveiro");
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+    }
+
+    private long newRequest(String municipality) {
+        ServiceRequest request = new ServiceRequest(LocalDateTime.now().plusDays(7), "Old fridge", RequestState.RECIEVED, municipality);
+        repository.persistAll(List.of(request));
+        return request.getToken();
+    }
+
+    private String eTagOf(String path, Object... params) {
+        Response response = given().get(path, params);
+        response.then().statusCode(200);
+        assertThat(response.headers().getValues("ETag")).hasSize(1);
+        return response.header("ETag");
+    }
+
+    private int conditionalGet(String eTag, String path, Object... params) {
+        return given().header("If-None-Match", eTag).get(path, params).statusCode();
+    }
+
+    @Test
+    void requestIsNotModifiedUntilItMoves() {
+        String eTag = eTagOf("/api/requests/{id}", token);
+        assertThat(conditionalGet(eTag, "/api/requests/{id}", token)).isEqualTo(304);
+
+        given().put("/api/requests/{id}/assign", token).then().statusCode(200);
+
+        assertThat(conditionalGet(eTag, "/api/requests/{id}", token)).isEqualTo(200);
+        assertThat(eTagOf("/api/requests/{id}", token)).isNotEqualTo(eTag);
+    }
+
+    @Test
+    void historyIsNotModifiedUntilItGrows() {
+        String eTag = eTagOf("/api/requests/{id}/states", token);
+        assertThat(conditionalGet(eTag, "/api/requests/{id}/states", token)).isEqualTo(304);
+
+        given().put("/api/requests/{id}/cancel", token).then().statusCode(200);
+
+        given().header("If-None-Match", eTag).get("/api/requests/{id}/states", token)
+                .then().statusCode(200).body("", hasSize(2));
+    }
+
+    @Test
+    void listingFollowsItsMunicipality() {
+        String path = "/api/requests/municipalities/{municipality}";
+        String eTag = eTagOf(path, "Aveiro");
+        assertThat(conditionalGet(eTag, path, "Aveiro")).isEqualTo(304);
+
+        // Other municipalities don't matter
+        newRequest("Porto");
+        assertThat(conditionalGet(eTag, path, "Aveiro")).isEqualTo(304);
+
+        newRequest("Aveiro");
+        assertThat(conditionalGet(eTag, path, "Aveiro")).isEqualTo(200);
+
+        String afterSubmit = eTagOf(path, "Aveiro");
+        given().put("/api/requests/{id}/assign", token).then().statusCode(200);
+        assertThat(conditionalGet(afterSubmit, path, "Aveiro")).isEqualTo(200);
+    }
+}
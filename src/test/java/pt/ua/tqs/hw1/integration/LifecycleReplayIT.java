@@ -0,0 +1,96 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Limit;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.RequestStateChange;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.LifecycleReplay;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+@SpringBootTest
+class LifecycleReplayIT {
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private LifecycleReplay replay;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+    }
+
+    // A request whose snapshot says RECIEVED but whose log went on to ASSIGNED and IN_PROGRESS
+    private long staleRequest() {
+        LocalDateTime created = LocalDateTime.of(2030, 1, 7, 9, 0);
+        return transactionTemplate.execute(status -> {
+            ServiceRequest request = repository.save(new ServiceRequest(created.plusDays(7), "Old fridge", RequestState.RECIEVED, "Aveiro"));
+            repository.recordCreation(List.of(request));
+            repository.recordStateChange(request.getToken(), created.plusHours(1), RequestState.ASSIGNED);
+            repository.recordStateChange(request.getToken(), created.plusHours(2), RequestState.IN_PROGRESS);
+            return request.getToken();
+        });
+    }
+
+    @Test
+    void rebuildAll() {
+        long stale = staleRequest();
+        long upToDate = transactionTemplate.execute(status -> {
+            ServiceRequest request = repository.save(new ServiceRequest(LocalDateTime.of(2030, 1, 8, 9, 0), "Sofa", RequestState.RECIEVED, "Porto"));
+            repository.recordCreation(List.of(request));
+            return request.getToken();
+        });
+
+        assertThat(replay.rebuildAll()).isEqualTo(1);
+
+        assertThat(repository.findByToken(stale)).get().extracting(ServiceRequest::getState).isEqualTo(RequestState.IN_PROGRESS);
+        assertThat(repository.findByToken(upToDate)).get().extracting(ServiceRequest::getState).isEqualTo(RequestState.RECIEVED);
+    }
+
+    @Test
+    void rebuildOne() {
+        long stale = staleRequest();
+
+        assertThat(replay.rebuild(stale)).isTrue();
+        assertThat(replay.rebuild(stale)).isFalse();
+
+        assertThat(repository.findByToken(stale)).get().extracting(ServiceRequest::getState).isEqualTo(RequestState.IN_PROGRESS);
+        assertThat(repository.findHistoryAfter(stale, 0, Limit.unlimited())).extracting(RequestStateChange::getState)
+            .containsExactly(RequestState.RECIEVED, RequestState.ASSIGNED, RequestState.IN_PROGRESS);
+    }
+
+    @Test
+    void sameTickEntriesKeepTheirOrder() {
+        LocalDateTime tick = LocalDateTime.of(2030, 1, 7, 9, 0);
+        long token = transactionTemplate.execute(status -> {
+            ServiceRequest request = repository.save(new ServiceRequest(tick.plusDays(7), "Old fridge", RequestState.RECIEVED, "Aveiro"));
+            repository.recordCreation(List.of(request));
+            repository.recordStateChange(request.getToken(), tick, RequestState.ASSIGNED);
+            repository.recordStateChange(request.getToken(), tick, RequestState.CANCELLED);
+            return request.getToken();
+        });
+
+        assertThat(repository.findHistoryAfter(token, 0, Limit.unlimited()))
+            .extracting(RequestStateChange::getSeq, RequestStateChange::getState)
+            .containsExactly(
+                tuple(1, RequestState.RECIEVED),
+                tuple(2, RequestState.ASSIGNED),
+                tuple(3, RequestState.CANCELLED));
+    }
+}
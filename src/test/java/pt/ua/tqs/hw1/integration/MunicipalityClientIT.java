@@ -4,6 +4,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -20,7 +21,7 @@ import pt.ua.tqs.hw1.service.MunicipalityClient;
 class MunicipalityClientIT {
 
     @Spy
-    private MunicipalityClient client;
+    private MunicipalityClient client = new MunicipalityClient(Duration.ofHours(24), Duration.ofHours(1), Duration.ofSeconds(10), Duration.ofMinutes(10));
 
     @Test
     void lazyLoading() throws IOException {
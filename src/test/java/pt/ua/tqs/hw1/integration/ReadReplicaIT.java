@@ -0,0 +1,132 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.TemporalAdjusters;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+// Two H2 databases: the application's own one as the primary and one standing in for its replica,
+// which never receives anything, so each read shows where it went
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = {
+        "zeromonos.datasource.replica.url=" + ReadReplicaIT.REPLICA_URL,
+        "zeromonos.datasource.replica.max-lag=PT0.5S"
+})
+class ReadReplicaIT {
+
+    static final String REPLICA_URL = "jdbc:h2:mem:replica-it;DB_CLOSE_DELAY=-1";
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    @Qualifier("primaryDataSource")
+    private DataSource primaryDataSource;
+
+    @Autowired
+    @Qualifier("replicaDataSource")
+    private DataSource replicaDataSource;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    private JdbcTemplate primary;
+
+    private JdbcTemplate replica;
+
+    private LocalDate nextMonday;
+
+    // A real replica already has the schema, this one gets it before the application starts reading it
+    @BeforeAll
+    static void createReplicaSchema() {
+        ResourceDatabasePopulator schema = new ResourceDatabasePopulator();
+        for (String script : new String[] {"V1__initial_schema.sql", "V2__query_indexes.sql", "V3__request_state_date_index.sql",
+                "V4__versions.sql", "V5__request_state_counts.sql"}) {
+            schema.addScript(new ClassPathResource("db/migration/" + script));
+        }
+        schema.setContinueOnError(true);
+        schema.execute(new DriverManagerDataSource(REPLICA_URL));
+    }
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+        primary = new JdbcTemplate(primaryDataSource);
+        replica = new JdbcTemplate(replicaDataSource);
+        nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+    }
+
+    @AfterEach
+    void cleanup() {
+        for (JdbcTemplate database : new JdbcTemplate[] {primary, replica}) {
+            database.update("DELETE FROM request_state");
+            database.update("DELETE FROM booking_slot");
+            database.update("DELETE FROM request");
+        }
+        capacityIndex.reconcile();
+    }
+
+    private long submit() {
+        return given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(nextMonday.atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Aveiro"))
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().jsonPath().getLong("token");
+    }
+
+    @Test
+    void writesGoToThePrimaryAndAreReadBackFromIt() throws InterruptedException {
+        long token = submit();
+
+        assertThat(primary.queryForObject("SELECT COUNT(*) FROM request", Long.class)).isEqualTo(1);
+        assertThat(replica.queryForObject("SELECT COUNT(*) FROM request", Long.class)).isZero();
+
+        // Right after the write, the replica may not have it yet
+        given().get("/api/requests/{id}/states", token).then().statusCode(200);
+        given().put("/api/requests/{id}/assign", token).then().statusCode(200);
+        given().get("/api/requests/{id}/states", token).then().statusCode(200);
+
+        // Once the lag is over it's read from the replica, which here never gets it
+        Thread.sleep(800);
+        given().get("/api/requests/{id}/states", token).then().statusCode(404);
+    }
+
+    @Test
+    void listsAreReadFromTheReplica() {
+        submit();
+        replica.update("INSERT INTO request (token, date, description, municipality, state, version) VALUES (?, ?, ?, ?, ?, 0)",
+                900_000L, LocalDateTime.of(nextMonday, LocalTime.of(10, 0)), "Sofa", "Aveiro", RequestState.RECIEVED.ordinal());
+
+        given().get("/api/requests").then().statusCode(200).body("token", contains(900_000));
+        given().get("/api/requests/municipalities/{municipality}", "Aveiro").then().statusCode(200).body("token", contains(900_000));
+    }
+}
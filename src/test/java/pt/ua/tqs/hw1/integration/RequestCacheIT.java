@@ -0,0 +1,94 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.restassured.RestAssured;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.RequestCacheSync;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+// The sync is run by hand here, the schedule is pushed out of the way
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT,
+        properties = "zeromonos.request-cache.sync-interval=PT1H")
+class RequestCacheIT {
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private RequestCacheSync cacheSync;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private long token;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+        ServiceRequest request = new ServiceRequest(LocalDateTime.now().plusDays(7), "Old fridge", RequestState.RECIEVED, "Aveiro");
+        repository.persistAll(List.of(request));
+        token = request.getToken();
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+    }
+
+    private long hits() {
+        return given().get("/api/metrics/request-cache").then().statusCode(200)
+                .extract().jsonPath().getLong("hits");
+    }
+
+    private void expectState(RequestState state) {
+        given().get("/api/requests/{id}", token).then().statusCode(200).body("state", equalTo(state.name()));
+    }
+
+    @Test
+    void pollsAreCachedUntilTheRequestMoves() {
+        long before = hits();
+        expectState(RequestState.RECIEVED);
+        expectState(RequestState.RECIEVED);
+        expectState(RequestState.RECIEVED);
+        assertThat(hits() - before).isEqualTo(2);
+
+        given().put("/api/requests/{id}/assign", token).then().statusCode(200);
+
+        expectState(RequestState.ASSIGNED);
+    }
+
+    @Test
+    void transitionsFromAnotherNodeAreSynced() {
+        expectState(RequestState.RECIEVED);
+
+        // Another node sharing the database assigns it, this node's cache doesn't know
+        transactionTemplate.executeWithoutResult(status -> {
+            repository.transitionState(token, RequestState.RECIEVED, RequestState.ASSIGNED);
+            repository.recordStateChange(token, LocalDateTime.now(), RequestState.ASSIGNED);
+        });
+        expectState(RequestState.RECIEVED);
+
+        cacheSync.sync();
+
+        expectState(RequestState.ASSIGNED);
+    }
+}
@@ -5,7 +5,13 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -17,9 +23,11 @@ import org.springframework.boot.test.web.server.LocalServerPort;
 
 import io.restassured.RestAssured;
 import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
 import pt.ua.tqs.hw1.data.RequestRepository;
 import pt.ua.tqs.hw1.data.RequestState;
 import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
 
 import static io.restassured.RestAssured.given;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -37,6 +45,12 @@ class RequestControllerIT {
     @Autowired
     private RequestRepository repository;
 
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
     @BeforeEach
     void setup() {
         RestAssured.port = randomServerPort;
@@ -45,6 +59,8 @@ class RequestControllerIT {
     @AfterEach
     void cleanup() {
         repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
     }
 
     @Test
@@ -68,6 +84,106 @@ class RequestControllerIT {
         assertThat(allRequests).extracting(ServiceRequest::getDate).containsExactly(dateTime);
     }
 
+    @Test
+    void submitRequest_tokenFromClientIsIgnored() {
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        String body = """
+                {"token": 999999, "date": "%sT09:00", "description": "Old fridge", "state": "RECIEVED", "municipality": "Beja"}
+                """.formatted(nextMonday);
+
+        int token = given()
+            .contentType(ContentType.JSON)
+            .body(body)
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().path("token");
+
+        assertThat(token).isNotEqualTo(999999);
+        assertThat(repository.findById(999999L)).isEmpty();
+    }
+
+    @Test
+    void submitRequest_overCapacity_untilOneIsCancelled() {
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+
+        int first = given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(nextMonday.atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Beja"))
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().path("token");
+
+        given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(nextMonday.atTime(10, 0), "Old sofa", RequestState.RECIEVED, "Beja"))
+            .post("/api/submit")
+        .then()
+            .statusCode(201);
+
+        // Third one on the same day and place doesn't fit
+        ServiceRequest third = new ServiceRequest(nextMonday.atTime(11, 0), "Old bed", RequestState.RECIEVED, "Beja");
+        given()
+            .contentType(ContentType.JSON)
+            .body(third)
+            .post("/api/submit")
+        .then()
+            .statusCode(400)
+            .body("error", equalTo("too many requests for this day and place have already been booked"))
+            .body("available[0]", equalTo(nextMonday.plusDays(1).toString()));
+
+        given()
+            .param("municipality", "Beja")
+            .param("from", nextMonday.toString())
+            .param("to", nextMonday.plusDays(1).toString())
+        .when()
+            .get("/api/availability")
+        .then()
+            .statusCode(200)
+            .body("remaining", contains(0, 2));
+
+        assertThat(repository.findAll()).hasSize(2);
+
+        // Cancelling gives the slot back
+        given()
+            .put("/api/requests/{id}/cancel", String.valueOf(first))
+        .then()
+            .statusCode(200);
+
+        given()
+            .contentType(ContentType.JSON)
+            .body(third)
+            .post("/api/submit")
+        .then()
+            .statusCode(201);
+
+        assertThat(slotRepository.findAll()).hasSize(2);
+    }
+
+    @Test
+    void submitBatch() {
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+
+        List<ServiceRequest> batch = List.of(
+            new ServiceRequest(nextMonday.atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Beja"),
+            new ServiceRequest(nextMonday.atTime(10, 0), "Old sofa", RequestState.RECIEVED, "Beja"),
+            new ServiceRequest(nextMonday.atTime(11, 0), "Old bed", RequestState.RECIEVED, "Beja"),
+            new ServiceRequest(nextMonday.atTime(20, 0), "Too late", RequestState.RECIEVED, "Mora"));
+
+        given()
+            .contentType(ContentType.JSON)
+            .body(batch)
+        .when()
+            .post("/api/submit/batch")
+        .then()
+            .statusCode(200)
+            .body("error", contains(null, null, "too many requests for this day and place have already been booked", "the request date is invalid"));
+
+        assertThat(repository.findAll()).extracting(ServiceRequest::getDescription).containsExactlyInAnyOrder("Old fridge", "Old sofa");
+        assertThat(slotRepository.findAll()).hasSize(2);
+    }
+
     @Test
     void getRequests() {
         LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
@@ -90,6 +206,43 @@ class RequestControllerIT {
             .body("municipality", contains("Lisboa", "Amarante", "Chamusca"));
     }
 
+    @Test
+    void getRequests_pagedAndExported() {
+        LocalDateTime dateTime = LocalDateTime.of(LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY)), LocalTime.of(15, 30));
+        for (String municipality : List.of("Lisboa", "Amarante", "Chamusca")) {
+            repository.saveAndFlush(new ServiceRequest(dateTime, "Help", RequestState.RECIEVED, municipality));
+        }
+
+        String cursor = given()
+            .queryParam("limit", 2)
+        .when()
+            .get("/api/requests")
+        .then()
+            .statusCode(200)
+            .body("municipality", contains("Lisboa", "Amarante"))
+            .extract().header("Next-Cursor");
+
+        given()
+            .queryParam("afterToken", cursor)
+            .queryParam("limit", 2)
+        .when()
+            .get("/api/requests")
+        .then()
+            .statusCode(200)
+            .body("municipality", contains("Chamusca"));
+
+        String export = given()
+        .when()
+            .get("/api/requests/export")
+        .then()
+            .statusCode(200)
+            .contentType("application/x-ndjson")
+            .extract().asString();
+
+        assertThat(export.lines()).hasSize(3);
+        assertThat(export.lines().toList().get(2)).contains("\"municipality\":\"Chamusca\"");
+    }
+
     @Test
     void getRequestsInMunicipality() {
         LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
@@ -135,10 +288,9 @@ class RequestControllerIT {
 
         ServiceRequest request = repository.saveAndFlush(new ServiceRequest(dateTime, "Help me please", RequestState.RECIEVED, "Aveiro"));
 
-        request.setState(RequestState.ASSIGNED);
-        request.setState(RequestState.CANCELLED);
-
-        request = repository.saveAndFlush(request);
+        // Entries go straight to the lifecycle log
+        repository.recordStateChange(request.getToken(), LocalDateTime.now(), RequestState.ASSIGNED);
+        repository.recordStateChange(request.getToken(), LocalDateTime.now().plusSeconds(1), RequestState.CANCELLED);
 
         given()
         .when()
@@ -180,6 +332,116 @@ class RequestControllerIT {
             .body("state", equalTo("ASSIGNED"));
     }
 
+    @Test
+    void assignRequest_concurrently_onlyOneSucceeds() throws Exception {
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        LocalDateTime dateTime = LocalDateTime.of(nextMonday, LocalTime.of(15, 30));
+
+        ServiceRequest request = repository.saveAndFlush(new ServiceRequest(dateTime, "Help me please", RequestState.RECIEVED, "Aveiro"));
+
+        // Several staff members clicking "assign" at the same time
+        List<Callable<Integer>> clicks = Collections.nCopies(8, () -> given()
+            .when()
+                .put("/api/requests/{id}/assign", String.valueOf(request.getToken()))
+            .then()
+                .extract().statusCode());
+
+        List<Integer> statuses = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (Future<Integer> status : executor.invokeAll(clicks)) {
+                statuses.add(status.get());
+            }
+        }
+
+        assertThat(statuses).containsOnlyOnce(200).containsOnly(200, 400);
+
+        given()
+        .when()
+            .get("/api/requests/{id}/states", String.valueOf(request.getToken()))
+        .then()
+            .statusCode(200)
+            .body("state", contains("ASSIGNED"));
+    }
+
+    @Test
+    void bulkCancel() {
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        LocalDateTime dateTime = LocalDateTime.of(nextMonday, LocalTime.of(15, 30));
+
+        List<Long> tokens = new ArrayList<>();
+        for (RequestState state : List.of(RequestState.RECIEVED, RequestState.ASSIGNED, RequestState.DONE)) {
+            tokens.add(repository.saveAndFlush(new ServiceRequest(dateTime, "Help me please", state, "Aveiro")).getToken());
+        }
+        tokens.add(12345L);
+
+        given()
+            .contentType(ContentType.JSON)
+            .body(tokens)
+        .when()
+            .put("/api/requests/bulk/cancel")
+        .then()
+            .statusCode(200)
+            .body("state", contains("CANCELLED", "CANCELLED", null, null))
+            .body("error", contains(null, null, "request isn't in a valid state to be cancelled", "request not found"));
+
+        assertThat(repository.findAll()).extracting(ServiceRequest::getState)
+            .containsExactlyInAnyOrder(RequestState.CANCELLED, RequestState.CANCELLED, RequestState.DONE);
+
+        given()
+        .when()
+            .get("/api/requests/{id}/states", String.valueOf(tokens.get(1)))
+        .then()
+            .statusCode(200)
+            .body("state", contains("CANCELLED"));
+    }
+
+    @Test
+    void submitThenAssign_historyFromLog() {
+        LocalDateTime dateTime = LocalDateTime.of(LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.WEDNESDAY)), LocalTime.of(11, 0));
+
+        long token = given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(dateTime, "Description", RequestState.RECIEVED, "Viseu"))
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().jsonPath().getLong("token");
+
+        given()
+        .when()
+            .put("/api/requests/{id}/assign", String.valueOf(token))
+        .then()
+            .statusCode(200)
+            .body("state", equalTo("ASSIGNED"));
+
+        given()
+        .when()
+            .get("/api/requests/{id}/states", String.valueOf(token))
+        .then()
+            .statusCode(200)
+            .header("Next-Cursor", "2")
+            .body("state", contains("RECIEVED", "ASSIGNED"));
+
+        // Polling from the cursor only returns what happened since
+        given()
+        .when()
+            .put("/api/requests/{id}/start", String.valueOf(token))
+        .then()
+            .statusCode(200);
+
+        given()
+            .queryParam("after", 2)
+            .queryParam("limit", 10)
+        .when()
+            .get("/api/requests/{id}/states", String.valueOf(token))
+        .then()
+            .statusCode(200)
+            .header("Next-Cursor", "3")
+            .body("state", contains("IN_PROGRESS"))
+            .body("seq", contains(3));
+    }
+
     @Test
     void startRequest() {
         LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
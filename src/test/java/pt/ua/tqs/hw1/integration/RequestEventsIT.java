@@ -0,0 +1,130 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+class RequestEventsIT {
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private final List<CompletableFuture<HttpResponse<Stream<String>>>> streams = new ArrayList<>();
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+    }
+
+    @AfterEach
+    void cleanup() {
+        streams.forEach(stream -> stream.cancel(true));
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+    }
+
+    // The stream's lines as they arrive, once the server confirmed the subscription
+    private BlockingQueue<String> subscribe(String path) throws Exception {
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + randomServerPort + path))
+                .header("Accept", "text/event-stream").build();
+        CompletableFuture<HttpResponse<Stream<String>>> stream = client.sendAsync(request, HttpResponse.BodyHandlers.ofLines());
+        streams.add(stream);
+        stream.thenAcceptAsync(response -> response.body().forEach(lines::add));
+        assertThat(nextLineStartingWith(lines, ":")).isEqualTo(":subscribed");
+        return lines;
+    }
+
+    private static String nextLineStartingWith(BlockingQueue<String> lines, String prefix) throws InterruptedException {
+        String line;
+        while ((line = lines.poll(5, TimeUnit.SECONDS)) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void staffSeeSubmissionsAndTransitions() throws Exception {
+        BlockingQueue<String> staff = subscribe("/api/events/municipalities/Beja");
+        LocalDate nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+
+        int token = given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(nextMonday.atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Beja"))
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().path("token");
+
+        assertThat(nextLineStartingWith(staff, "data:")).contains("\"token\":" + token).contains("RECIEVED");
+
+        given().put("/api/requests/{id}/assign", token).then().statusCode(200);
+
+        assertThat(nextLineStartingWith(staff, "data:")).contains("\"token\":" + token).contains("ASSIGNED");
+    }
+
+    @Test
+    void citizensSeeTheirRequestMove() throws Exception {
+        ServiceRequest request = new ServiceRequest(LocalDate.now().plusDays(7).atTime(9, 0), "Sofa", RequestState.RECIEVED, "Porto");
+        repository.persistAll(List.of(request));
+        BlockingQueue<String> citizen = subscribe("/api/events/requests/" + request.getToken());
+
+        // Rejected, nothing to tell
+        given().put("/api/requests/{id}/start", request.getToken()).then().statusCode(400);
+        given().put("/api/requests/{id}/cancel", request.getToken()).then().statusCode(200);
+
+        String event = nextLineStartingWith(citizen, "event:");
+        assertThat(event).isEqualTo("event:request");
+        // The submission may be read from the log after the subscription, and told first
+        String data = nextLineStartingWith(citizen, "data:");
+        if (data != null && data.contains("RECIEVED")) {
+            data = nextLineStartingWith(citizen, "data:");
+        }
+        assertThat(data).contains("CANCELLED").doesNotContain("IN_PROGRESS");
+    }
+}
@@ -0,0 +1,113 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.restassured.RestAssured;
+import jakarta.persistence.EntityManagerFactory;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+
+// Listing must cost the same number of statements however many requests come back
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT,
+        properties = {"spring.jpa.properties.hibernate.generate_statistics=true",
+                // The lifecycle log polls would show up in the counts
+                "zeromonos.events.sync-interval=PT1H", "zeromonos.search.sync-interval=PT1H"})
+class RequestListingIT {
+
+    private static final int REQUESTS = 20;
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        LocalDateTime date = LocalDateTime.now().plusDays(30);
+        transactionTemplate.executeWithoutResult(status -> {
+            List<ServiceRequest> requests = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                requests.add(new ServiceRequest(date, "Item " + i, RequestState.RECIEVED, "Aveiro"));
+            }
+            repository.saveAll(requests);
+            repository.recordCreation(requests);
+            for (ServiceRequest request : requests) {
+                repository.recordStateChange(request.getToken(), date.minusDays(1), RequestState.ASSIGNED);
+            }
+        });
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+    }
+
+    private long statementsFor(Runnable call) {
+        statistics.clear();
+        call.run();
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    void listingIsOneStatement() {
+        long page = statementsFor(() -> given().get("/api/requests?limit=100")
+                .then().statusCode(200)
+                .body("", hasSize(REQUESTS))
+                .body("stateChanges", everyItem(nullValue())));
+        long municipality = statementsFor(() -> given().get("/api/requests/municipalities/Aveiro")
+                .then().statusCode(200)
+                .body("", hasSize(REQUESTS)));
+
+        assertThat(page).isEqualTo(1);
+        // Plus the lookup of its ETag
+        assertThat(municipality).isEqualTo(2);
+    }
+
+    @Test
+    void historyIsOneMoreStatement() {
+        long page = statementsFor(() -> given().get("/api/requests?limit=100&history=true")
+                .then().statusCode(200)
+                .body("", hasSize(REQUESTS))
+                .body("stateChanges*.size()", everyItem(equalTo(2)))
+                .body("[0].stateChanges.state", equalTo(List.of("RECIEVED", "ASSIGNED"))));
+        long municipality = statementsFor(() -> given().get("/api/requests/municipalities/Aveiro?history=true")
+                .then().statusCode(200)
+                .body("stateChanges*.size()", everyItem(equalTo(2))));
+
+        assertThat(page).isEqualTo(2);
+        assertThat(municipality).isEqualTo(3);
+    }
+}
@@ -0,0 +1,128 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+import pt.ua.tqs.hw1.service.DescriptionIndex;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+// The index polls the lifecycle log only when told to, so what it has seen is up to the tests
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "zeromonos.search.sync-interval=PT1H")
+class RequestSearchIT {
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    @Autowired
+    private DescriptionIndex descriptionIndex;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private LocalDate nextMonday;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+        nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+        descriptionIndex.rebuild();
+    }
+
+    private int submit(LocalDateTime date, String description, String municipality) {
+        return given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(date, description, RequestState.RECIEVED, municipality))
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().jsonPath().getInt("token");
+    }
+
+    @Test
+    void findsSubmissionsRightAway() {
+        int sofa = submit(nextMonday.atTime(9, 0), "Sofá de três lugares", "Aveiro");
+        int fridge = submit(nextMonday.atTime(10, 0), "Frigorífico e sofá-cama", "Porto");
+        submit(nextMonday.atTime(11, 0), "Máquina de lavar", "Porto");
+
+        given().param("q", "SOFA").get("/api/requests/search")
+            .then().statusCode(200).body("$", contains(sofa, fridge));
+        given().param("q", "frigorificos").get("/api/requests/search")
+            .then().statusCode(200).body("$", contains(fridge));
+        given().param("q", "sofa").param("municipality", "Porto").get("/api/requests/search")
+            .then().statusCode(200).body("$", contains(fridge));
+    }
+
+    @Test
+    void stateFilterFollowsTransitions() {
+        int sofa = submit(nextMonday.atTime(9, 0), "Sofá velho", "Aveiro");
+        given().put("/api/requests/{id}/cancel", sofa).then().statusCode(200);
+
+        given().param("q", "sofa").param("state", "RECIEVED").get("/api/requests/search")
+            .then().statusCode(200).body("$", empty());
+        given().param("q", "sofa").param("state", "CANCELLED").get("/api/requests/search")
+            .then().statusCode(200).body("$", contains(sofa));
+    }
+
+    @Test
+    void syncPicksUpRowsWrittenElsewhere() {
+        // As if another node wrote it: no event reaches this one
+        ServiceRequest request = new ServiceRequest(nextMonday.atTime(9, 0), "Colchão", RequestState.RECIEVED, "Aveiro");
+        repository.persistAll(List.of(request));
+        given().param("q", "colchao").get("/api/requests/search")
+            .then().statusCode(200).body("$", empty());
+
+        descriptionIndex.sync();
+
+        given().param("q", "colchao").get("/api/requests/search")
+            .then().statusCode(200).body("$", contains((int) request.getToken()));
+
+        // Moved elsewhere too, only the log says so
+        transactionTemplate.executeWithoutResult(status -> {
+            repository.transitionState(request.getToken(), RequestState.RECIEVED, RequestState.CANCELLED);
+            repository.recordStateChange(request.getToken(), LocalDateTime.now(), RequestState.CANCELLED);
+        });
+        descriptionIndex.sync();
+
+        given().param("q", "colchao").param("state", "CANCELLED").get("/api/requests/search")
+            .then().statusCode(200).body("$", contains((int) request.getToken()));
+    }
+}
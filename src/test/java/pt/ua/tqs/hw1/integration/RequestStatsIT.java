@@ -0,0 +1,149 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.data.StateCount;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+import pt.ua.tqs.hw1.service.LifecycleReplay;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+class RequestStatsIT {
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    @Autowired
+    private LifecycleReplay replay;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private LocalDate nextMonday;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+        nextMonday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        jdbcTemplate.update("DELETE FROM request_state_count");
+        capacityIndex.reconcile();
+    }
+
+    private long submit(LocalDateTime date, String municipality) {
+        return given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(date, "Old fridge", RequestState.RECIEVED, municipality))
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(201)
+            .extract().jsonPath().getLong("token");
+    }
+
+    @Test
+    void countsFollowSubmissionsAndTransitions() {
+        long first = submit(nextMonday.atTime(9, 0), "Aveiro");
+        long second = submit(nextMonday.atTime(10, 0), "Aveiro");
+        given()
+            .contentType(ContentType.JSON)
+            .body(List.of(new ServiceRequest(nextMonday.atTime(9, 0), "Sofa", RequestState.RECIEVED, "Porto"),
+                    new ServiceRequest(nextMonday.plusDays(1).atTime(9, 0), "Bed", RequestState.RECIEVED, "Porto")))
+            .post("/api/submit/batch")
+            .then().statusCode(200);
+
+        given().put("/api/requests/{id}/assign", first).then().statusCode(200);
+        given().put("/api/requests/{id}/cancel", second).then().statusCode(200);
+        given().contentType(ContentType.JSON).body(List.of(first, second)).put("/api/requests/bulk/start").then().statusCode(200);
+
+        given()
+            .param("from", nextMonday.toString())
+            .param("to", nextMonday.plusDays(1).toString())
+        .when()
+            .get("/api/stats")
+        .then()
+            .statusCode(200)
+            .body("$", hasSize(3))
+            .body("[0].municipality", equalTo("Aveiro"))
+            .body("[0].day", equalTo(nextMonday.toString()))
+            .body("[0].counts.RECIEVED", equalTo(0))
+            .body("[0].counts.IN_PROGRESS", equalTo(1))
+            .body("[0].counts.CANCELLED", equalTo(1))
+            .body("[1].municipality", equalTo("Porto"))
+            .body("[1].counts.RECIEVED", equalTo(1))
+            .body("[2].day", equalTo(nextMonday.plusDays(1).toString()))
+            .body("[2].counts.RECIEVED", equalTo(1));
+
+        // Kept in step with what counting the requests gives
+        List<StateCount> maintained = repository.findStateCounts(nextMonday, nextMonday.plusDays(1));
+        transactionTemplate.executeWithoutResult(status -> repository.rebuildStateCounts());
+        assertThat(repository.findStateCounts(nextMonday, nextMonday.plusDays(1))).isEqualTo(maintained);
+    }
+
+    @Test
+    void otherDaysAreLeftOut() {
+        submit(nextMonday.atTime(9, 0), "Aveiro");
+
+        given().param("from", nextMonday.plusDays(1).toString()).get("/api/stats")
+            .then().statusCode(200).body("$", hasSize(0));
+        given().get("/api/stats").then().statusCode(200).body("$", hasSize(0));
+    }
+
+    @Test
+    void replayRecountsTheRebuiltSnapshot() {
+        LocalDateTime date = nextMonday.atTime(9, 0);
+        long token = transactionTemplate.execute(status -> {
+            ServiceRequest request = repository.save(new ServiceRequest(date, "Old fridge", RequestState.RECIEVED, "Aveiro"));
+            repository.recordCreation(List.of(request));
+            // The log moves on without the snapshot, as if the state update was lost
+            repository.recordStateChange(request.getToken(), LocalDateTime.now(), RequestState.ASSIGNED);
+            return request.getToken();
+        });
+
+        assertThat(replay.rebuild(token)).isTrue();
+
+        assertThat(repository.findStateCounts(nextMonday, nextMonday))
+            .containsExactly(new StateCount("Aveiro", nextMonday, RequestState.ASSIGNED, 1));
+    }
+}
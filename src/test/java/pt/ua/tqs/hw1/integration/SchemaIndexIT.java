@@ -0,0 +1,78 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Asks H2 how it would run the repositories' queries and checks it picks the migration's indexes
+@SpringBootTest
+class SchemaIndexIT {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @BeforeEach
+    void setup() {
+        List<ServiceRequest> requests = new ArrayList<>();
+        String[] municipalities = {"Aveiro", "Porto", "Lisboa", "Braga"};
+        LocalDateTime date = LocalDateTime.of(2030, 1, 7, 9, 0);
+        for (int i = 0; i < 200; i++) {
+            requests.add(new ServiceRequest(date.plusDays(i % 50), "Item " + i, RequestState.RECIEVED, municipalities[i % 4]));
+        }
+        repository.persistAll(requests);
+        jdbcTemplate.execute("ANALYZE");
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+    }
+
+    private String plan(String sql) {
+        return jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class).toUpperCase();
+    }
+
+    @Test
+    void municipalityAndDateUseTheCompositeIndex() {
+        assertThat(plan("SELECT token FROM request WHERE municipality = 'Aveiro' AND date > TIMESTAMP '2030-01-20 00:00:00' ORDER BY token"))
+                .contains("IDX_REQUEST_MUNICIPALITY_DATE");
+        assertThat(plan("SELECT * FROM request WHERE date BETWEEN TIMESTAMP '2030-01-20 00:00:00' AND TIMESTAMP '2030-01-21 00:00:00'"
+                + " AND municipality = 'Aveiro'"))
+                .contains("IDX_REQUEST_MUNICIPALITY_DATE");
+    }
+
+    @Test
+    void dateRangesUseTheDateIndex() {
+        assertThat(plan("SELECT * FROM request WHERE date BETWEEN TIMESTAMP '2030-01-20 00:00:00' AND TIMESTAMP '2030-01-21 00:00:00'"))
+                .contains("IDX_REQUEST_DATE");
+        // The capacity count is answered from the index alone
+        assertThat(plan("SELECT municipality, CAST(date AS DATE), COUNT(*) FROM request"
+                + " WHERE date >= TIMESTAMP '2030-02-20 00:00:00' AND state <> 4 GROUP BY municipality, CAST(date AS DATE)"))
+                .contains("IDX_REQUEST_DATE");
+    }
+
+    @Test
+    void historyAndSlotsUseTheirPrimaryKeys() {
+        assertThat(plan("SELECT seq, date, state FROM request_state WHERE request_token = 1 AND seq > 0 ORDER BY seq"))
+                .containsPattern("PRIMARY_KEY_\\w+: REQUEST_TOKEN = .*\\s+AND SEQ > 0");
+        assertThat(plan("SELECT booking_day, COUNT(*) FROM booking_slot WHERE municipality = 'Aveiro'"
+                + " AND booking_day BETWEEN DATE '2030-01-07' AND DATE '2030-01-11' GROUP BY booking_day"))
+                .containsPattern("PRIMARY_KEY_\\w+: MUNICIPALITY = 'AVEIRO'");
+    }
+}
@@ -0,0 +1,118 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import pt.ua.tqs.hw1.Hw1Application;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Starts the application twice on the same database, like a restart or a second node would
+class SchemaMigrationsIT {
+
+    private static ConfigurableApplicationContext start() {
+        return start("schema-migrations-it");
+    }
+
+    // The database is kept while the application restarts
+    private static ConfigurableApplicationContext start(String database, String... args) {
+        return new SpringApplicationBuilder(Hw1Application.class)
+                .run(concat(new String[] {"--server.port=0", "--spring.datasource.url=jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1"}, args));
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static long nextSequenceValue(JdbcTemplate jdbcTemplate) {
+        return jdbcTemplate.queryForObject("SELECT base_value FROM information_schema.sequences WHERE sequence_name = 'REQUEST_TOKEN_SEQ'", Long.class);
+    }
+
+    @Test
+    void restartKeepsSchemaAndData() {
+        long token;
+        try (ConfigurableApplicationContext first = start()) {
+            token = first.getBean(RequestRepository.class)
+                    .save(new ServiceRequest(LocalDate.now().plusDays(7).atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Aveiro"))
+                    .getToken();
+        }
+
+        try (ConfigurableApplicationContext second = start()) {
+            JdbcTemplate jdbcTemplate = second.getBean(JdbcTemplate.class);
+            assertThat(jdbcTemplate.queryForList("SELECT version FROM schema_version ORDER BY version", Integer.class))
+                    .containsExactly(1, 2, 3, 4, 5, 6);
+            assertThat(second.getBean(RequestRepository.class).findById(token)).isPresent();
+
+            // States aren't limited by the schema, a new one needs no migration
+            jdbcTemplate.update("INSERT INTO request_state_count (request_day, municipality, state, total) VALUES (CURRENT_DATE, 'Aveiro', 9, 1)");
+        }
+    }
+
+    // A database from before the sequence, with tokens the IDENTITY column handed out
+    @Test
+    void tokenSequenceMovesPastExistingTokensOnlyOnce() {
+        try (ConfigurableApplicationContext first = start("token-sequence-it")) {
+            JdbcTemplate jdbcTemplate = first.getBean(JdbcTemplate.class);
+            jdbcTemplate.update("DELETE FROM schema_version WHERE version = 6");
+            jdbcTemplate.update("INSERT INTO request (token, date, description, municipality, state) VALUES (5000, CURRENT_TIMESTAMP, 'Old fridge', 'Aveiro', 0)");
+        }
+
+        try (ConfigurableApplicationContext second = start("token-sequence-it")) {
+            JdbcTemplate jdbcTemplate = second.getBean(JdbcTemplate.class);
+            assertThat(nextSequenceValue(jdbcTemplate)).isEqualTo(5051);
+
+            // Other nodes have taken blocks since; applying it again must never move the sequence back
+            jdbcTemplate.execute("ALTER SEQUENCE request_token_seq RESTART WITH 90000");
+            jdbcTemplate.update("DELETE FROM schema_version WHERE version = 6");
+        }
+
+        try (ConfigurableApplicationContext third = start("token-sequence-it")) {
+            assertThat(nextSequenceValue(third.getBean(JdbcTemplate.class))).isEqualTo(90000);
+        }
+    }
+
+    // A node starting while another is migrating waits for the lock instead of racing it
+    @Test
+    void startWaitsForTheNodeMigrating() throws Exception {
+        try (ConfigurableApplicationContext first = start("concurrent-migrations-it")) {
+            JdbcTemplate jdbcTemplate = first.getBean(JdbcTemplate.class);
+            // Pretend the first node is still busy with the last script (V6 can safely run again)
+            jdbcTemplate.update("UPDATE schema_lock SET locked = TRUE, locked_on = CURRENT_TIMESTAMP");
+            jdbcTemplate.update("DELETE FROM schema_version WHERE version = 6");
+
+            CompletableFuture<ConfigurableApplicationContext> second = CompletableFuture.supplyAsync(() -> start("concurrent-migrations-it"));
+            Thread.sleep(1000);
+            assertThat(second).isNotDone();
+
+            jdbcTemplate.update("UPDATE schema_lock SET locked = FALSE");
+            try (ConfigurableApplicationContext other = second.get(2, TimeUnit.MINUTES)) {
+                assertThat(jdbcTemplate.queryForList("SELECT version FROM schema_version ORDER BY version", Integer.class))
+                        .containsExactly(1, 2, 3, 4, 5, 6);
+                assertThat(jdbcTemplate.queryForObject("SELECT locked FROM schema_lock", Boolean.class)).isFalse();
+            }
+        }
+    }
+
+    // A node that died while migrating leaves the lock behind, the next one refuses to guess
+    @Test
+    void leftoverLockStopsStartup() {
+        try (ConfigurableApplicationContext first = start("schema-lock-it")) {
+            first.getBean(JdbcTemplate.class).update("UPDATE schema_lock SET locked = TRUE, locked_on = CURRENT_TIMESTAMP");
+        }
+
+        assertThrows(Exception.class, () -> start("schema-lock-it", "--zeromonos.schema.lock-timeout=PT1S").close());
+    }
+}
@@ -0,0 +1,119 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import pt.ua.tqs.hw1.data.BookingSlot;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+import pt.ua.tqs.hw1.service.RequestService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Two submissions for the same day both pick the lowest free slot; the one that commits second
+// must take the next slot instead of being turned away
+@SpringBootTest
+class SlotClaimIT {
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private RequestService service;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+    }
+
+    @Test
+    void concurrentClaims_takeDifferentSlots() throws Exception {
+        LocalDate monday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        CountDownLatch firstClaimed = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> transactionTemplate.execute(status -> {
+            int claimed = slotRepository.claimSlot("Aveiro", monday, 1, 2);
+            firstClaimed.countDown();
+            try {
+                // Keeps slot 0 uncommitted while the second claim runs into it
+                secondStarted.await(5, TimeUnit.SECONDS);
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return claimed;
+        }));
+        firstClaimed.await(5, TimeUnit.SECONDS);
+
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> transactionTemplate.execute(status -> {
+            secondStarted.countDown();
+            return slotRepository.claimSlot("Aveiro", monday, 2, 2);
+        }));
+
+        assertThat(first.get(10, TimeUnit.SECONDS).intValue()).isEqualTo(1);
+        assertThat(second.get(10, TimeUnit.SECONDS).intValue()).isEqualTo(1);
+        assertThat(slotRepository.findAll()).extracting(BookingSlot::getSlot).containsExactlyInAnyOrder(0, 1);
+
+        // Full now
+        assertThat(transactionTemplate.execute(status -> slotRepository.claimSlot("Aveiro", monday, 3, 2)).intValue()).isZero();
+    }
+
+    // The first submission for a municipality and day also starts its listing version and state
+    // counts, the second one to commit must merge into those instead of being turned away
+    @Test
+    void concurrentSubmissions_forNewMunicipality_areBothAccepted() throws Exception {
+        LocalDate monday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        CountDownLatch firstSubmitted = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+
+        CompletableFuture<ServiceRequest> first = CompletableFuture.supplyAsync(() -> transactionTemplate.execute(status -> {
+            ServiceRequest saved = service.submitRequest(new ServiceRequest(monday.atTime(9, 0), "Old fridge", RequestState.RECIEVED, "Vagos"));
+            firstSubmitted.countDown();
+            try {
+                secondStarted.await(5, TimeUnit.SECONDS);
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return saved;
+        }));
+        firstSubmitted.await(5, TimeUnit.SECONDS);
+
+        CompletableFuture<ServiceRequest> second = CompletableFuture.supplyAsync(() -> {
+            secondStarted.countDown();
+            return service.submitRequest(new ServiceRequest(monday.atTime(10, 0), "Old sofa", RequestState.RECIEVED, "Vagos"));
+        });
+
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertThat(repository.findAll()).hasSize(2);
+        assertThat(slotRepository.findAll()).extracting(BookingSlot::getSlot).containsExactlyInAnyOrder(0, 1);
+        assertThat(repository.findStateCounts(monday, monday)).singleElement()
+                .satisfies(count -> assertThat(count.total()).isEqualTo(2));
+    }
+}
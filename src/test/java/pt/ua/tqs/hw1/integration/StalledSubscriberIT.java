@@ -0,0 +1,97 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import pt.ua.tqs.hw1.boundary.RequestEventBroadcaster;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.RequestSummary;
+import pt.ua.tqs.hw1.service.RequestLogEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Subscribers that stop reading until the server can't write to them any more must not hold up
+// the events for everyone else. The buffers are big enough that they aren't disconnected first
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "zeromonos.events.buffer-size=10000")
+class StalledSubscriberIT {
+
+    private static final int STALLED = 4;
+
+    private static final String LARGE_DESCRIPTION = "x".repeat(10_000);
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestEventBroadcaster broadcaster;
+
+    private final List<Socket> stalled = new ArrayList<>();
+
+    @AfterEach
+    void cleanup() throws Exception {
+        for (Socket socket : stalled) {
+            socket.close();
+        }
+    }
+
+    private static RequestLogEvent event(long token, String description, String municipality) {
+        return new RequestLogEvent(token, 1, LocalDateTime.now(),
+                new RequestSummary(token, LocalDateTime.of(2030, 1, 7, 10, 0), description, municipality, RequestState.RECIEVED));
+    }
+
+    // Subscribes and then never reads the stream
+    private Socket subscribeWithoutReading(String path) throws Exception {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("localhost", randomServerPort));
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept: text/event-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return socket;
+    }
+
+    @Test
+    void stalledSubscribersDontBlockOthers() throws Exception {
+        for (int i = 0; i < STALLED; i++) {
+            stalled.add(subscribeWithoutReading("/api/events/municipalities/Aveiro"));
+        }
+
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        CompletableFuture<Boolean> delivered = client.sendAsync(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + randomServerPort + "/api/events/requests/999")).build(),
+                HttpResponse.BodyHandlers.ofLines())
+                .thenApply(response -> response.body().anyMatch(line -> line.contains("\"token\":999")));
+
+        for (int i = 0; i < 100 && broadcaster.subscriberCount() < STALLED + 1; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(broadcaster.subscriberCount()).isEqualTo(STALLED + 1);
+
+        // Megabytes per stalled subscriber, far more than the socket buffers hold
+        for (long token = 1; token <= 500; token++) {
+            broadcaster.onRequestLogEvent(event(token, LARGE_DESCRIPTION, "Aveiro"));
+        }
+        Thread.sleep(500);
+        broadcaster.onRequestLogEvent(event(999, "Old sofa", "Porto"));
+
+        assertThat(delivered.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
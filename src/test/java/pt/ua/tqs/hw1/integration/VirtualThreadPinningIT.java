@@ -0,0 +1,164 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.boot.web.embedded.tomcat.TomcatWebServer;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.SimpleAsyncTaskScheduler;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Runs the API on virtual threads and records with JFR every time one of them blocked while pinned
+// to its carrier, i.e. inside synchronized code or under a native frame. The report goes to the test
+// output. Submitting, reading and moving requests must not pin at all
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "spring.threads.virtual.enabled=true")
+class VirtualThreadPinningIT {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final int CLIENTS = 40;
+
+    // Enough of the stack to tell where the monitor was taken
+    private static final int REPORTED_FRAMES = 12;
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private ServletWebServerApplicationContext context;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+    }
+
+    @Test
+    void requestsAndJobsRunOnVirtualThreads() {
+        var executor = ((TomcatWebServer) context.getWebServer()).getTomcat().getConnector().getProtocolHandler().getExecutor();
+        assertThat(executor).isInstanceOf(VirtualThreadExecutor.class);
+        assertThat(taskScheduler).isInstanceOf(SimpleAsyncTaskScheduler.class);
+    }
+
+    @Test
+    void hotPathsDontPin() throws Exception {
+        List<RecordedEvent> pinned = new CopyOnWriteArrayList<>();
+        try (RecordingStream recording = new RecordingStream()) {
+            // Every time, not just the ones over the default 20 ms
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.onEvent(PINNED_EVENT, pinned::add);
+            recording.startAsync();
+
+            LocalDate day = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<List<Integer>>> statuses = new ArrayList<>();
+                for (int i = 0; i < CLIENTS; i++) {
+                    String municipality = "Municipality " + i;
+                    statuses.add(clients.submit(() -> lifecycle(day, municipality)));
+                }
+                for (Future<List<Integer>> status : statuses) {
+                    assertThat(status.get()).containsExactly(201, 200, 200, 200, 200);
+                }
+            }
+            // Waits for the events recorded so far to be delivered
+            recording.stop();
+        }
+
+        String report = report(pinned);
+        System.out.println(report);
+        assertThat(pinned).as(report).isEmpty();
+    }
+
+    // Submit, read, assign, start, and read the history, as one client would
+    private List<Integer> lifecycle(LocalDate day, String municipality) throws Exception {
+        String body = """
+                {"date": "%s", "description": "Old sofa", "state": "RECIEVED", "municipality": "%s"}
+                """.formatted(day.atTime(LocalTime.of(10, 0)), municipality);
+        HttpResponse<String> submitted = send(HttpRequest.newBuilder(uri("/api/submit"))
+                .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body)));
+        String token = submitted.body().replaceAll(".*\"token\":(\\d+).*", "$1");
+
+        List<Integer> statuses = new ArrayList<>();
+        statuses.add(submitted.statusCode());
+        statuses.add(send(HttpRequest.newBuilder(uri("/api/requests/" + token))).statusCode());
+        statuses.add(send(HttpRequest.newBuilder(uri("/api/requests/" + token + "/assign")).PUT(HttpRequest.BodyPublishers.noBody())).statusCode());
+        statuses.add(send(HttpRequest.newBuilder(uri("/api/requests/" + token + "/start")).PUT(HttpRequest.BodyPublishers.noBody())).statusCode());
+        statuses.add(send(HttpRequest.newBuilder(uri("/api/requests/" + token + "/states"))).statusCode());
+        return statuses;
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + randomServerPort + path);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    // Pinned events grouped by stack, most frequent first
+    private static String report(List<RecordedEvent> pinned) {
+        if (pinned.isEmpty()) {
+            return "No virtual thread was pinned";
+        }
+        Map<String, List<RecordedEvent>> byStack = pinned.stream().collect(Collectors.groupingBy(event -> event.getStackTrace() == null ? "(no stack)"
+                : event.getStackTrace().getFrames().stream().limit(REPORTED_FRAMES).map(VirtualThreadPinningIT::frame)
+                        .collect(Collectors.joining("\n    ", "    ", ""))));
+        StringBuilder report = new StringBuilder(pinned.size() + " pinned virtual threads\n");
+        new TreeMap<>(byStack).entrySet().stream()
+                .sorted((a, b) -> b.getValue().size() - a.getValue().size())
+                .forEach(entry -> report.append(String.format("%d times, %d ms in total:%n%s%n", entry.getValue().size(),
+                        entry.getValue().stream().mapToLong(event -> event.getDuration().toMillis()).sum(), entry.getKey())));
+        return report.toString();
+    }
+
+    private static String frame(RecordedFrame frame) {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+}
@@ -0,0 +1,148 @@
+package pt.ua.tqs.hw1.integration;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+import pt.ua.tqs.hw1.service.RequestService;
+
+import static io.restassured.RestAssured.given;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.hamcrest.Matchers.equalTo;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT,
+        properties = "zeromonos.submit.write-behind.enabled=true")
+class WriteBehindIT {
+
+    @LocalServerPort
+    int randomServerPort;
+
+    @Autowired
+    private RequestRepository repository;
+
+    @Autowired
+    private BookingSlotRepository slotRepository;
+
+    @Autowired
+    private CapacityIndex capacityIndex;
+
+    @Autowired
+    private RequestService requestService;
+
+    @BeforeEach
+    void setup() {
+        RestAssured.port = randomServerPort;
+    }
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+        slotRepository.deleteAll();
+        capacityIndex.reconcile();
+    }
+
+    private int waitForStatus(long token, int expected) throws InterruptedException {
+        int status = 0;
+        for (int i = 0; i < 50 && status != expected; i++) {
+            status = given().when().get("/api/requests/" + token).statusCode();
+            if (status != expected) {
+                Thread.sleep(100);
+            }
+        }
+        return status;
+    }
+
+    @Test
+    void submitRequest_isWrittenLater() throws InterruptedException {
+        LocalDateTime dateTime = LocalDateTime.of(LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY)), LocalTime.of(15, 30));
+        ServiceRequest request = new ServiceRequest(dateTime, "Description", RequestState.RECIEVED, "Beja");
+
+        long token = given()
+            .contentType(ContentType.JSON)
+            .body(request)
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(202)
+            .extract().jsonPath().getLong("token");
+
+        assertThat(waitForStatus(token, 200)).isEqualTo(200);
+
+        // Written with the token that was handed out
+        assertThat(repository.findById(token)).isPresent();
+        assertThat(slotRepository.count()).isEqualTo(1);
+    }
+
+    @Test
+    void submitRequest_overCapacity() throws InterruptedException {
+        LocalDateTime dateTime = LocalDateTime.of(LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY)), LocalTime.of(10, 0));
+
+        for (int i = 0; i < 2; i++) {
+            given()
+                .contentType(ContentType.JSON)
+                .body(new ServiceRequest(dateTime, "Description", RequestState.RECIEVED, "Porto"))
+            .when()
+                .post("/api/submit")
+            .then()
+                .statusCode(202);
+        }
+
+        // Turned away before queueing, the day is already full in memory
+        given()
+            .contentType(ContentType.JSON)
+            .body(new ServiceRequest(dateTime, "Description", RequestState.RECIEVED, "Porto"))
+        .when()
+            .post("/api/submit")
+        .then()
+            .statusCode(400)
+            .body("error", equalTo("too many requests for this day and place have already been booked"));
+    }
+
+    // A claim that fails on a constraint is undone on its own, the rest of the batch is still written
+    @Test
+    void writeSubmissions_failedClaimKeepsTheBatch() {
+        LocalDate wednesday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.WEDNESDAY));
+        ServiceRequest fits = new ServiceRequest(wednesday.atTime(9, 0), "Description", RequestState.RECIEVED, "Beja");
+        fits.reserveToken(repository.nextToken());
+        ServiceRequest broken = new ServiceRequest(wednesday.atTime(9, 0), "Description", RequestState.RECIEVED, null);
+        broken.reserveToken(repository.nextToken());
+
+        assertThat(requestService.writeSubmissions(List.of(fits, broken))).containsExactly(broken);
+
+        assertThat(repository.findById(fits.getToken())).isPresent();
+        assertThat(slotRepository.count()).isEqualTo(1);
+    }
+
+    // Slots are claimed in the same transaction the requests are inserted in, so a failed insert leaves no slot behind
+    @Test
+    void writeSubmissions_failedInsertKeepsNoSlots() {
+        LocalDate thursday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.THURSDAY));
+        ServiceRequest existing = requestService.submitRequest(new ServiceRequest(thursday.atTime(9, 0), "Description", RequestState.RECIEVED, "Faro"));
+        ServiceRequest duplicate = new ServiceRequest(thursday.plusDays(1).atTime(9, 0), "Description", RequestState.RECIEVED, "Faro");
+        duplicate.reserveToken(existing.getToken());
+
+        assertThrows(RuntimeException.class, () -> requestService.writeSubmissions(List.of(duplicate)));
+
+        assertThat(slotRepository.count()).isEqualTo(1);
+        assertThat(capacityIndex.booked("Faro", thursday.plusDays(1))).isZero();
+    }
+}
@@ -0,0 +1,106 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.context.ApplicationEventPublisher;
+
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
+import pt.ua.tqs.hw1.data.DailyCount;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+import pt.ua.tqs.hw1.service.DayAvailability;
+import pt.ua.tqs.hw1.service.InvalidRequestDateException;
+import pt.ua.tqs.hw1.service.RequestService;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class AvailabilityTest {
+
+    @Mock
+    private RequestRepository repository;
+
+    @Mock
+    private BookingSlotRepository slotRepository;
+
+    @Mock
+    private CapacityIndex capacityIndex;
+
+    @Mock
+    private ApplicationEventPublisher events;
+
+    @InjectMocks
+    private RequestService service;
+
+    @Test
+    void availabilitySkipsWeekendsAndCountsBookings() {
+        LocalDate monday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+        LocalDate sunday = monday.plusDays(6);
+
+        when(slotRepository.countByDay("Aveiro", monday, sunday)).thenReturn(List.of(
+            new DailyCount("Aveiro", monday, 2),
+            new DailyCount("Aveiro", monday.plusDays(2), 1)));
+
+        List<DayAvailability> availability = service.getAvailability("Aveiro", monday, sunday);
+
+        assertThat(availability).containsExactly(
+            new DayAvailability(monday, 0),
+            new DayAvailability(monday.plusDays(1), 2),
+            new DayAvailability(monday.plusDays(2), 1),
+            new DayAvailability(monday.plusDays(3), 2),
+            new DayAvailability(monday.plusDays(4), 2));
+
+        // A single grouped query for the whole range
+        verify(slotRepository, times(1)).countByDay(any(), any(), any());
+    }
+
+    @Test
+    void availabilityOmitsPastDays() {
+        LocalDate today = LocalDate.now();
+
+        List<DayAvailability> availability = service.getAvailability("Aveiro", today.minusDays(10), today.minusDays(1));
+
+        assertThat(availability).isEmpty();
+    }
+
+    @Test
+    void availabilityRejectsBadRanges() {
+        LocalDate today = LocalDate.now();
+
+        assertThrows(InvalidRequestDateException.class, () -> service.getAvailability("Aveiro", today, today.minusDays(1)));
+        assertThrows(InvalidRequestDateException.class, () -> service.getAvailability("Aveiro", today, today.plusYears(2)));
+    }
+
+    @Test
+    void nextAvailableDaysAfterFullDay() {
+        LocalDate monday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.MONDAY));
+
+        // Tuesday is also full
+        when(capacityIndex.booked(eq("Aveiro"), any())).thenReturn(0);
+        when(capacityIndex.booked("Aveiro", monday)).thenReturn(2);
+        when(capacityIndex.booked("Aveiro", monday.plusDays(1))).thenReturn(2);
+
+        List<LocalDate> next = service.getNextAvailableDays("Aveiro", monday, 3);
+
+        assertThat(next).containsExactly(monday.plusDays(2), monday.plusDays(3), monday.plusDays(4));
+        // Nothing read from the ledger
+        verify(slotRepository, times(0)).countByDay(any(), any(), any());
+    }
+}
@@ -1,33 +1,53 @@
 package pt.ua.tqs.hw1.unit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.time.DayOfWeek;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.temporal.TemporalAdjusters;
-import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.context.ApplicationEventPublisher;
 
+import pt.ua.tqs.hw1.data.BookingSlot;
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
 import pt.ua.tqs.hw1.data.RequestRepository;
 import pt.ua.tqs.hw1.data.RequestState;
 import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.BookingConflictException;
+import pt.ua.tqs.hw1.service.CapacityIndex;
 import pt.ua.tqs.hw1.service.InvalidRequestDateException;
 import pt.ua.tqs.hw1.service.RequestOverflowException;
+import pt.ua.tqs.hw1.service.RequestEvent;
+import pt.ua.tqs.hw1.service.ReadYourWrites;
 import pt.ua.tqs.hw1.service.RequestService;
+import pt.ua.tqs.hw1.service.SubmissionOutcome;
 
 @ExtendWith(MockitoExtension.class)
 @MockitoSettings(strictness = Strictness.LENIENT)
@@ -36,9 +56,26 @@ class BookingTest {
     @Mock
     private RequestRepository repository;
 
+    @Mock
+    private BookingSlotRepository slotRepository;
+
+    @Mock
+    private CapacityIndex capacityIndex;
+
+    @Mock
+    private ApplicationEventPublisher events;
+
+    @Spy
+    private ReadYourWrites readYourWrites = new ReadYourWrites("", Duration.ofSeconds(5));
+
     @InjectMocks
     private RequestService service;
 
+    @BeforeEach
+    void setup() {
+        when(capacityIndex.tryReserve(any(), any(), anyInt())).thenReturn(true);
+    }
+
     @Test
     void normalBooking() {
         // Get next monday
@@ -53,9 +90,13 @@ class BookingTest {
         returnRequest.setToken(55);
 
         when(repository.save(request)).thenReturn(returnRequest);
+        when(slotRepository.claimSlot("Almada", mondayDate, 55, 2)).thenReturn(1);
 
         assertThat(service.submitRequest(request).getToken()).isEqualTo(55);
         verify(repository, times(1)).save(request);
+        verify(repository, times(1)).recordCreation(List.of(returnRequest));
+        verify(slotRepository, times(1)).claimSlot("Almada", mondayDate, 55, 2);
+        verify(events, times(1)).publishEvent(RequestEvent.of(returnRequest));
     }
 
     @Test
@@ -88,15 +129,145 @@ class BookingTest {
     void requestOverflow() {
         LocalDate now = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
 
-        // Only 2 requests per place and day
-        when(repository.findByDateBetweenAndMunicipality(now.atStartOfDay(), now.atTime(LocalTime.MAX), "Arouca"))
-        .thenReturn(Arrays.asList(
-            new ServiceRequest(now.atTime(13, 52), "O meu antigo frigorífico.", RequestState.RECIEVED, "Arouca"),
-            new ServiceRequest(now.atTime(8, 40), "Um colchão cheio de ratos.", RequestState.RECIEVED, "Arouca")));
+        // Only 2 requests per place and day, the ledger has no free slot left
+        when(repository.save(any(ServiceRequest.class))).thenAnswer(inv -> inv.getArgument(0));
+        when(slotRepository.claimSlot(eq("Arouca"), eq(now), anyLong(), anyInt())).thenReturn(0);
 
         ServiceRequest request = new ServiceRequest(now.atTime(10, 30), "Caixa de sapatos muito grande", RequestState.RECIEVED, "Arouca");
 
         assertThrows(RequestOverflowException.class, () -> service.submitRequest(request));
-        verify(repository, times(1)).findByDateBetweenAndMunicipality(any(), any(), any());
+        verify(slotRepository, times(1)).claimSlot(eq("Arouca"), eq(now), anyLong(), eq(2));
+        verify(capacityIndex, times(1)).markFull("Arouca", now, 2);
+        verify(events, never()).publishEvent(any(Object.class));
+    }
+
+    @Test
+    void requestOverflowKnownInMemory() {
+        LocalDate now = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+        when(capacityIndex.tryReserve("Arouca", now, 2)).thenReturn(false);
+
+        ServiceRequest request = new ServiceRequest(now.atTime(10, 30), "Caixa de sapatos muito grande", RequestState.RECIEVED, "Arouca");
+
+        // Rejected without going to the database
+        assertThrows(RequestOverflowException.class, () -> service.submitRequest(request));
+        verify(repository, never()).save(any());
+        verify(slotRepository, never()).claimSlot(any(), any(), anyLong(), anyInt());
+    }
+
+    @Test
+    void lostSlotRaceIsOverflow() {
+        LocalDate now = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+
+        // Another node took the same slot between the check and the insert
+        when(repository.save(any(ServiceRequest.class))).thenAnswer(inv -> inv.getArgument(0));
+        when(slotRepository.claimSlot(eq("Arouca"), eq(now), anyLong(), anyInt()))
+            .thenThrow(new DataIntegrityViolationException("duplicate slot"));
+
+        ServiceRequest request = new ServiceRequest(now.atTime(10, 30), "Caixa de sapatos muito grande", RequestState.RECIEVED, "Arouca");
+
+        assertThrows(RequestOverflowException.class, () -> service.submitRequest(request));
+        verify(capacityIndex, times(1)).release("Arouca", now);
+    }
+
+    @Test
+    void batchBooking() {
+        LocalDate tuesday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+
+        // Arouca already has slot 0 taken on tuesday
+        when(slotRepository.findByMunicipalityInAndDayIn(any(), any()))
+            .thenReturn(List.of(new BookingSlot("Arouca", tuesday, 0, 1L)));
+        AtomicLong tokens = new AtomicLong(100);
+        when(repository.saveAll(any())).thenAnswer(inv -> {
+            List<ServiceRequest> toSave = inv.getArgument(0);
+            toSave.forEach(r -> r.setToken(tokens.getAndIncrement()));
+            return toSave;
+        });
+
+        List<ServiceRequest> batch = List.of(
+            new ServiceRequest(tuesday.atTime(9, 0), "Frigorífico", RequestState.RECIEVED, "Arouca"),
+            new ServiceRequest(tuesday.atTime(10, 0), "Sofá", RequestState.RECIEVED, "Arouca"),
+            new ServiceRequest(LocalDateTime.now().minusDays(1), "Colchão", RequestState.RECIEVED, "Arouca"),
+            new ServiceRequest(tuesday.atTime(11, 0), "Máquina de lavar", RequestState.RECIEVED, "Porto"));
+
+        List<SubmissionOutcome> outcomes = service.submitRequests(batch);
+
+        assertThat(outcomes).hasSize(4);
+        assertThat(outcomes.get(0).isAccepted()).isTrue();
+        assertThat(outcomes.get(1).rejection()).isInstanceOf(RequestOverflowException.class);
+        assertThat(outcomes.get(2).rejection()).isInstanceOf(InvalidRequestDateException.class);
+        assertThat(outcomes.get(3).isAccepted()).isTrue();
+
+        // Slot 1 is the only one left in Arouca
+        ArgumentCaptor<List<BookingSlot>> slots = ArgumentCaptor.captor();
+        verify(slotRepository, times(1)).saveAllAndFlush(slots.capture());
+        assertThat(slots.getValue()).extracting(BookingSlot::getMunicipality, BookingSlot::getSlot)
+            .containsExactly(tuple("Arouca", 1), tuple("Porto", 0));
+        verify(repository, times(1)).saveAll(any());
+        verify(capacityIndex, times(1)).update("Arouca", tuesday, 2);
+        verify(capacityIndex, times(1)).update("Porto", tuesday, 1);
+    }
+
+    @Test
+    void batchBookingConflict() {
+        LocalDate tuesday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+
+        when(repository.saveAll(any())).thenAnswer(inv -> inv.getArgument(0));
+        when(slotRepository.saveAllAndFlush(any())).thenThrow(new DataIntegrityViolationException("duplicate slot"));
+
+        List<ServiceRequest> batch = List.of(new ServiceRequest(tuesday.atTime(9, 0), "Frigorífico", RequestState.RECIEVED, "Arouca"));
+
+        assertThrows(BookingConflictException.class, () -> service.submitRequests(batch));
+        verify(capacityIndex, never()).update(any(), any(), anyInt());
+    }
+
+    @Test
+    void writeBehindReservation() {
+        LocalDate tuesday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+        when(repository.nextToken()).thenReturn(501L);
+
+        ServiceRequest request = new ServiceRequest(tuesday.atTime(9, 0), "Frigorífico", RequestState.RECIEVED, "Arouca");
+
+        // Token known before anything is written
+        assertThat(service.reserveSubmission(request).getToken()).isEqualTo(501);
+        assertThat(request.isTokenReserved()).isTrue();
+        verify(capacityIndex, times(1)).tryReserve("Arouca", tuesday, 2);
+        verify(repository, never()).save(any());
+    }
+
+    @Test
+    void writeBehindWriteRejectsLostSlots() {
+        LocalDate tuesday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+        ServiceRequest fits = new ServiceRequest(tuesday.atTime(9, 0), "Frigorífico", RequestState.RECIEVED, "Arouca");
+        fits.setToken(1);
+        ServiceRequest lost = new ServiceRequest(tuesday.atTime(9, 0), "Sofá", RequestState.RECIEVED, "Porto");
+        lost.setToken(2);
+
+        when(slotRepository.claimSlot("Arouca", tuesday, 1, 2)).thenReturn(1);
+        when(slotRepository.claimSlot("Porto", tuesday, 2, 2)).thenReturn(0);
+
+        List<ServiceRequest> rejected = service.writeSubmissions(List.of(fits, lost));
+
+        assertThat(rejected).containsExactly(lost);
+        verify(repository, times(1)).persistAll(List.of(fits));
+        verify(capacityIndex, times(1)).markFull("Porto", tuesday, 2);
+    }
+
+    @Test
+    void writeBehindWriteFailureReleasesReservations() {
+        LocalDate tuesday = LocalDate.now().with(TemporalAdjusters.next(DayOfWeek.TUESDAY));
+        ServiceRequest fits = new ServiceRequest(tuesday.atTime(9, 0), "Frigorífico", RequestState.RECIEVED, "Arouca");
+        fits.setToken(1);
+        ServiceRequest lost = new ServiceRequest(tuesday.atTime(9, 0), "Sofá", RequestState.RECIEVED, "Porto");
+        lost.setToken(2);
+
+        when(slotRepository.claimSlot("Arouca", tuesday, 1, 2)).thenReturn(1);
+        when(slotRepository.claimSlot("Porto", tuesday, 2, 2)).thenReturn(0);
+        doThrow(new IllegalStateException("connection lost")).when(repository).persistAll(List.of(fits));
+
+        assertThrows(IllegalStateException.class, () -> service.writeSubmissions(List.of(fits, lost)));
+
+        // The one that lost its slot is already counted as a full day
+        verify(capacityIndex, times(1)).release("Arouca", tuesday);
+        verify(capacityIndex, never()).release("Porto", tuesday);
     }
-}
\ No newline at end of file
+}
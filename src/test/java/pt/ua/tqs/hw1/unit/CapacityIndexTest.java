@@ -0,0 +1,97 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import pt.ua.tqs.hw1.data.DailyCount;
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.service.CapacityIndex;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class CapacityIndexTest {
+
+    @Mock
+    private RequestRepository repository;
+
+    @InjectMocks
+    private CapacityIndex index;
+
+    private final LocalDate day = LocalDate.now().plusDays(3);
+
+    @Test
+    void reserveUpToCapacity() {
+        assertThat(index.tryReserve("Aveiro", day, 2)).isTrue();
+        assertThat(index.tryReserve("Aveiro", day, 2)).isTrue();
+        assertThat(index.tryReserve("Aveiro", day, 2)).isFalse();
+
+        // Other places and days are counted apart
+        assertThat(index.tryReserve("Porto", day, 2)).isTrue();
+        assertThat(index.tryReserve("Aveiro", day.plusDays(1), 2)).isTrue();
+    }
+
+    @Test
+    void releaseGivesSlotBack() {
+        index.tryReserve("Aveiro", day, 2);
+        index.tryReserve("Aveiro", day, 2);
+        index.release("Aveiro", day);
+
+        assertThat(index.booked("Aveiro", day)).isEqualTo(1);
+        assertThat(index.tryReserve("Aveiro", day, 2)).isTrue();
+
+        // Never goes below zero
+        index.release("Porto", day);
+        index.release("Porto", day);
+        assertThat(index.booked("Porto", day)).isZero();
+    }
+
+    @Test
+    void concurrentReservationsNeverExceedCapacity() throws InterruptedException {
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1000; i++) {
+            executor.submit(() -> {
+                if (index.tryReserve("Aveiro", day, 2)) {
+                    accepted.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(accepted.get()).isEqualTo(2);
+        assertThat(index.booked("Aveiro", day)).isEqualTo(2);
+    }
+
+    @Test
+    void reconcileFixesDrift() {
+        index.tryReserve("Aveiro", day, 2);
+        index.tryReserve("Porto", day, 2);
+        index.tryReserve("Porto", day, 2);
+
+        // Database knows better: Aveiro is full, Porto has nothing left
+        when(repository.countActiveByMunicipalityAndDay(any())).thenReturn(List.of(new DailyCount("Aveiro", day, 2)));
+
+        index.reconcile();
+
+        assertThat(index.booked("Aveiro", day)).isEqualTo(2);
+        assertThat(index.booked("Porto", day)).isZero();
+        assertThat(index.tryReserve("Aveiro", day, 2)).isFalse();
+    }
+}
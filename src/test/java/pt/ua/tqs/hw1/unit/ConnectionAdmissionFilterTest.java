@@ -0,0 +1,117 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import pt.ua.tqs.hw1.boundary.ConnectionAdmissionFilter;
+
+class ConnectionAdmissionFilterTest {
+
+    private ConnectionAdmissionFilter filter;
+
+    private final AtomicInteger handled = new AtomicInteger();
+
+    private final FilterChain handler = (request, response) -> handled.incrementAndGet();
+
+    @BeforeEach
+    void setup() {
+        filter = new ConnectionAdmissionFilter(1, 1, Duration.ofSeconds(30));
+    }
+
+    private static MockHttpServletRequest request(String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    // What the container does when the filter dispatches a waiting request
+    private void redispatch(MockHttpServletRequest request, MockHttpServletResponse response) throws Exception {
+        request.setAsyncStarted(false);
+        request.setDispatcherType(DispatcherType.ASYNC);
+        filter.doFilter(request, response, handler);
+    }
+
+    @Test
+    void requestWaitsForSlotWithoutRunning() throws Exception {
+        MockHttpServletRequest waiting = request("/api/requests");
+        MockHttpServletResponse waitingResponse = new MockHttpServletResponse();
+
+        // The second request comes in while the first holds the only slot
+        filter.doFilter(request("/api/requests"), new MockHttpServletResponse(), (request, response) -> {
+            handled.incrementAndGet();
+            filter.doFilter(waiting, waitingResponse, handler);
+            assertThat(waiting.isAsyncStarted()).isTrue();
+            assertThat(filter.waiting()).isEqualTo(1);
+            assertThat(handled.get()).isEqualTo(1);
+        });
+
+        // Once the first is done, the second is dispatched again and runs
+        assertThat(((MockAsyncContext) waiting.getAsyncContext()).getDispatchedPath()).isEqualTo("/api/requests");
+        assertThat(filter.waiting()).isZero();
+        assertThat(filter.inFlight()).isEqualTo(1);
+
+        redispatch(waiting, waitingResponse);
+
+        assertThat(handled.get()).isEqualTo(2);
+        assertThat(filter.inFlight()).isZero();
+        assertThat(filter.peakInFlight()).isEqualTo(1);
+    }
+
+    @Test
+    void fullQueueIsRejected() throws Exception {
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+
+        filter.doFilter(request("/api/requests"), new MockHttpServletResponse(), (request, response) -> {
+            filter.doFilter(request("/api/requests"), new MockHttpServletResponse(), handler);
+            filter.doFilter(request("/api/requests"), rejected, handler);
+        });
+
+        assertThat(rejected.getStatus()).isEqualTo(503);
+        assertThat(rejected.getHeader(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+        assertThat(rejected.getContentAsString()).contains("busy");
+        assertThat(filter.peakWaiting()).isEqualTo(1);
+    }
+
+    @Test
+    void timedOutRequestIsRejectedAndSkipped() throws Exception {
+        MockHttpServletRequest waiting = request("/api/requests");
+        MockHttpServletResponse waitingResponse = new MockHttpServletResponse();
+
+        filter.doFilter(request("/api/requests"), new MockHttpServletResponse(), (request, response) -> {
+            filter.doFilter(waiting, waitingResponse, handler);
+            MockAsyncContext context = (MockAsyncContext) waiting.getAsyncContext();
+            for (AsyncListener listener : context.getListeners()) {
+                listener.onTimeout(new AsyncEvent(context, waiting, waitingResponse));
+            }
+        });
+
+        assertThat(waitingResponse.getStatus()).isEqualTo(503);
+        assertThat(((MockAsyncContext) waiting.getAsyncContext()).getDispatchedPath()).isNull();
+        assertThat(filter.waiting()).isZero();
+        assertThat(filter.inFlight()).isZero();
+    }
+
+    @Test
+    void eventStreamsAndPagesAreNotQueued() throws Exception {
+        filter.doFilter(request("/api/requests"), new MockHttpServletResponse(), (request, response) -> {
+            filter.doFilter(request("/api/events/requests/1"), new MockHttpServletResponse(), handler);
+            filter.doFilter(request("/staff"), new MockHttpServletResponse(), handler);
+        });
+
+        assertThat(handled.get()).isEqualTo(2);
+        assertThat(filter.peakWaiting()).isZero();
+    }
+}
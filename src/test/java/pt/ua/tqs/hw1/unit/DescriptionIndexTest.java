@@ -0,0 +1,141 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.RequestSummary;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.DescriptionIndex;
+import pt.ua.tqs.hw1.service.RequestEvent;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class DescriptionIndexTest {
+
+    @Mock
+    private RequestRepository repository;
+
+    private DescriptionIndex index;
+
+    private final LocalDateTime date = LocalDateTime.of(2030, 1, 7, 10, 0);
+
+    @BeforeEach
+    void setup() {
+        index = new DescriptionIndex(repository, Duration.ZERO);
+    }
+
+    private void submitted(long token, String description, String municipality, RequestState state) {
+        index.onRequestEvent(RequestEvent.of(new ServiceRequest(token, date, description, state, municipality)));
+    }
+
+    @Test
+    void termsIgnoreAccentsCaseStopWordsAndPlurals() {
+        assertThat(DescriptionIndex.terms("Os SOFÁS e um frigorífico, já partido!"))
+                .containsExactly("sofa", "frigorifico", "ja", "partido");
+        assertThat(DescriptionIndex.terms("   ")).isEmpty();
+        assertThat(DescriptionIndex.terms(null)).isEmpty();
+    }
+
+    @Test
+    void findsWhateverTheSpelling() {
+        submitted(1, "Sofá velho", "Aveiro", RequestState.RECIEVED);
+        submitted(2, "Frigorífico avariado", "Aveiro", RequestState.RECIEVED);
+
+        assertThat(index.search("sofa", null, null, 10)).containsExactly(1L);
+        assertThat(index.search("FRIGORIFICOS", null, null, 10)).containsExactly(2L);
+        assertThat(index.search("televisão", null, null, 10)).isEmpty();
+    }
+
+    @Test
+    void everyWordHasToMatch() {
+        submitted(1, "Sofá e mesa", "Aveiro", RequestState.RECIEVED);
+        submitted(2, "Mesa de jantar", "Aveiro", RequestState.RECIEVED);
+
+        assertThat(index.search("mesa sofá", null, null, 10)).containsExactly(1L);
+        assertThat(index.search("mesa", null, null, 10)).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void rarerAndRepeatedWordsRankHigher() {
+        submitted(1, "Colchão", "Aveiro", RequestState.RECIEVED);
+        submitted(2, "Colchão e estrado", "Aveiro", RequestState.RECIEVED);
+        submitted(3, "Colchão, colchão e mais um colchão", "Aveiro", RequestState.RECIEVED);
+        submitted(4, "Estrado", "Aveiro", RequestState.RECIEVED);
+
+        assertThat(index.search("colchao", null, null, 10)).containsExactly(3L, 1L, 2L);
+        assertThat(index.search("colchao", null, null, 2)).containsExactly(3L, 1L);
+    }
+
+    @Test
+    void filtersFollowTransitions() {
+        submitted(1, "Sofá", "Aveiro", RequestState.RECIEVED);
+        submitted(2, "Sofá", "Porto", RequestState.RECIEVED);
+
+        submitted(1, "Sofá", "Aveiro", RequestState.ASSIGNED);
+
+        assertThat(index.search("sofa", "Porto", null, 10)).containsExactly(2L);
+        assertThat(index.search("sofa", null, RequestState.ASSIGNED, 10)).containsExactly(1L);
+        assertThat(index.search("sofa", "Aveiro", RequestState.RECIEVED, 10)).isEmpty();
+        assertThat(index.size()).isEqualTo(2);
+    }
+
+    @Test
+    void rebuildReadsTheTableAndKeepsNewerEvents() {
+        submitted(9, "Bicicleta", "Aveiro", RequestState.RECIEVED);
+        doAnswer(inv -> {
+            Consumer<ServiceRequest> action = inv.getArgument(0);
+            action.accept(new ServiceRequest(1, date, "Máquina de lavar", RequestState.RECIEVED, "Aveiro"));
+            // Moved while the table was being read, the row above is already out of date
+            submitted(1, "Máquina de lavar", "Aveiro", RequestState.CANCELLED);
+            action.accept(new ServiceRequest(2, date, "Máquinas de costura", RequestState.DONE, "Porto"));
+            return null;
+        }).when(repository).forEachRequest(any());
+
+        index.rebuild();
+
+        // Only what the table has, the event-only request is gone
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.search("bicicleta", null, null, 10)).isEmpty();
+        assertThat(index.search("maquina", null, null, 10)).containsExactlyInAnyOrder(1L, 2L);
+        assertThat(index.search("maquina", null, RequestState.CANCELLED, 10)).containsExactly(1L);
+    }
+
+    @Test
+    void syncRereadsOnlyWhatTheLogSaysChanged() {
+        submitted(1, "Sofá", "Aveiro", RequestState.RECIEVED);
+        submitted(2, "Mesa", "Aveiro", RequestState.RECIEVED);
+        submitted(3, "Cadeira", "Aveiro", RequestState.RECIEVED);
+        // 1 moved and 4 was submitted on another node, 2 was deleted, 3 didn't change
+        when(repository.findTokensChangedSince(any())).thenReturn(List.of(1L, 2L, 4L));
+        when(repository.findSummariesByTokenIn(List.of(1L, 2L, 4L))).thenReturn(List.of(
+                new RequestSummary(1, date, "Sofá", "Aveiro", RequestState.ASSIGNED),
+                new RequestSummary(4, date, "Cadeira de escritório", "Porto", RequestState.RECIEVED)));
+
+        index.sync();
+
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(index.search("sofa", null, RequestState.ASSIGNED, 10)).containsExactly(1L);
+        assertThat(index.search("mesa", null, null, 10)).isEmpty();
+        assertThat(index.search("cadeira", null, null, 10)).containsExactlyInAnyOrder(3L, 4L);
+        verify(repository, never()).forEachRequest(any());
+    }
+}
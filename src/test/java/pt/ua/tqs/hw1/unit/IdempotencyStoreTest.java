@@ -0,0 +1,155 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import pt.ua.tqs.hw1.boundary.IdempotencyKeyInProgressException;
+import pt.ua.tqs.hw1.boundary.IdempotencyKeyReusedException;
+import pt.ua.tqs.hw1.boundary.IdempotencyStore;
+
+class IdempotencyStoreTest {
+
+    private static final byte[] BODY = "{\"municipality\":\"Aveiro\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void sameKeyRunsOnce() {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 100, Duration.ofSeconds(10));
+        AtomicInteger runs = new AtomicInteger();
+
+        ResponseEntity<Object> first = store.execute("key", BODY, () -> ResponseEntity.ok(runs.incrementAndGet()));
+        ResponseEntity<Object> second = store.execute("key", BODY, () -> ResponseEntity.ok(runs.incrementAndGet()));
+        ResponseEntity<Object> other = store.execute("other", BODY, () -> ResponseEntity.ok(runs.incrementAndGet()));
+
+        assertThat(first.getBody()).isEqualTo(1);
+        assertThat(second).isSameAs(first);
+        assertThat(other.getBody()).isEqualTo(2);
+    }
+
+    @Test
+    void concurrentDuplicatesAreCollapsed() throws Exception {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 100, Duration.ofSeconds(10));
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<ResponseEntity<Object>>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> store.execute("key", BODY, () -> {
+                runs.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ResponseEntity.ok("done");
+            })));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<ResponseEntity<Object>> result : results) {
+            assertThat(result.get().getBody()).isEqualTo("done");
+        }
+        executor.shutdown();
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    void failureIsNotRemembered() {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 100, Duration.ofSeconds(10));
+
+        assertThrows(IllegalStateException.class, () -> store.execute("key", BODY, () -> {
+            throw new IllegalStateException();
+        }));
+
+        assertThat(store.execute("key", BODY, () -> ResponseEntity.ok("retried")).getBody()).isEqualTo("retried");
+    }
+
+    @Test
+    void retryableResponseIsNotRemembered() {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 100, Duration.ofSeconds(10));
+
+        ResponseEntity<Object> busy = store.execute("key", BODY, () -> ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("busy"));
+        ResponseEntity<Object> retried = store.execute("key", BODY, () -> ResponseEntity.status(HttpStatus.CREATED).body("created"));
+
+        assertThat(busy.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        assertThat(retried.getBody()).isEqualTo("created");
+        assertThat(store.execute("key", BODY, () -> ResponseEntity.ok("again")).getBody()).isEqualTo("created");
+    }
+
+    @Test
+    void oldestEntriesAreEvictedFirst() {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 2, Duration.ofSeconds(10));
+        store.execute("first", BODY, () -> ResponseEntity.ok("first"));
+        store.execute("second", BODY, () -> ResponseEntity.ok("second"));
+        store.execute("third", BODY, () -> ResponseEntity.ok("third"));
+
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(store.execute("second", BODY, () -> ResponseEntity.ok("again")).getBody()).isEqualTo("second");
+        assertThat(store.execute("first", BODY, () -> ResponseEntity.ok("again")).getBody()).isEqualTo("again");
+    }
+
+    @Test
+    void expiredAndExcessEntriesAreEvicted() {
+        IdempotencyStore expiring = new IdempotencyStore(Duration.ZERO, 100, Duration.ofSeconds(10));
+        expiring.execute("key", BODY, () -> ResponseEntity.ok("first"));
+        assertThat(expiring.execute("key", BODY, () -> ResponseEntity.ok("second")).getBody()).isEqualTo("second");
+
+        IdempotencyStore bounded = new IdempotencyStore(Duration.ofMinutes(10), 3, Duration.ofSeconds(10));
+        for (int i = 0; i < 10; i++) {
+            bounded.execute("key" + i, BODY, () -> ResponseEntity.ok("value"));
+        }
+        assertThat(bounded.size()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    void differentBodyUnderSameKeyIsRefused() {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 100, Duration.ofSeconds(10));
+        byte[] other = "{\"municipality\":\"Porto\"}".getBytes(StandardCharsets.UTF_8);
+        store.execute("key", BODY, () -> ResponseEntity.ok("first"));
+
+        assertThrows(IdempotencyKeyReusedException.class, () -> store.execute("key", other, () -> ResponseEntity.ok("second")));
+        assertThat(store.execute("key", BODY, () -> ResponseEntity.ok("again")).getBody()).isEqualTo("first");
+    }
+
+    @Test
+    void waitForFirstRunIsBounded() throws Exception {
+        IdempotencyStore store = new IdempotencyStore(Duration.ofMinutes(10), 100, Duration.ofMillis(100));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<ResponseEntity<Object>> first = executor.submit(() -> store.execute("key", BODY, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ResponseEntity.ok("done");
+        }));
+        started.await();
+
+        assertThrows(IdempotencyKeyInProgressException.class, () -> store.execute("key", BODY, () -> ResponseEntity.ok("second")));
+
+        // The first run isn't affected by the waiter giving up
+        release.countDown();
+        assertThat(first.get().getBody()).isEqualTo("done");
+        assertThat(store.execute("key", BODY, () -> ResponseEntity.ok("again")).getBody()).isEqualTo("done");
+        executor.shutdown();
+    }
+}
@@ -1,14 +1,19 @@
 package pt.ua.tqs.hw1.unit;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Spy;
@@ -23,25 +28,11 @@ import pt.ua.tqs.hw1.service.MunicipalityClient;
 class MunicipalityClientTest {
 
     @Spy
-    private MunicipalityClient client;
-
-    // Generated with GPT
-    @BeforeEach
-    void resetStaticCache() throws Exception {
-        Field field = MunicipalityClient.class.getDeclaredField("municipalities");
-        field.setAccessible(true);
-        field.set(null, null);
-    }
+    private MunicipalityClient client = new MunicipalityClient(Duration.ofHours(24), Duration.ofHours(1), Duration.ofHours(1), Duration.ofHours(1));
 
     @Test
     void lazyLoading() throws IOException {
-        // Generated with GPT
-        doAnswer(invocation -> {
-            Field field = MunicipalityClient.class.getDeclaredField("municipalities");
-            field.setAccessible(true);
-            field.set(null, List.of("Aveiro", "Porto"));
-            return null;
-        }).when(client).loadMunicipalities();
+        doReturn(List.of("Aveiro", "Porto")).when(client).loadMunicipalities();
 
         List<String> firstCall = client.getMunicipalities();
         verify(client, times(1)).loadMunicipalities();
@@ -61,4 +52,69 @@ class MunicipalityClientTest {
         assertTrue(result.isEmpty());
         verify(client, times(1)).loadMunicipalities();
     }
-}
\ No newline at end of file
+
+    @Test
+    void failureIsNotRetriedDuringBackoff() throws IOException {
+        doThrow(new IOException("Network Error")).when(client).loadMunicipalities();
+
+        client.getMunicipalities();
+        assertThat(client.getMunicipalities()).isEmpty();
+
+        verify(client, times(1)).loadMunicipalities();
+    }
+
+    @Test
+    void concurrentCallersShareOneLoad() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return List.of("Aveiro");
+        }).when(client).loadMunicipalities();
+
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(callers.submit(client::getMunicipalities));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<List<String>> result : results) {
+            assertThat(result.get()).containsExactly("Aveiro");
+        }
+        callers.shutdown();
+        verify(client, times(1)).loadMunicipalities();
+    }
+
+    @Test
+    void expiredListIsServedWhenReloadFails() throws IOException {
+        MunicipalityClient expiring = spy(new MunicipalityClient(Duration.ZERO, Duration.ZERO, Duration.ofHours(1), Duration.ofHours(1)));
+        doReturn(List.of("Aveiro")).when(expiring).loadMunicipalities();
+        expiring.getMunicipalities();
+
+        doThrow(new IOException("Network Error")).when(expiring).loadMunicipalities();
+
+        assertThat(expiring.getMunicipalities()).containsExactly("Aveiro");
+        // Backing off now, the old list is kept without trying again
+        assertThat(expiring.getMunicipalities()).containsExactly("Aveiro");
+        verify(expiring, times(2)).loadMunicipalities();
+    }
+
+    @Test
+    void listIsRefreshedAheadInBackground() throws Exception {
+        // Refreshed from the start of its life
+        MunicipalityClient refreshing = spy(new MunicipalityClient(Duration.ofHours(1), Duration.ofHours(1), Duration.ofHours(1), Duration.ofHours(1)));
+        doReturn(List.of("Aveiro")).when(refreshing).loadMunicipalities();
+        refreshing.getMunicipalities();
+
+        doReturn(List.of("Aveiro", "Porto")).when(refreshing).loadMunicipalities();
+
+        // Answered from the cache while the refresh runs
+        assertThat(refreshing.getMunicipalities()).isNotEmpty();
+        verify(refreshing, timeout(1000).atLeast(2)).loadMunicipalities();
+        for (int i = 0; i < 50 && refreshing.getMunicipalities().size() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(refreshing.getMunicipalities()).containsExactly("Aveiro", "Porto");
+    }
+}
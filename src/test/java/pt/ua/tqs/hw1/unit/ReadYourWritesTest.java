@@ -0,0 +1,96 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import pt.ua.tqs.hw1.data.ReplicaRouting;
+import pt.ua.tqs.hw1.service.ReadYourWrites;
+
+class ReadYourWritesTest {
+
+    private final DataSource primary = mock(DataSource.class);
+
+    private final DataSource replica = mock(DataSource.class);
+
+    private final ReplicaRouting routing = new ReplicaRouting();
+
+    @BeforeEach
+    void setup() {
+        routing.setTargetDataSources(Map.of(ReplicaRouting.Target.PRIMARY, primary, ReplicaRouting.Target.REPLICA, replica));
+        routing.setDefaultTargetDataSource(primary);
+        routing.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void cleanup() {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+    }
+
+    @Test
+    void readOnlyTransactionsGoToTheReplica() throws SQLException {
+        routing.getConnection();
+        verify(primary).getConnection();
+
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        routing.getConnection();
+        verify(replica).getConnection();
+    }
+
+    @Test
+    void justWrittenTokensAreReadFromThePrimary() throws SQLException {
+        ReadYourWrites readYourWrites = new ReadYourWrites("jdbc:h2:mem:replica", Duration.ofMinutes(1));
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+
+        readYourWrites.written(7);
+
+        assertThat(readYourWrites.isRecent(7)).isTrue();
+        assertThat(readYourWrites.isRecent(8)).isFalse();
+        readYourWrites.read(7, () -> connect());
+        verify(primary).getConnection();
+        verify(replica, never()).getConnection();
+
+        readYourWrites.read(8, () -> connect());
+        verify(replica).getConnection();
+    }
+
+    @Test
+    void forgottenAfterTheLag() throws InterruptedException {
+        ReadYourWrites readYourWrites = new ReadYourWrites("jdbc:h2:mem:replica", Duration.ofMillis(20));
+
+        readYourWrites.written(7);
+        Thread.sleep(50);
+        readYourWrites.evictExpired();
+
+        assertThat(readYourWrites.isRecent(7)).isFalse();
+    }
+
+    @Test
+    void nothingToTrackWithoutAReplica() {
+        ReadYourWrites readYourWrites = new ReadYourWrites("", Duration.ofMinutes(1));
+
+        readYourWrites.written(7);
+
+        assertThat(readYourWrites.isRecent(7)).isFalse();
+    }
+
+    private Object connect() {
+        try {
+            return routing.getConnection();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
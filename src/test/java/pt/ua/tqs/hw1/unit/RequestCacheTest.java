@@ -0,0 +1,128 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.RequestCache;
+
+class RequestCacheTest {
+
+    private static ServiceRequest request(long token) {
+        ServiceRequest request = new ServiceRequest();
+        request.setToken(token);
+        request.setState(RequestState.RECIEVED);
+        return request;
+    }
+
+    @Test
+    void loadsOnceUntilInvalidated() {
+        RequestCache cache = new RequestCache(100, Duration.ofMinutes(1));
+        AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            cache.get(1, token -> {
+                loads.incrementAndGet();
+                return Optional.of(request(token));
+            });
+        }
+        cache.invalidate(1);
+        cache.get(1, token -> {
+            loads.incrementAndGet();
+            return Optional.of(request(token));
+        });
+
+        assertThat(loads).hasValue(2);
+        assertThat(cache.stats().hits()).isEqualTo(2);
+        assertThat(cache.stats().misses()).isEqualTo(2);
+        assertThat(cache.stats().hitRatio()).isEqualTo(0.5);
+    }
+
+    @Test
+    void missingRequestsAreNotCached() {
+        RequestCache cache = new RequestCache(100, Duration.ofMinutes(1));
+
+        assertThat(cache.get(1, token -> Optional.empty())).isEmpty();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.get(1, token -> Optional.of(request(token)))).isPresent();
+    }
+
+    @Test
+    void expiredEntriesAreLoadedAgain() throws InterruptedException {
+        RequestCache cache = new RequestCache(100, Duration.ofMillis(10));
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get(1, token -> Optional.of(request(loads.incrementAndGet())));
+        Thread.sleep(20);
+        Optional<ServiceRequest> reloaded = cache.get(1, token -> Optional.of(request(loads.incrementAndGet())));
+
+        assertThat(reloaded.get().getToken()).isEqualTo(2);
+        cache.evictExpired();
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void staysWithinItsSize() {
+        RequestCache cache = new RequestCache(10, Duration.ofMinutes(1));
+
+        for (long token = 1; token <= 25; token++) {
+            cache.get(token, t -> Optional.of(request(t)));
+        }
+
+        assertThat(cache.size()).isEqualTo(10);
+        assertThat(cache.stats().evictions()).isEqualTo(15);
+    }
+
+    @Test
+    void oldestEntriesAreEvictedFirst() {
+        RequestCache cache = new RequestCache(2, Duration.ofMinutes(1));
+
+        for (long token = 1; token <= 3; token++) {
+            cache.get(token, t -> Optional.of(request(t)));
+        }
+
+        assertThat(cache.getIfPresent(1)).isEmpty();
+        assertThat(cache.getIfPresent(2)).isPresent();
+        assertThat(cache.getIfPresent(3)).isPresent();
+    }
+
+    @Test
+    void loadRacingAnInvalidationIsNotKept() {
+        RequestCache cache = new RequestCache(100, Duration.ofMinutes(1));
+
+        // A transition commits while the row is being read
+        cache.get(1, token -> {
+            cache.invalidate(1);
+            return Optional.of(request(token));
+        });
+
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void invalidatedAgainWhenTheTransactionEnds() {
+        RequestCache cache = new RequestCache(100, Duration.ofMinutes(1));
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.invalidate(1);
+            // A poll reads the old row before the transition commits
+            cache.get(1, token -> Optional.of(request(token)));
+            assertThat(cache.size()).isEqualTo(1);
+
+            TransactionSynchronizationManager.getSynchronizations()
+                    .forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertThat(cache.size()).isZero();
+    }
+}
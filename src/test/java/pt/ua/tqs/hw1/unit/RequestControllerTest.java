@@ -3,25 +3,41 @@ package pt.ua.tqs.hw1.unit;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import pt.ua.tqs.hw1.boundary.IdempotencyStore;
 import pt.ua.tqs.hw1.boundary.RequestController;
 import pt.ua.tqs.hw1.data.RequestState;
 import pt.ua.tqs.hw1.data.RequestStateChange;
+import pt.ua.tqs.hw1.data.ListingVersion;
+import pt.ua.tqs.hw1.data.RequestSummary;
 import pt.ua.tqs.hw1.data.ServiceRequest;
 import pt.ua.tqs.hw1.service.*;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @WebMvcTest(RequestController.class)
+@Import(IdempotencyStore.class)
 class RequestControllerTest {
 
     @Autowired
@@ -30,6 +46,12 @@ class RequestControllerTest {
     @MockitoBean
     private RequestService requestService;
 
+    @MockitoBean
+    private WriteBehindQueue writeBehindQueue;
+
+    @MockitoBean
+    private LifecycleReplay lifecycleReplay;
+
     @Test
     void submitRequestSuccess() throws Exception {
         ServiceRequest request = new ServiceRequest();
@@ -68,33 +90,306 @@ class RequestControllerTest {
                 .andExpect(jsonPath("$.error").value("too many requests for this day and place have already been booked"));
     }
 
+    @Test
+    void submitRequestOverflowSuggestsDays() throws Exception {
+        when(requestService.submitRequest(any(ServiceRequest.class)))
+                .thenThrow(new RequestOverflowException());
+        when(requestService.getNextAvailableDays("Aveiro", LocalDate.of(2026, 4, 21), 3))
+                .thenReturn(List.of(LocalDate.of(2026, 4, 22), LocalDate.of(2026, 4, 24)));
+
+        mockMvc.perform(post("/api/submit")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.available[0]").value("2026-04-22"))
+                .andExpect(jsonPath("$.available[1]").value("2026-04-24"));
+    }
+
+    @Test
+    void getAvailability() throws Exception {
+        when(requestService.getAvailability("Aveiro", LocalDate.of(2026, 4, 20), LocalDate.of(2026, 4, 21)))
+                .thenReturn(List.of(new DayAvailability(LocalDate.of(2026, 4, 20), 0), new DayAvailability(LocalDate.of(2026, 4, 21), 2)));
+
+        mockMvc.perform(get("/api/availability")
+                .param("municipality", "Aveiro")
+                .param("from", "2026-04-20")
+                .param("to", "2026-04-21"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].date").value("2026-04-20"))
+                .andExpect(jsonPath("$[0].remaining").value(0))
+                .andExpect(jsonPath("$[1].remaining").value(2));
+    }
 
     @Test
-    void getRequests() throws Exception {
+    void getAvailabilityInvalidRange() throws Exception {
+        when(requestService.getAvailability(any(), any(), any())).thenThrow(new InvalidRequestDateException());
+
+        mockMvc.perform(get("/api/availability")
+                .param("municipality", "Aveiro")
+                .param("from", "2026-04-21")
+                .param("to", "2026-04-20"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("invalid date range"));
+    }
+    @Test
+    void getStateCounts() throws Exception {
+        LocalDate day = LocalDate.of(2026, 4, 20);
+        Map<RequestState, Long> counts = new EnumMap<>(RequestState.class);
+        counts.put(RequestState.RECIEVED, 2L);
+        counts.put(RequestState.CANCELLED, 1L);
+        when(requestService.getStateCounts(day, day.plusDays(1))).thenReturn(List.of(new DailyStateCounts("Aveiro", day, counts)));
+
+        mockMvc.perform(get("/api/stats")
+                .param("from", "2026-04-20")
+                .param("to", "2026-04-21"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].municipality").value("Aveiro"))
+                .andExpect(jsonPath("$[0].day").value("2026-04-20"))
+                .andExpect(jsonPath("$[0].counts.RECIEVED").value(2))
+                .andExpect(jsonPath("$[0].counts.CANCELLED").value(1));
+    }
+
+    @Test
+    void getStateCountsDefaultsToToday() throws Exception {
+        when(requestService.getStateCounts(LocalDate.now(), LocalDate.now())).thenReturn(List.of());
+
+        mockMvc.perform(get("/api/stats"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    void getStateCountsInvalidRange() throws Exception {
+        when(requestService.getStateCounts(any(), any())).thenThrow(new InvalidRequestDateException());
+
+        mockMvc.perform(get("/api/stats")
+                .param("from", "2026-04-21")
+                .param("to", "2026-04-20"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("invalid date range"));
+    }
+
+    @Test
+    void searchRequests() throws Exception {
+        when(requestService.searchRequests("sofá", "Aveiro", RequestState.RECIEVED, 100)).thenReturn(List.of(7L, 3L));
+
+        mockMvc.perform(get("/api/requests/search")
+                .param("q", "sofá")
+                .param("municipality", "Aveiro")
+                .param("state", "RECIEVED"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0]").value(7))
+                .andExpect(jsonPath("$[1]").value(3));
+    }
+
+    @Test
+    void searchRequestsWithoutWords() throws Exception {
+        mockMvc.perform(get("/api/requests/search").param("q", " "))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("invalid search"));
+
+        verify(requestService, times(0)).searchRequests(any(), any(), any(), anyInt());
+    }
+
+    @Test
+    void submitRequestRetriedWithSameKey() throws Exception {
         ServiceRequest request = new ServiceRequest();
-        request.setToken(10);
-        ServiceRequest request2 = new ServiceRequest();
-        request2.setToken(15);
-        ServiceRequest request3 = new ServiceRequest();
-        request3.setToken(20);
-        when(requestService.getRequests()).thenReturn(List.of(request, request2, request3));
+        request.setToken(3);
+        when(requestService.submitRequest(any(ServiceRequest.class))).thenReturn(request);
+
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(post("/api/submit")
+                    .header("Idempotency-Key", "retry-key")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                    .andExpect(status().isCreated())
+                    .andExpect(jsonPath("$.token").value(3));
+        }
+
+        // The retry got the first answer, nothing was submitted twice
+        verify(requestService, times(1)).submitRequest(any(ServiceRequest.class));
+    }
+
+    @Test
+    void submitRequestSameKeyDifferentBody() throws Exception {
+        ServiceRequest request = new ServiceRequest();
+        request.setToken(3);
+        when(requestService.submitRequest(any(ServiceRequest.class))).thenReturn(request);
+
+        mockMvc.perform(post("/api/submit")
+                .header("Idempotency-Key", "reused-key")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                .andExpect(status().isCreated());
+        mockMvc.perform(post("/api/submit")
+                .header("Idempotency-Key", "reused-key")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with fridge!\",\"municipality\":\"Porto\"}"))
+                .andExpect(status().isUnprocessableEntity())
+                .andExpect(jsonPath("$.error").exists());
+
+        verify(requestService, times(1)).submitRequest(any(ServiceRequest.class));
+    }
+
+    @Test
+    void submitRequestWriteBehind() throws Exception {
+        ServiceRequest queued = new ServiceRequest();
+        queued.setToken(11);
+        when(writeBehindQueue.isEnabled()).thenReturn(true);
+        when(writeBehindQueue.submit(any(ServiceRequest.class))).thenReturn(queued);
+
+        mockMvc.perform(post("/api/submit")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.token").value(11));
+    }
+
+    @Test
+    void submitRequestWriteBehindQueueFull() throws Exception {
+        when(writeBehindQueue.isEnabled()).thenReturn(true);
+        when(writeBehindQueue.submit(any(ServiceRequest.class))).thenThrow(new SubmissionQueueFullException());
+
+        mockMvc.perform(post("/api/submit")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "1"));
+    }
+
+    @Test
+    void submitRequestQueueFullRetriedWithSameKey() throws Exception {
+        ServiceRequest queued = new ServiceRequest();
+        queued.setToken(12);
+        when(writeBehindQueue.isEnabled()).thenReturn(true);
+        when(writeBehindQueue.submit(any(ServiceRequest.class))).thenThrow(new SubmissionQueueFullException()).thenReturn(queued);
+
+        mockMvc.perform(post("/api/submit")
+                .header("Idempotency-Key", "busy-key")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                .andExpect(status().isServiceUnavailable());
+
+        // The 503 asked for a retry, so it isn't replayed
+        mockMvc.perform(post("/api/submit")
+                .header("Idempotency-Key", "busy-key")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Help with microwave!\",\"municipality\":\"Aveiro\"}"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.token").value(12));
+    }
+
+    @Test
+    void submitBatch() throws Exception {
+        ServiceRequest saved = new ServiceRequest();
+        saved.setToken(7);
+        when(requestService.submitRequests(any())).thenReturn(List.of(
+                SubmissionOutcome.accepted(saved),
+                SubmissionOutcome.rejected(new RequestOverflowException()),
+                SubmissionOutcome.rejected(new InvalidRequestDateException())));
+
+        mockMvc.perform(post("/api/submit/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Fridge\",\"municipality\":\"Aveiro\"},"
+                        + "{\"date\": \"2026-04-21T08:21:00\", \"description\":\"Sofa\",\"municipality\":\"Aveiro\"},"
+                        + "{\"date\": \"2000-04-21T08:21:00\", \"description\":\"Bed\",\"municipality\":\"Aveiro\"}]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].token").value(7))
+                .andExpect(jsonPath("$[1].error").value("too many requests for this day and place have already been booked"))
+                .andExpect(jsonPath("$[2].error").value("the request date is invalid"));
+    }
+
+    @Test
+    void submitBatchConflict() throws Exception {
+        when(requestService.submitRequests(any())).thenThrow(new BookingConflictException());
+
+        mockMvc.perform(post("/api/submit/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[{\"date\": \"2026-04-21T07:21:00\", \"description\":\"Fridge\",\"municipality\":\"Aveiro\"}]"))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    void getRequests() throws Exception {
+        RequestSummary request = new RequestSummary(10, null, null, null, RequestState.RECIEVED);
+        RequestSummary request2 = new RequestSummary(15, null, null, null, RequestState.RECIEVED);
+        RequestSummary request3 = new RequestSummary(20, null, null, null, RequestState.RECIEVED);
+        when(requestService.getRequests(0, 100, false)).thenReturn(List.of(request, request2, request3));
 
         mockMvc.perform(get("/api/requests"))
                 .andExpect(status().isOk())
+                .andExpect(header().string("Next-Cursor", "20"))
                 .andExpect(jsonPath("$.length()").value(3))
                 .andExpect(jsonPath("$[0].token").value(10))
                 .andExpect(jsonPath("$[1].token").value(15))
-                .andExpect(jsonPath("$[2].token").value(20));
+                .andExpect(jsonPath("$[2].token").value(20))
+                .andExpect(jsonPath("$[0].stateChanges").doesNotExist());
+    }
+
+    @Test
+    void getRequestsWithHistory() throws Exception {
+        RequestSummary request = new RequestSummary(10, null, null, null, RequestState.ASSIGNED)
+                .withHistory(List.of(new RequestStateChange(1, LocalDateTime.of(2025, 1, 1, 9, 0), RequestState.RECIEVED),
+                        new RequestStateChange(2, LocalDateTime.of(2025, 1, 1, 10, 0), RequestState.ASSIGNED)));
+        when(requestService.getRequests(0, 100, true)).thenReturn(List.of(request));
+
+        mockMvc.perform(get("/api/requests").param("history", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].stateChanges.length()").value(2))
+                .andExpect(jsonPath("$[0].stateChanges[1].state").value("ASSIGNED"));
     }
 
 
     @Test
-    void getRequestsInMunicipality() throws Exception {
+    void getRequestsNextPage() throws Exception {
+        when(requestService.getRequests(20, 1000, false)).thenReturn(List.of());
+
+        mockMvc.perform(get("/api/requests").param("afterToken", "20").param("limit", "5000"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Next-Cursor", "20"))
+                .andExpect(jsonPath("$").isEmpty());
+
+        mockMvc.perform(get("/api/requests").param("limit", "0"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("invalid cursor"));
+    }
+
+    @Test
+    void exportRequests() throws Exception {
         ServiceRequest request = new ServiceRequest();
-        request.setMunicipality("Aveiro");
-        request.setToken(99);
+        request.setToken(10);
+        ServiceRequest request2 = new ServiceRequest();
+        request2.setToken(15);
+        doAnswer(inv -> {
+            Consumer<ServiceRequest> action = inv.getArgument(0);
+            action.accept(request);
+            action.accept(request2);
+            return null;
+        }).when(requestService).exportRequests(any());
+
+        MvcResult result = mockMvc.perform(get("/api/requests/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
 
-        when(requestService.getRequests("Aveiro")).thenReturn(List.of(request));
+        assertThat(body.lines()).hasSize(2);
+        assertThat(body.lines().toList().get(1)).contains("\"token\":15");
+    }
+
+    @Test
+    void getRequestsInMunicipality() throws Exception {
+        RequestSummary request = new RequestSummary(99, null, null, "Aveiro", RequestState.RECIEVED);
+
+        when(requestService.getListingVersion("Aveiro")).thenReturn(new ListingVersion(3, LocalDateTime.of(2030, 1, 7, 9, 0)));
+        when(requestService.getRequests("Aveiro", false)).thenReturn(List.of(request));
 
         mockMvc.perform(get("/api/requests/municipalities/Aveiro"))
                 .andExpect(status().isOk())
@@ -104,15 +399,91 @@ class RequestControllerTest {
     }
 
 
+    @Test
+    void getRequestsInMunicipalityNotModified() throws Exception {
+        when(requestService.getListingVersion("Aveiro")).thenReturn(new ListingVersion(3, LocalDateTime.of(2030, 1, 7, 9, 0)));
+
+        mockMvc.perform(get("/api/requests/municipalities/Aveiro").header("If-None-Match", "\"3-2030-01-07T09:00\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        verify(requestService, times(0)).getRequests("Aveiro", false);
+
+        // Nothing listed any more, still a strong ETag
+        when(requestService.getListingVersion("Aveiro")).thenReturn(new ListingVersion(4, null));
+        mockMvc.perform(get("/api/requests/municipalities/Aveiro").header("If-None-Match", "\"3-2030-01-07T09:00\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"4-empty\""));
+    }
+
     @Test
     void getRequestSuccess() throws Exception {
         ServiceRequest request = new ServiceRequest();
         request.setToken(42);
+        request.setVersion(2L);
         when(requestService.getRequest(42)).thenReturn(request);
 
         mockMvc.perform(get("/api/requests/42"))
                 .andExpect(status().isOk())
-                .andExpect(jsonPath("$.token").value(42));
+                .andExpect(header().string("ETag", "\"42-2\""))
+                .andExpect(header().string("Cache-Control", "no-cache"))
+                .andExpect(jsonPath("$.token").value(42))
+                .andExpect(jsonPath("$.version").doesNotExist());
+        // Only conditional requests look the version up
+        verify(requestService, times(0)).getRequestVersion(42);
+    }
+
+    @Test
+    void getRequestNotModified() throws Exception {
+        when(requestService.getRequestVersion(42)).thenReturn(Optional.of(2L));
+
+        mockMvc.perform(get("/api/requests/42").header("If-None-Match", "\"42-2\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"42-2\""));
+        verify(requestService, times(0)).getRequest(42);
+    }
+
+    @Test
+    void getRequestModifiedSinceETag() throws Exception {
+        ServiceRequest request = new ServiceRequest();
+        request.setToken(42);
+        request.setVersion(3L);
+        when(requestService.getRequestVersion(42)).thenReturn(Optional.of(3L));
+        when(requestService.getRequest(42)).thenReturn(request);
+
+        mockMvc.perform(get("/api/requests/42").header("If-None-Match", "\"42-2\""))
+                .andExpect(status().isOk())
+                .andExpect(header().stringValues("ETag", "\"42-3\""));
+    }
+
+    @Test
+    void getRequestStillQueued() throws Exception {
+        ServiceRequest queued = new ServiceRequest();
+        queued.setToken(43);
+        when(writeBehindQueue.findPending(43)).thenReturn(Optional.of(queued));
+
+        mockMvc.perform(get("/api/requests/43"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.token").value(43));
+    }
+
+    @Test
+    void getRequestRejectedAfterQueueing() throws Exception {
+        when(requestService.getRequest(44)).thenThrow(new RequestNotFoundException());
+        when(writeBehindQueue.findFailure(44)).thenReturn(Optional.of(QueuedWriteFailure.SLOT_TAKEN));
+
+        mockMvc.perform(get("/api/requests/44"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("too many requests for this day and place have already been booked"));
+    }
+
+    @Test
+    void getRequestWriteFailedAfterQueueing() throws Exception {
+        when(requestService.getRequest(45)).thenThrow(new RequestNotFoundException());
+        when(writeBehindQueue.findFailure(45)).thenReturn(Optional.of(QueuedWriteFailure.WRITE_FAILED));
+
+        mockMvc.perform(get("/api/requests/45"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("the request could not be saved, please submit it again"));
     }
 
     @Test
@@ -136,25 +507,35 @@ class RequestControllerTest {
         ServiceRequest request = new ServiceRequest();
         request.setToken(42);
         
-        RequestStateChange change1 = new RequestStateChange(LocalDateTime.now(), RequestState.ASSIGNED);
+        RequestStateChange change1 = new RequestStateChange(1, LocalDateTime.now(), RequestState.ASSIGNED);
         change1.setServiceRequest(request);
         
-        RequestStateChange change2 = new RequestStateChange(LocalDateTime.now().plusDays(1), RequestState.IN_PROGRESS);
+        RequestStateChange change2 = new RequestStateChange(2, LocalDateTime.now().plusDays(1), RequestState.IN_PROGRESS);
         change2.setServiceRequest(request);
         
-        RequestStateChange change3 = new RequestStateChange(LocalDateTime.now().plusDays(1), RequestState.DONE);
+        RequestStateChange change3 = new RequestStateChange(3, LocalDateTime.now().plusDays(1), RequestState.DONE);
         change3.setServiceRequest(request);
 
-        when(requestService.getStateChanges(42)).thenReturn(List.of(change1, change2, change3));
+        when(requestService.getStateChanges(42, 0, 100)).thenReturn(List.of(change1, change2, change3));
 
         mockMvc.perform(get("/api/requests/42/states"))
                 .andExpect(status().isOk())
+                .andExpect(header().string("Next-Cursor", "3"))
                 .andExpect(jsonPath("$.length()").value(3))
                 .andExpect(jsonPath("$[0].state").value("ASSIGNED"))
                 .andExpect(jsonPath("$[1].state").value("IN_PROGRESS"))
                 .andExpect(jsonPath("$[2].state").value("DONE"));
     }
 
+    @Test
+    void getRequestStatesNotModified() throws Exception {
+        when(requestService.getRequestVersion(42)).thenReturn(Optional.of(5L));
+
+        mockMvc.perform(get("/api/requests/42/states").header("If-None-Match", "\"42-5\""))
+                .andExpect(status().isNotModified());
+        verify(requestService, times(0)).getStateChanges(42, 0, 100);
+    }
+
     @Test
     void getRequestStatesInvalidToken() throws Exception {
         mockMvc.perform(get("/api/requests/abc/states"))
@@ -164,18 +545,45 @@ class RequestControllerTest {
 
     @Test
     void getRequestStatesNotFound() throws Exception {
-        when(requestService.getStateChanges(999)).thenThrow(new RequestNotFoundException());
+        when(requestService.getStateChanges(999, 0, 100)).thenThrow(new RequestNotFoundException());
 
         mockMvc.perform(get("/api/requests/999/states"))
                 .andExpect(status().isNotFound());
     }
 
-    
+    @Test
+    void getRequestStatesAfterCursor() throws Exception {
+        RequestStateChange change = new RequestStateChange(6, LocalDateTime.now(), RequestState.DONE);
+        when(requestService.getStateChanges(42, 5, 2)).thenReturn(List.of(change));
+        when(requestService.getStateChanges(42, 6, 1000)).thenReturn(List.of());
+
+        mockMvc.perform(get("/api/requests/42/states").param("after", "5").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Next-Cursor", "6"))
+                .andExpect(jsonPath("$[0].seq").value(6));
+
+        // Nothing new: the cursor stays where it was, and the limit is capped
+        mockMvc.perform(get("/api/requests/42/states").param("after", "6").param("limit", "5000"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Next-Cursor", "6"))
+                .andExpect(jsonPath("$").isEmpty());
+    }
+
+    @Test
+    void getRequestStatesInvalidCursor() throws Exception {
+        mockMvc.perform(get("/api/requests/42/states").param("after", "-1"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("invalid cursor"));
+
+        mockMvc.perform(get("/api/requests/42/states").param("limit", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     void cancelRequestSuccess() throws Exception {
         ServiceRequest request = new ServiceRequest();
         request.setToken(5);
-        when(requestService.cancelRequest(5)).thenReturn(request);
+        when(requestService.transitionRequest(5, RequestTransition.CANCEL)).thenReturn(request);
 
         mockMvc.perform(put("/api/requests/5/cancel"))
                 .andExpect(status().isOk())
@@ -184,7 +592,7 @@ class RequestControllerTest {
 
     @Test
     void cancelRequestInvalidState() throws Exception {
-        when(requestService.cancelRequest(7))
+        when(requestService.transitionRequest(7, RequestTransition.CANCEL))
                 .thenThrow(new InvalidStateTransitionException());
 
         mockMvc.perform(put("/api/requests/7/cancel"))
@@ -201,7 +609,7 @@ class RequestControllerTest {
 
     @Test
     void cancelRequestNotFound() throws Exception {
-        when(requestService.cancelRequest(999)).thenThrow(new RequestNotFoundException());
+        when(requestService.transitionRequest(999, RequestTransition.CANCEL)).thenThrow(new RequestNotFoundException());
 
         mockMvc.perform(put("/api/requests/999/cancel"))
                 .andExpect(status().isNotFound());
@@ -212,7 +620,7 @@ class RequestControllerTest {
     void assignRequestSuccess() throws Exception {
         ServiceRequest request = new ServiceRequest();
         request.setToken(5);
-        when(requestService.assignRequest(5)).thenReturn(request);
+        when(requestService.transitionRequest(5, RequestTransition.ASSIGN)).thenReturn(request);
 
         mockMvc.perform(put("/api/requests/5/assign"))
                 .andExpect(status().isOk())
@@ -221,7 +629,7 @@ class RequestControllerTest {
 
     @Test
     void assignRequestInvalidState() throws Exception {
-        when(requestService.assignRequest(7))
+        when(requestService.transitionRequest(7, RequestTransition.ASSIGN))
                 .thenThrow(new InvalidStateTransitionException());
 
         mockMvc.perform(put("/api/requests/7/assign"))
@@ -238,7 +646,7 @@ class RequestControllerTest {
 
     @Test
     void assignRequestNotFound() throws Exception {
-        when(requestService.assignRequest(999)).thenThrow(new RequestNotFoundException());
+        when(requestService.transitionRequest(999, RequestTransition.ASSIGN)).thenThrow(new RequestNotFoundException());
 
         mockMvc.perform(put("/api/requests/999/assign"))
                 .andExpect(status().isNotFound());
@@ -249,7 +657,7 @@ class RequestControllerTest {
     void startRequestSuccess() throws Exception {
         ServiceRequest request = new ServiceRequest();
         request.setToken(5);
-        when(requestService.startRequest(5)).thenReturn(request);
+        when(requestService.transitionRequest(5, RequestTransition.START)).thenReturn(request);
 
         mockMvc.perform(put("/api/requests/5/start"))
                 .andExpect(status().isOk())
@@ -258,7 +666,7 @@ class RequestControllerTest {
 
     @Test
     void startRequestInvalidState() throws Exception {
-        when(requestService.startRequest(7))
+        when(requestService.transitionRequest(7, RequestTransition.START))
                 .thenThrow(new InvalidStateTransitionException());
 
         mockMvc.perform(put("/api/requests/7/start"))
@@ -275,7 +683,7 @@ class RequestControllerTest {
 
     @Test
     void startRequestNotFound() throws Exception {
-        when(requestService.startRequest(999)).thenThrow(new RequestNotFoundException());
+        when(requestService.transitionRequest(999, RequestTransition.START)).thenThrow(new RequestNotFoundException());
 
         mockMvc.perform(put("/api/requests/999/start"))
                 .andExpect(status().isNotFound());
@@ -286,7 +694,7 @@ class RequestControllerTest {
     void endRequestSuccess() throws Exception {
         ServiceRequest request = new ServiceRequest();
         request.setToken(5);
-        when(requestService.completeRequest(5)).thenReturn(request);
+        when(requestService.transitionRequest(5, RequestTransition.END)).thenReturn(request);
 
         mockMvc.perform(put("/api/requests/5/end"))
                 .andExpect(status().isOk())
@@ -295,7 +703,7 @@ class RequestControllerTest {
 
     @Test
     void endRequestInvalidState() throws Exception {
-        when(requestService.completeRequest(7))
+        when(requestService.transitionRequest(7, RequestTransition.END))
                 .thenThrow(new InvalidStateTransitionException());
 
         mockMvc.perform(put("/api/requests/7/end"))
@@ -312,9 +720,91 @@ class RequestControllerTest {
 
     @Test
     void endRequestNotFound() throws Exception {
-        when(requestService.completeRequest(999)).thenThrow(new RequestNotFoundException());
+        when(requestService.transitionRequest(999, RequestTransition.END)).thenThrow(new RequestNotFoundException());
 
         mockMvc.perform(put("/api/requests/999/end"))
                 .andExpect(status().isNotFound());
     }
+
+    @Test
+    void bulkAssign() throws Exception {
+        ServiceRequest assigned = new ServiceRequest(5, LocalDateTime.of(2030, 1, 7, 10, 0), "Old sofa", RequestState.ASSIGNED, "Aveiro");
+        when(requestService.transitionRequests(List.of(5L, 6L, 7L), RequestTransition.ASSIGN)).thenReturn(List.of(
+                TransitionOutcome.updated(assigned),
+                TransitionOutcome.rejected(6, new InvalidStateTransitionException()),
+                TransitionOutcome.rejected(7, new RequestNotFoundException())));
+
+        mockMvc.perform(put("/api/requests/bulk/assign")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[5, 6, 7]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].token").value(5))
+                .andExpect(jsonPath("$[0].state").value("ASSIGNED"))
+                .andExpect(jsonPath("$[1].token").value(6))
+                .andExpect(jsonPath("$[1].error").value("request isn't in a valid state to be assigned"))
+                .andExpect(jsonPath("$[2].error").value("request not found"));
+    }
+
+    @Test
+    void bulkEnd() throws Exception {
+        when(requestService.transitionRequests(List.of(), RequestTransition.END)).thenReturn(List.of());
+
+        mockMvc.perform(put("/api/requests/bulk/end")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$").isEmpty());
+
+        verify(requestService, times(1)).transitionRequests(List.of(), RequestTransition.END);
+    }
+
+    @Test
+    void unknownTransition() throws Exception {
+        mockMvc.perform(put("/api/requests/5/teleport"))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(put("/api/requests/bulk/teleport")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[5]"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void transitionStats() throws Exception {
+        when(requestService.getTransitionStats()).thenReturn(List.of(
+                new TransitionStats(RequestState.RECIEVED, RequestState.ASSIGNED, 3, 1, 2.5, 4.0)));
+
+        mockMvc.perform(get("/api/metrics/transitions"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].from").value("RECIEVED"))
+                .andExpect(jsonPath("$[0].to").value("ASSIGNED"))
+                .andExpect(jsonPath("$[0].count").value(3))
+                .andExpect(jsonPath("$[0].rejected").value(1));
+    }
+
+    @Test
+    void requestCacheStats() throws Exception {
+        when(requestService.getRequestCacheStats()).thenReturn(new RequestCacheStats(9, 1, 0.9, 4, 0));
+
+        mockMvc.perform(get("/api/metrics/request-cache"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.hits").value(9))
+                .andExpect(jsonPath("$.misses").value(1))
+                .andExpect(jsonPath("$.hitRatio").value(0.9));
+    }
+
+    @Test
+    void replayLifecycle() throws Exception {
+        when(lifecycleReplay.rebuildAll()).thenReturn(4);
+        when(lifecycleReplay.rebuild(9)).thenReturn(true);
+
+        mockMvc.perform(post("/api/admin/lifecycle/replay"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rebuilt").value(4));
+        mockMvc.perform(post("/api/admin/lifecycle/replay/9"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rebuilt").value(1));
+        mockMvc.perform(post("/api/admin/lifecycle/replay/abc"))
+                .andExpect(status().isBadRequest());
+    }
 }
@@ -0,0 +1,120 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import pt.ua.tqs.hw1.boundary.RequestEventBroadcaster;
+import pt.ua.tqs.hw1.boundary.RequestEventController;
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.RequestSummary;
+import pt.ua.tqs.hw1.service.RequestLogEvent;
+
+@WebMvcTest(value = RequestEventController.class, properties = {"zeromonos.events.replay-size=3", "zeromonos.events.sync-lag=PT0S"})
+@Import(RequestEventBroadcaster.class)
+class RequestEventControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private RequestEventBroadcaster broadcaster;
+
+    private static final AtomicInteger seq = new AtomicInteger();
+
+    // Logged one after the other, after the broadcaster started
+    private static RequestLogEvent event(long token, String municipality, RequestState state) {
+        return new RequestLogEvent(token, seq.incrementAndGet(), LocalDateTime.now(),
+                new RequestSummary(token, LocalDateTime.of(2030, 1, 7, 10, 0), "Old sofa", municipality, state));
+    }
+
+    private MvcResult subscribe(String path, String lastEventId) throws Exception {
+        var builder = get(path);
+        if (lastEventId != null) {
+            builder.header("Last-Event-ID", lastEventId);
+        }
+        MvcResult result = mockMvc.perform(builder).andExpect(request().asyncStarted()).andReturn();
+        awaitContent(result, ":subscribed");
+        return result;
+    }
+
+    // Events are written by the broadcaster's own threads
+    private static String awaitContent(MvcResult result, String expected) throws Exception {
+        for (int i = 0; i < 200; i++) {
+            String content = result.getResponse().getContentAsString();
+            if (content.contains(expected)) {
+                return content;
+            }
+            Thread.sleep(10);
+        }
+        return result.getResponse().getContentAsString();
+    }
+
+    @Test
+    void staffOnlyGetTheirMunicipality() throws Exception {
+        MvcResult result = subscribe("/api/events/municipalities/Aveiro", null);
+
+        broadcaster.onRequestLogEvent(event(1, "Porto", RequestState.RECIEVED));
+        broadcaster.onRequestLogEvent(event(2, "Aveiro", RequestState.ASSIGNED));
+
+        String content = awaitContent(result, "\"token\":2");
+        assertThat(content).contains("event:request").contains("\"state\":\"ASSIGNED\"").doesNotContain("\"token\":1");
+        assertThat(result.getResponse().getContentType()).startsWith("text/event-stream");
+    }
+
+    @Test
+    void citizensOnlyGetTheirToken() throws Exception {
+        MvcResult result = subscribe("/api/events/requests/7", null);
+
+        broadcaster.onRequestLogEvent(event(8, "Aveiro", RequestState.RECIEVED));
+        broadcaster.onRequestLogEvent(event(7, "Aveiro", RequestState.CANCELLED));
+
+        String content = awaitContent(result, "\"token\":7");
+        assertThat(content).contains("\"state\":\"CANCELLED\"").doesNotContain("\"token\":8");
+    }
+
+    @Test
+    void reconnectingReplaysWhatWasMissed() throws Exception {
+        MvcResult first = subscribe("/api/events/requests/5", null);
+        broadcaster.onRequestLogEvent(event(5, "Aveiro", RequestState.ASSIGNED));
+        String seen = awaitContent(first, "ASSIGNED");
+        String lastId = seen.lines().filter(line -> line.startsWith("id:")).reduce((a, b) -> b).orElseThrow().substring(3);
+
+        // Disconnected while these happened
+        broadcaster.onRequestLogEvent(event(5, "Aveiro", RequestState.IN_PROGRESS));
+        broadcaster.onRequestLogEvent(event(6, "Aveiro", RequestState.ASSIGNED));
+
+        MvcResult second = subscribe("/api/events/requests/5", lastId);
+        String content = awaitContent(second, "IN_PROGRESS");
+        // Ending with the newest state, and only with this request's
+        assertThat(content.lines().filter(line -> line.startsWith("data:")).reduce((a, b) -> b).orElseThrow()).contains("IN_PROGRESS");
+        assertThat(content).doesNotContain("\"token\":6");
+    }
+
+    @Test
+    void reconnectingTooLateAsksForAReload() throws Exception {
+        MvcResult first = subscribe("/api/events/requests/5", null);
+        broadcaster.onRequestLogEvent(event(5, "Aveiro", RequestState.ASSIGNED));
+        String seen = awaitContent(first, "ASSIGNED");
+        String lastId = seen.lines().filter(line -> line.startsWith("id:")).reduce((a, b) -> b).orElseThrow().substring(3);
+        // Only the last three are kept
+        for (int i = 0; i < 5; i++) {
+            broadcaster.onRequestLogEvent(event(9, "Porto", RequestState.RECIEVED));
+        }
+
+        MvcResult result = subscribe("/api/events/requests/5", lastId);
+        assertThat(awaitContent(result, "event:reset")).contains("event:reset");
+        // An id that isn't from the log can't be placed either
+        assertThat(awaitContent(subscribe("/api/events/requests/5", "1"), "event:reset")).contains("event:reset");
+    }
+}
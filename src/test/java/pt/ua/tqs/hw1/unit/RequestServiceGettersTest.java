@@ -1,32 +1,45 @@
 package pt.ua.tqs.hw1.unit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
+import org.springframework.data.domain.Limit;
 
+import pt.ua.tqs.hw1.data.HistoryEntry;
 import pt.ua.tqs.hw1.data.RequestRepository;
+import pt.ua.tqs.hw1.data.RequestSummary;
 import pt.ua.tqs.hw1.data.RequestState;
 import pt.ua.tqs.hw1.data.RequestStateChange;
 import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.data.StateCount;
+import pt.ua.tqs.hw1.service.DailyStateCounts;
+import pt.ua.tqs.hw1.service.InvalidRequestDateException;
+import pt.ua.tqs.hw1.service.RequestCache;
 import pt.ua.tqs.hw1.service.RequestNotFoundException;
+import pt.ua.tqs.hw1.service.ReadYourWrites;
 import pt.ua.tqs.hw1.service.RequestService;
 
 @ExtendWith(MockitoExtension.class)
@@ -36,6 +49,13 @@ class RequestServiceGettersTest {
     @Mock
     private RequestRepository repository;
 
+    @Spy
+    private RequestCache requestCache = new RequestCache(100, Duration.ofMinutes(1));
+
+    // No replica configured, so every read goes to the one database
+    @Spy
+    private ReadYourWrites readYourWrites = new ReadYourWrites("", Duration.ofSeconds(5));
+
     @InjectMocks
     private RequestService service;
 
@@ -52,6 +72,21 @@ class RequestServiceGettersTest {
         verify(repository, times(1)).findByToken(1);
     }
 
+    @Test
+    void getRequest_pollsAreAnsweredFromTheCache() {
+        ServiceRequest request = new ServiceRequest();
+        request.setToken(1);
+        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(service.getRequest(1)).isEqualTo(request);
+        }
+
+        verify(repository, times(1)).findByToken(1);
+        assertThat(service.getRequestCacheStats().hits()).isEqualTo(4);
+        assertThat(service.getRequestCacheStats().misses()).isEqualTo(1);
+    }
+
     @Test
     void getRequestNonExistent() {
         when(repository.findByToken(anyLong())).thenReturn(Optional.empty());
@@ -62,34 +97,93 @@ class RequestServiceGettersTest {
 
     @Test
     void getRequests() {
-        ServiceRequest req1 = new ServiceRequest(); req1.setToken(1);
-        ServiceRequest req2 = new ServiceRequest(); req1.setToken(2);
-        ServiceRequest req3 = new ServiceRequest(); req1.setToken(3);
-        List<ServiceRequest> list = Arrays.asList(req1, req2, req3);
+        RequestSummary req1 = new RequestSummary(1, null, null, null, RequestState.RECIEVED);
+        RequestSummary req2 = new RequestSummary(2, null, null, null, RequestState.RECIEVED);
+        RequestSummary req3 = new RequestSummary(3, null, null, null, RequestState.RECIEVED);
+        List<RequestSummary> list = Arrays.asList(req1, req2, req3);
 
-        when(repository.findAll()).thenReturn(list);
+        when(repository.findSummariesAfter(0, Limit.of(3))).thenReturn(list);
 
-        List<ServiceRequest> result = service.getRequests();
+        List<RequestSummary> result = service.getRequests(0, 3, false);
 
         assertThat(result).hasSize(3).containsExactlyInAnyOrder(req1, req2, req3);
-        verify(repository, times(1)).findAll();
+        verify(repository, never()).findAll();
+        verify(repository, never()).findHistories(any());
     }
 
     @Test
-    void getStateChanges_shouldReturnSortedByDate() {
-        RequestStateChange c1 = new RequestStateChange(LocalDateTime.of(2025, 1, 1, 10, 0), RequestState.RECIEVED); // Second
-        RequestStateChange c2 = new RequestStateChange(LocalDateTime.of(2025, 1, 1, 9, 0), RequestState.RECIEVED); // First
-        RequestStateChange c3 = new RequestStateChange(LocalDateTime.of(2025, 1, 1, 11, 0), RequestState.RECIEVED); // Third
-        Set<RequestStateChange> unordered = new HashSet<>(Set.of(c1, c2, c3));
+    void getRequests_withHistoryInOneQuery() {
+        RequestSummary req1 = new RequestSummary(1, null, null, null, RequestState.ASSIGNED);
+        RequestSummary req2 = new RequestSummary(2, null, null, null, RequestState.RECIEVED);
+        LocalDateTime date = LocalDateTime.of(2025, 1, 1, 9, 0);
+        when(repository.findSummariesAfter(0, Limit.of(2))).thenReturn(List.of(req1, req2));
+        when(repository.findHistories(List.of(1L, 2L))).thenReturn(List.of(
+                new HistoryEntry(1, 1, date, RequestState.RECIEVED),
+                new HistoryEntry(1, 2, date, RequestState.ASSIGNED),
+                new HistoryEntry(2, 1, date, RequestState.RECIEVED)));
+
+        List<RequestSummary> result = service.getRequests(0, 2, true);
+
+        assertThat(result.get(0).stateChanges()).extracting(RequestStateChange::getState)
+                .containsExactly(RequestState.RECIEVED, RequestState.ASSIGNED);
+        assertThat(result.get(1).stateChanges()).hasSize(1);
+        verify(repository, times(1)).findHistories(any());
+    }
 
-        ServiceRequest request = new ServiceRequest();
-        request.setToken(1);
-        request.setStateChanges(unordered);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+    @Test
+    void getStateChanges_comesFromTheLog() {
+        RequestStateChange c1 = new RequestStateChange(LocalDateTime.of(2025, 1, 1, 9, 0), RequestState.RECIEVED);
+        RequestStateChange c2 = new RequestStateChange(LocalDateTime.of(2025, 1, 1, 10, 0), RequestState.ASSIGNED);
+        when(repository.findHistoryAfter(1, 0, Limit.of(10))).thenReturn(List.of(c1, c2));
 
-        List<RequestStateChange> result = service.getStateChanges(1);
+        List<RequestStateChange> result = service.getStateChanges(1, 0, 10);
+
+        assertThat(result).containsExactly(c1, c2);
+        // The request itself isn't loaded
+        verify(repository, never()).findByToken(anyLong());
+    }
+
+    @Test
+    void getStateChanges_unknownToken() {
+        when(repository.findHistoryAfter(1, 0, Limit.of(10))).thenReturn(List.of());
+        when(repository.existsById(1L)).thenReturn(false);
+
+        assertThrows(RequestNotFoundException.class, () -> service.getStateChanges(1, 0, 10));
+    }
+
+    @Test
+    void getStateChanges_nothingNew() {
+        when(repository.findHistoryAfter(1, 4, Limit.of(10))).thenReturn(List.of());
+        when(repository.existsById(1L)).thenReturn(true);
+
+        assertThat(service.getStateChanges(1, 4, 10)).isEmpty();
+    }
+
+    @Test
+    void getStateCounts_fillsTheStatesWithoutRequests() {
+        LocalDate day = LocalDate.of(2030, 1, 7);
+        when(repository.findStateCounts(day, day.plusDays(1))).thenReturn(List.of(
+                new StateCount("Aveiro", day, RequestState.RECIEVED, 3),
+                new StateCount("Aveiro", day, RequestState.DONE, 1),
+                new StateCount("Porto", day, RequestState.CANCELLED, 2),
+                new StateCount("Aveiro", day.plusDays(1), RequestState.ASSIGNED, 5)));
+
+        List<DailyStateCounts> counts = service.getStateCounts(day, day.plusDays(1));
+
+        assertThat(counts).extracting(DailyStateCounts::municipality, DailyStateCounts::day)
+                .containsExactly(tuple("Aveiro", day), tuple("Porto", day), tuple("Aveiro", day.plusDays(1)));
+        assertThat(counts.get(0).counts()).containsExactly(entry(RequestState.RECIEVED, 3L), entry(RequestState.ASSIGNED, 0L),
+                entry(RequestState.IN_PROGRESS, 0L), entry(RequestState.DONE, 1L), entry(RequestState.CANCELLED, 0L));
+        assertThat(counts.get(2).counts()).containsEntry(RequestState.ASSIGNED, 5L);
+        // Read from the summary, never from the requests themselves
+        verify(repository, never()).findAll();
+    }
+
+    @Test
+    void getStateCounts_invalidRange() {
+        LocalDate day = LocalDate.of(2030, 1, 7);
 
-        // Assert
-        assertThat(result).hasSize(3).containsExactly(c2, c1, c3);
+        assertThrows(InvalidRequestDateException.class, () -> service.getStateCounts(day, day.minusDays(1)));
+        verify(repository, never()).findStateCounts(any(), any());
     }
-}
\ No newline at end of file
+}
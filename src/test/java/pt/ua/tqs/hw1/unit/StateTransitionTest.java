@@ -1,31 +1,54 @@
-
 package pt.ua.tqs.hw1.unit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
+import org.springframework.context.ApplicationEventPublisher;
 
+import pt.ua.tqs.hw1.data.BookingSlotRepository;
 import pt.ua.tqs.hw1.data.RequestRepository;
 import pt.ua.tqs.hw1.data.RequestState;
-import pt.ua.tqs.hw1.data.RequestStateChange;
 import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.CapacityIndex;
 import pt.ua.tqs.hw1.service.InvalidStateTransitionException;
+import pt.ua.tqs.hw1.service.RequestCache;
+import pt.ua.tqs.hw1.service.RequestEvent;
+import pt.ua.tqs.hw1.service.RequestNotFoundException;
+import pt.ua.tqs.hw1.service.ReadYourWrites;
 import pt.ua.tqs.hw1.service.RequestService;
+import pt.ua.tqs.hw1.service.RequestTransition;
+import pt.ua.tqs.hw1.service.TransitionMetrics;
+import pt.ua.tqs.hw1.service.TransitionOutcome;
+import pt.ua.tqs.hw1.service.TransitionStats;
 
 @ExtendWith(MockitoExtension.class)
 @MockitoSettings(strictness = Strictness.LENIENT)
@@ -34,197 +57,317 @@ class StateTransitionTest {
     @Mock
     private RequestRepository repository;
 
+    @Mock
+    private BookingSlotRepository slotRepository;
+
+    @Mock
+    private CapacityIndex capacityIndex;
+
+    @Spy
+    private TransitionMetrics transitionMetrics = new TransitionMetrics();
+
+    @Spy
+    private RequestCache requestCache = new RequestCache(100, Duration.ofMinutes(1));
+
+    @Mock
+    private ApplicationEventPublisher events;
+
+    @Spy
+    private ReadYourWrites readYourWrites = new ReadYourWrites("", Duration.ofSeconds(5));
+
     @InjectMocks
     private RequestService service;
 
+    // What the request table holds, by token
+    private final Map<Long, ServiceRequest> table = new HashMap<>();
+
     @BeforeEach
     void setup() {
-        // When save is called, it returns the argument
-        when(repository.save(any(ServiceRequest.class))).thenAnswer(inv -> inv.getArgument(0));
+        // Behaves like the conditional UPDATE: only changes rows still in the expected state
+        when(repository.transitionState(anyLong(), any(RequestState.class), any(RequestState.class))).thenAnswer(inv -> {
+            ServiceRequest row = table.get(inv.getArgument(0, Long.class));
+            if (row == null || row.getState() != inv.getArgument(1)) {
+                return 0;
+            }
+            row.setState(inv.getArgument(2));
+            return 1;
+        });
+        when(repository.lockAllByTokenIn(anyCollection())).thenAnswer(inv -> {
+            Collection<Long> tokens = inv.getArgument(0);
+            return tokens.stream().filter(table::containsKey).map(table::get).toList();
+        });
+        when(repository.findWithoutHistory(anyLong())).thenAnswer(inv -> Optional.ofNullable(table.get(inv.getArgument(0, Long.class)))
+                .map(row -> new ServiceRequest(row.getToken(), row.getDate(), row.getDescription(), row.getState(), row.getMunicipality())));
+    }
+
+    private void givenRequest(long token, RequestState state) {
+        ServiceRequest request = new ServiceRequest(token, LocalDateTime.of(2030, 1, 7, 10, 0), "Old sofa", state, "Aveiro");
+        table.put(token, request);
     }
 
     @Test
     void stateChangeRecording() {
-        ServiceRequest request = new ServiceRequest();
-        request.setState(RequestState.RECIEVED);
-        request.setToken(1);
-
-        when(repository.findByToken(1L)).thenReturn(Optional.of(request));
-
-        int before = request.getStateChanges().size();
+        givenRequest(1, RequestState.RECIEVED);
 
         ServiceRequest result = service.cancelRequest(1L);
 
-        int after = result.getStateChanges().size();
+        assertThat(result.getState()).isEqualTo(RequestState.CANCELLED);
+        // Appended to the log, nothing else written to the request than its state
+        verify(repository, times(1)).recordStateChange(eq(1L), any(LocalDateTime.class), eq(RequestState.CANCELLED));
+        // Counted out of the state it was read in
+        verify(repository, times(1)).moveStateCounts(argThat(moved -> moved.size() == 1
+                && moved.iterator().next().getState() == RequestState.RECIEVED), eq(RequestState.CANCELLED));
+        verify(repository, never()).save(any());
+        verify(events, times(1)).publishEvent(RequestEvent.of(result));
+    }
+
+    @Test
+    void transitionsDropTheCachedRequest() {
+        givenRequest(1, RequestState.RECIEVED);
+        givenRequest(2, RequestState.RECIEVED);
+        when(repository.findByToken(anyLong())).thenAnswer(inv -> Optional.of(table.get(inv.getArgument(0, Long.class))));
+        service.getRequest(1);
+        service.getRequest(2);
+        assertThat(requestCache.size()).isEqualTo(2);
+
+        service.assignRequest(1);
+        assertThat(requestCache.size()).isEqualTo(1);
+        service.transitionRequests(List.of(2L), RequestTransition.CANCEL);
+        assertThat(requestCache.size()).isZero();
+
+        verify(requestCache, times(1)).invalidate(1L);
+        verify(requestCache, times(1)).invalidateAll(List.of(2L));
+    }
 
-        assertThat(after).isEqualTo(before + 1);
+    @Test
+    void rejectedTransitionsKeepTheCachedRequest() {
+        givenRequest(1, RequestState.DONE);
+        when(repository.findByToken(1L)).thenReturn(Optional.of(table.get(1L)));
+        service.getRequest(1);
 
-        RequestStateChange change = result.getStateChanges().stream().reduce((f, s) -> s).orElse(null);
+        assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
 
-        assertThat(change).isNotNull();
-        assertThat(result.getState()).isEqualTo(RequestState.CANCELLED);
-        assertThat(change.getServiceRequest()).isEqualTo(result);
+        assertThat(requestCache.size()).isEqualTo(1);
+        verify(requestCache, never()).invalidate(anyLong());
     }
 
     @Test
-    void cancelRequestSetsState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setState(RequestState.RECIEVED);
-        request.setToken(1);
+    void historyIsNeverLoaded() {
+        givenRequest(1, RequestState.RECIEVED);
 
-        ServiceRequest request2 = new ServiceRequest();
-        request2.setState(RequestState.ASSIGNED);
-        request.setToken(2);
-        
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
-        when(repository.findByToken(2)).thenReturn(Optional.of(request2));
+        service.assignRequest(1);
 
+        verify(repository, never()).findByToken(anyLong());
+        verify(repository, never()).save(any());
+    }
+
+    @Test
+    void cancelRequestSetsState() {
+        givenRequest(1, RequestState.RECIEVED);
+        givenRequest(2, RequestState.ASSIGNED);
 
         ServiceRequest result = service.cancelRequest(1);
         ServiceRequest result2 = service.cancelRequest(2);
 
         assertThat(result.getState()).isEqualTo(RequestState.CANCELLED);
         assertThat(result2.getState()).isEqualTo(RequestState.CANCELLED);
-        verify(repository, times(2)).save(any());
+        verify(repository, times(2)).recordStateChange(anyLong(), any(), eq(RequestState.CANCELLED));
+        verify(slotRepository, times(2)).releaseSlot(anyLong());
+        verify(capacityIndex, times(2)).release("Aveiro", LocalDate.of(2030, 1, 7));
     }
 
     @Test
     void cancelRequestInvalidState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setToken(1);
-        
-        request.setState(RequestState.IN_PROGRESS);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.IN_PROGRESS);
         assertThrows(InvalidStateTransitionException.class, () -> service.cancelRequest(1));
 
-        request.setState(RequestState.CANCELLED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.CANCELLED);
         assertThrows(InvalidStateTransitionException.class, () -> service.cancelRequest(1));
 
-        request.setState(RequestState.DONE);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.DONE);
         assertThrows(InvalidStateTransitionException.class, () -> service.cancelRequest(1));
 
-        verify(repository, never()).save(any());
+        verify(repository, never()).recordStateChange(anyLong(), any(), any());
+        verify(repository, never()).moveStateCounts(anyCollection(), any());
+        verify(slotRepository, never()).releaseSlot(anyLong());
+        verify(events, never()).publishEvent(any(Object.class));
     }
 
     @Test
-    void assignRequestSetsState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setState(RequestState.RECIEVED);
-        request.setToken(1);
-        
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+    void cancelRequestNotFound() {
+        assertThrows(RequestNotFoundException.class, () -> service.cancelRequest(7));
 
-        when(repository.save(any(ServiceRequest.class))).thenAnswer(inv -> inv.getArgument(0));
+        verify(repository, never()).recordStateChange(anyLong(), any(), any());
+        verify(slotRepository, never()).releaseSlot(anyLong());
+    }
+
+    @Test
+    void secondOfTwoConcurrentTransitionsFails() {
+        givenRequest(1, RequestState.RECIEVED);
+
+        // Both staff members saw RECIEVED, only the first update finds it still there
+        service.assignRequest(1);
+        assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
+
+        verify(repository, times(1)).recordStateChange(anyLong(), any(), any());
+    }
+
+    @Test
+    void assignRequestSetsState() {
+        givenRequest(1, RequestState.RECIEVED);
 
         ServiceRequest result = service.assignRequest(1);
 
         assertThat(result.getState()).isEqualTo(RequestState.ASSIGNED);
-        verify(repository, times(1)).save(request);
+        verify(repository, times(1)).recordStateChange(eq(1L), any(), eq(RequestState.ASSIGNED));
     }
 
     @Test
     void assignRequestInvalidState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setToken(1);
-        
-        request.setState(RequestState.IN_PROGRESS);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.IN_PROGRESS);
         assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
 
-        request.setState(RequestState.CANCELLED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.CANCELLED);
         assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
 
-        request.setState(RequestState.DONE);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.DONE);
         assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
 
-        request.setState(RequestState.ASSIGNED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.ASSIGNED);
         assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
 
-        verify(repository, never()).save(any());
+        verify(repository, never()).recordStateChange(anyLong(), any(), any());
     }
 
     @Test
     void startRequestSetsState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setState(RequestState.ASSIGNED);
-        request.setToken(1);
-        
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
-
-        when(repository.save(any(ServiceRequest.class))).thenAnswer(inv -> inv.getArgument(0));
+        givenRequest(1, RequestState.ASSIGNED);
 
         ServiceRequest result = service.startRequest(1);
 
         assertThat(result.getState()).isEqualTo(RequestState.IN_PROGRESS);
-        verify(repository, times(1)).save(request);
+        verify(repository, times(1)).recordStateChange(eq(1L), any(), eq(RequestState.IN_PROGRESS));
     }
 
     @Test
     void startRequestInvalidState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setToken(1);
-        
-        request.setState(RequestState.RECIEVED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.RECIEVED);
         assertThrows(InvalidStateTransitionException.class, () -> service.startRequest(1));
 
-        request.setState(RequestState.IN_PROGRESS);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.IN_PROGRESS);
         assertThrows(InvalidStateTransitionException.class, () -> service.startRequest(1));
 
-        request.setState(RequestState.DONE);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.DONE);
         assertThrows(InvalidStateTransitionException.class, () -> service.startRequest(1));
 
-        request.setState(RequestState.CANCELLED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.CANCELLED);
         assertThrows(InvalidStateTransitionException.class, () -> service.startRequest(1));
 
-        verify(repository, never()).save(any());
+        verify(repository, never()).recordStateChange(anyLong(), any(), any());
     }
 
     @Test
     void completeRequestSetsState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setState(RequestState.IN_PROGRESS);
-        request.setToken(1);
-        
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
-
-        when(repository.save(any(ServiceRequest.class))).thenAnswer(inv -> inv.getArgument(0));
+        givenRequest(1, RequestState.IN_PROGRESS);
 
         ServiceRequest result = service.completeRequest(1);
 
         assertThat(result.getState()).isEqualTo(RequestState.DONE);
-        verify(repository, times(1)).save(request);
+        verify(repository, times(1)).recordStateChange(eq(1L), any(), eq(RequestState.DONE));
     }
 
     @Test
     void compleeteRequestInvalidState() {
-        ServiceRequest request = new ServiceRequest();
-        request.setToken(1);
-        
-        request.setState(RequestState.RECIEVED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.RECIEVED);
         assertThrows(InvalidStateTransitionException.class, () -> service.completeRequest(1));
 
-        request.setState(RequestState.ASSIGNED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.ASSIGNED);
         assertThrows(InvalidStateTransitionException.class, () -> service.completeRequest(1));
 
-        request.setState(RequestState.DONE);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.DONE);
         assertThrows(InvalidStateTransitionException.class, () -> service.completeRequest(1));
 
-        request.setState(RequestState.CANCELLED);
-        when(repository.findByToken(1)).thenReturn(Optional.of(request));
+        givenRequest(1, RequestState.CANCELLED);
         assertThrows(InvalidStateTransitionException.class, () -> service.completeRequest(1));
 
-        verify(repository, never()).save(any());
+        verify(repository, never()).recordStateChange(anyLong(), any(), any());
+    }
+
+    @Test
+    void bulkTransition() {
+        givenRequest(1, RequestState.RECIEVED);
+        givenRequest(2, RequestState.DONE);
+        givenRequest(3, RequestState.RECIEVED);
+
+        List<TransitionOutcome> outcomes = service.transitionRequests(List.of(1L, 2L, 3L, 9L, 1L), RequestTransition.ASSIGN);
+
+        assertThat(outcomes).extracting(TransitionOutcome::token).containsExactly(1L, 2L, 3L, 9L, 1L);
+        assertThat(outcomes).extracting(TransitionOutcome::isUpdated).containsExactly(true, false, true, false, true);
+        assertThat(outcomes.get(1).rejection()).isInstanceOf(InvalidStateTransitionException.class);
+        assertThat(outcomes.get(3).rejection()).isInstanceOf(RequestNotFoundException.class);
+        assertThat(outcomes.get(0).updated().getState()).isEqualTo(RequestState.ASSIGNED);
+
+        // One update and one batch of history for everything that could move
+        verify(repository, times(1)).transitionStates(List.of(1L, 3L), Set.of(RequestState.RECIEVED), RequestState.ASSIGNED);
+        verify(repository, times(1)).recordStateChanges(eq(List.of(1L, 3L)), any(), eq(RequestState.ASSIGNED));
+        verify(repository, times(1)).moveStateCounts(argThat(moved -> moved.stream().map(ServiceRequest::getToken).toList().equals(List.of(1L, 3L))),
+                eq(RequestState.ASSIGNED));
+        verify(repository, never()).transitionState(anyLong(), any(), any());
+        verify(slotRepository, never()).releaseSlots(anyCollection());
+        // One event per request that moved, even when it was asked for twice
+        verify(events, times(2)).publishEvent(any(RequestEvent.class));
+    }
+
+    @Test
+    void bulkCancelReleasesSlots() {
+        givenRequest(1, RequestState.RECIEVED);
+        givenRequest(2, RequestState.ASSIGNED);
+        givenRequest(3, RequestState.IN_PROGRESS);
+
+        service.transitionRequests(List.of(1L, 2L, 3L), RequestTransition.CANCEL);
+
+        verify(slotRepository, times(1)).releaseSlots(List.of(1L, 2L));
+        verify(capacityIndex, times(2)).release("Aveiro", LocalDate.of(2030, 1, 7));
+    }
+
+    @Test
+    void stateChangedSinceRead() {
+        givenRequest(1, RequestState.RECIEVED);
+        // Another staff member moves it between our read and our update
+        when(repository.transitionState(1L, RequestState.RECIEVED, RequestState.ASSIGNED)).thenReturn(0);
+
+        assertThrows(InvalidStateTransitionException.class, () -> service.assignRequest(1));
+
+        verify(repository, never()).recordStateChange(anyLong(), any(), any());
+        assertThat(transitionMetrics.snapshot()).extracting(TransitionStats::rejected).containsExactly(1L);
+    }
+
+    @Test
+    void transitionTable() {
+        assertThat(RequestTransition.CANCEL.allows(RequestState.RECIEVED)).isTrue();
+        assertThat(RequestTransition.CANCEL.allows(RequestState.ASSIGNED)).isTrue();
+        assertThat(RequestTransition.CANCEL.allows(RequestState.IN_PROGRESS)).isFalse();
+        assertThat(RequestTransition.END.allows(RequestState.IN_PROGRESS)).isTrue();
+        assertThat(RequestTransition.END.allows(RequestState.DONE)).isFalse();
+        assertThat(RequestTransition.fromPath("start")).contains(RequestTransition.START);
+        assertThat(RequestTransition.fromPath("teleport")).isEmpty();
+    }
+
+    @Test
+    void metricsPerEdge() {
+        givenRequest(1, RequestState.RECIEVED);
+        givenRequest(2, RequestState.ASSIGNED);
+        givenRequest(3, RequestState.DONE);
+
+        service.cancelRequest(1);
+        service.cancelRequest(2);
+        assertThrows(InvalidStateTransitionException.class, () -> service.cancelRequest(3));
+
+        assertThat(service.getTransitionStats())
+            .extracting(TransitionStats::from, TransitionStats::to, TransitionStats::count, TransitionStats::rejected)
+            .containsExactly(
+                tuple(RequestState.RECIEVED, RequestState.CANCELLED, 1L, 0L),
+                tuple(RequestState.ASSIGNED, RequestState.CANCELLED, 1L, 0L),
+                tuple(RequestState.DONE, RequestState.CANCELLED, 0L, 1L));
     }
-}
\ No newline at end of file
+}
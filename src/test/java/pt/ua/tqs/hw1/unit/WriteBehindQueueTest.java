@@ -0,0 +1,150 @@
+package pt.ua.tqs.hw1.unit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import pt.ua.tqs.hw1.data.RequestState;
+import pt.ua.tqs.hw1.data.ServiceRequest;
+import pt.ua.tqs.hw1.service.QueuedWriteFailure;
+import pt.ua.tqs.hw1.service.RequestService;
+import pt.ua.tqs.hw1.service.SubmissionQueueFullException;
+import pt.ua.tqs.hw1.service.WriteBehindQueue;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class WriteBehindQueueTest {
+
+    @Mock
+    private RequestService requestService;
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final List<List<ServiceRequest>> written = new ArrayList<>();
+
+    private WriteBehindQueue queue;
+
+    @BeforeEach
+    void setup() {
+        when(requestService.reserveSubmission(any())).thenAnswer(invocation -> {
+            ServiceRequest request = invocation.getArgument(0);
+            request.setToken(tokens.incrementAndGet());
+            return request;
+        });
+        when(requestService.writeSubmissions(anyList())).thenAnswer(invocation -> {
+            synchronized (written) {
+                written.add(List.copyOf(invocation.getArgument(0)));
+            }
+            return List.of();
+        });
+    }
+
+    @AfterEach
+    void teardown() {
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    private static ServiceRequest newRequest() {
+        return new ServiceRequest(LocalDateTime.now().plusDays(3), "Old sofa", RequestState.RECIEVED, "Aveiro");
+    }
+
+    @Test
+    void notRunningTurnsAway() {
+        queue = new WriteBehindQueue(requestService, true, 10, 5, 1, 1000);
+
+        assertThrows(SubmissionQueueFullException.class, () -> queue.submit(newRequest()));
+        verify(requestService, never()).reserveSubmission(any());
+    }
+
+    @Test
+    void queuedRequestsAreWrittenInBatches() {
+        queue = new WriteBehindQueue(requestService, true, 100, 10, 1, 5000);
+        queue.start();
+
+        for (int i = 0; i < 25; i++) {
+            assertThat(queue.submit(newRequest()).getToken()).isEqualTo(i + 1);
+        }
+        queue.stop();
+
+        // Everything was written, in batches no larger than the batch size
+        assertThat(written).allSatisfy(batch -> assertThat(batch).hasSizeLessThanOrEqualTo(10));
+        assertThat(written.stream().mapToInt(List::size).sum()).isEqualTo(25);
+        assertThat(queue.findPending(1)).isEmpty();
+    }
+
+    @Test
+    void fullQueueReleasesReservation() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            unblock.await(5, TimeUnit.SECONDS);
+            return List.of();
+        }).when(requestService).writeSubmissions(anyList());
+
+        queue = new WriteBehindQueue(requestService, true, 1, 1, 1, 5000);
+        queue.start();
+
+        // The worker takes the first one and gets stuck writing it, the second one fills the queue
+        queue.submit(newRequest());
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+        queue.submit(newRequest());
+
+        ServiceRequest third = newRequest();
+        assertThrows(SubmissionQueueFullException.class, () -> queue.submit(third));
+        verify(requestService, times(1)).releaseReservation(third);
+        assertThat(queue.findPending(third.getToken())).isEmpty();
+
+        unblock.countDown();
+    }
+
+    @Test
+    void rejectedTokensAreRemembered() {
+        when(requestService.writeSubmissions(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        queue = new WriteBehindQueue(requestService, true, 10, 10, 1, 5000);
+        queue.start();
+        ServiceRequest queued = queue.submit(newRequest());
+        queue.stop();
+
+        assertThat(queue.findFailure(queued.getToken())).contains(QueuedWriteFailure.SLOT_TAKEN);
+        assertThat(queue.findPending(queued.getToken())).isEmpty();
+    }
+
+    @Test
+    void failedWritesAreNotReportedAsFullDays() {
+        when(requestService.writeSubmissions(anyList())).thenThrow(new IllegalStateException("connection lost"));
+
+        queue = new WriteBehindQueue(requestService, true, 10, 10, 1, 5000);
+        queue.start();
+        ServiceRequest queued = queue.submit(newRequest());
+        queue.stop();
+
+        assertThat(queue.findFailure(queued.getToken())).contains(QueuedWriteFailure.WRITE_FAILED);
+        assertThat(queue.findPending(queued.getToken())).isEmpty();
+    }
+}